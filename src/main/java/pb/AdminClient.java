@@ -56,6 +56,7 @@ public class AdminClient  {
         options.addOption("force",false,"in conjuction with shutdown, asking sessions to stop");
         options.addOption("vader",false,"in conjuction with shutdown, closing endpoints immediately");
         options.addOption("password",true,"password for server");
+        options.addOption("watch",false,"in conjuction with shutdown, print the progress until the server has drained");
         
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -94,6 +95,13 @@ public class AdminClient  {
         		} else {
         			System.out.println("using a blank password");
         		}
+        		if(cmd2.hasOption("watch")) {
+        			// the server stops our session once everything else has drained
+        			endpoint.on(ServerManager.shutdownProgress, (progressArgs)->{
+        				System.out.println("shutdown progress: "+progressArgs[0]);
+        			});
+        			endpoint.emit(ServerManager.watchShutdown, password);
+        		}
 	        	if(cmd2.hasOption("force")) {
 	        		endpoint.emit(ServerManager.forceShutdownServer, password);
 	        	} else if(cmd2.hasOption("vader")) {
@@ -104,8 +112,9 @@ public class AdminClient  {
         	} else {
         		System.out.println("not shutting down server");
         	}
-        	// nothing more to do
-        	clientManager.shutdown();
+        	// nothing more to do, unless watching
+        	if(!cmd2.hasOption("shutdown") || !cmd2.hasOption("watch"))
+        		clientManager.shutdown();
         }).on(ClientManager.sessionStopped, (eventArgs)->{
         	log.info("session stopped");
         }).on(ClientManager.sessionError, (eventArgs)->{
@@ -113,7 +122,7 @@ public class AdminClient  {
         });
         clientManager.start();
         // nothing more to do but wait for client to finish
-        clientManager.join();
+        clientManager.joinThread();
         Utils.getInstance().cleanUp();
     }
 }
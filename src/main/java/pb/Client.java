@@ -78,7 +78,7 @@ public class Client  {
         Utils.getInstance().setTimeout(()->{
         	clientManager.shutdown();
         }, 120000);
-        clientManager.join();
+        clientManager.joinThread();
         Utils.getInstance().cleanUp();
         
     }
@@ -13,6 +13,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -28,7 +29,9 @@ import pb.managers.ClientManager;
 import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
+import pb.managers.SocketProfile;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.IEventCallback;
 import pb.utils.Utils;
 
 /**
@@ -92,48 +95,114 @@ public class FileSharingPeer {
 	private static String host=Utils.serverHost; // default host for the index server
 	
 	/**
-	 * chunk size to use (bytes) when transferring a file
+	 * socket options for connections, mostly carrying file transfers
 	 */
-	private static int chunkSize=Utils.chunkSize;
+	private static SocketProfile socketProfile=SocketProfile.bulk();
 	
 	/**
-	 * buffer for file reading
+	 * chunk size to use (bytes) when transferring a file
 	 */
-	private static byte[] buffer = new byte[chunkSize];
+	private static int chunkSize=Utils.chunkSize;
 	
 	/**
-	 * Read up to chunkSize bytes of a file and send to client.
-	 * If we have not reached the end of the file then set a timeout
-	 * to read some more bytes. Since this is using the timer thread
-	 * we have the danger that the transmission will block and that
-	 * this will block all the other timeouts. We could either use another
-	 * thread for each file transfer or else allow for buffering of
-	 * outgoing messages at the endpoint, to overcome this issue.
-	 * @param in the file input stream
-	 * @param endpoint the endpoint to send the file
+	 * A file being sent to another peer, a chunk at a time on the timer.
+	 * Outgoing messages are buffered at the endpoint, so sending a chunk
+	 * does not block; but once the endpoint's buffer fills up and it is no
+	 * longer writable, no more chunks are read until it emits
+	 * {@link Endpoint#writable}.
 	 */
-	public static void continueTransmittingFile(InputStream in,Endpoint endpoint) {
-		try {
-			int read = in.read(buffer);
-			if(read==-1) {
-				endpoint.emit(fileContents, ""); // signals no more bytes in file
-				in.close();
-			} else {
-				endpoint.emit(fileContents, new String(Base64.encodeBase64(
-						Arrays.copyOfRange(buffer, 0, read)),
-						StandardCharsets.US_ASCII));
-				if(read<chunkSize) {
-					endpoint.emit(fileContents, "");
+	private static class FileTransmission {
+		private final InputStream in;
+		private final Endpoint endpoint;
+		
+		/**
+		 * buffer for file reading
+		 */
+		private final byte[] buffer = new byte[chunkSize];
+		
+		/**
+		 * Resumes sending, removed from the endpoint when the file is done.
+		 */
+		private final IEventCallback onWritable = (args)->resume();
+		
+		/**
+		 * Whether a chunk is waiting on the timer or being sent, so that
+		 * only one is at a time.
+		 */
+		private final AtomicBoolean sending = new AtomicBoolean(true);
+		
+		private volatile boolean done = false;
+		
+		FileTransmission(InputStream in, Endpoint endpoint) {
+			this.in=in;
+			this.endpoint=endpoint;
+			endpoint.on(Endpoint.writable, onWritable);
+		}
+		
+		/**
+		 * Send the next chunk soon, unless one is on its way already.
+		 */
+		private void resume() {
+			if(!done && sending.compareAndSet(false,true)) {
+				Utils.getInstance().setTimeout(this::sendChunk,0);
+			}
+		}
+		
+		/**
+		 * Read up to chunkSize bytes of the file and send them to the
+		 * other peer. If we have not reached the end of the file then set
+		 * a timeout to read some more bytes, unless the endpoint has become
+		 * unwritable, in which case we wait to be told it is writable.
+		 */
+		private void sendChunk() {
+			if(!endpoint.isWritable()) {
+				// the other peer is not keeping up
+				sending.set(false);
+				if(endpoint.isWritable()) resume(); // it caught up meanwhile
+				return;
+			}
+			try {
+				int read = in.read(buffer);
+				if(read==-1) {
+					finish();
+					endpoint.emit(fileContents, ""); // signals no more bytes in file
 					in.close();
 				} else {
-					Utils.getInstance().setTimeout(()->{
-						continueTransmittingFile(in,endpoint);
-					},100); // limit throughput to about 160kB/s, hopefully your bandwidth can keep up :-)
+					endpoint.emit(fileContents, new String(Base64.encodeBase64(
+							Arrays.copyOfRange(buffer, 0, read)),
+							StandardCharsets.US_ASCII));
+					if(read<chunkSize) {
+						finish();
+						endpoint.emit(fileContents, "");
+						in.close();
+					} else {
+						Utils.getInstance().setTimeout(this::sendChunk,
+								100); // limit throughput to about 160kB/s, hopefully your bandwidth can keep up :-)
+					}
 				}
+			} catch (IOException e) {
+				finish();
+				endpoint.emit(fileError,e.toString());
 			}
-		} catch (IOException e) {
-			endpoint.emit(fileError,e.toString());
 		}
+		
+		/**
+		 * No more chunks to send.
+		 */
+		private void finish() {
+			done=true;
+			endpoint.off(Endpoint.writable, onWritable);
+		}
+	}
+	
+	/**
+	 * Send a file to a client, a chunk at a time, pausing while the
+	 * endpoint is unwritable.
+	 * @param in the file input stream
+	 * @param endpoint the endpoint to send the file
+	 */
+	public static void continueTransmittingFile(InputStream in,Endpoint endpoint) {
+		new FileTransmission(in,endpoint).sendChunk();
 	}
 	
 	/**
@@ -218,6 +287,7 @@ public class FileSharingPeer {
 			filenames.add(file);
 		}
         PeerManager peerManager = new PeerManager(peerPort);
+        peerManager.setSocketProfile(socketProfile);
         peerManager.on(PeerManager.peerStarted, (args)->{
         	Endpoint endpoint = (Endpoint)args[0];
         	System.out.println("Connection from peer: "+endpoint.getOtherEndpointId());
@@ -330,6 +400,7 @@ public class FileSharingPeer {
 		String query = String.join(",",keywords);
 		// connect to the index server and tell it the files we are sharing
 		PeerManager peerManager = new PeerManager(peerPort);
+		peerManager.setSocketProfile(socketProfile);
         ClientManager clientManager = peerManager.connect(indexServerPort, host);
         clientManager.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
@@ -362,7 +433,7 @@ public class FileSharingPeer {
 					+endpoint.getOtherEndpointId());
 		});
         clientManager.start();
-        clientManager.join(); // wait for the query to finish
+        clientManager.joinThread(); // wait for the query to finish
         /*
          * We also have to join with any other client managers that were started for
          * download purposes.
@@ -389,6 +460,7 @@ public class FileSharingPeer {
         options.addOption("port",true,"peer server port, an integer");
         options.addOption("host",true,"index server hostname, a string");
         options.addOption("indexServerPort",true,"index server port, an integer");
+        options.addOption("socketProfile",true,"socket profile: bulk, interactive or default");
         Option optionShare = new Option("share",true,"list of files to share");
         optionShare.setArgs(Option.UNLIMITED_VALUES);
         options.addOption(optionShare);
@@ -429,6 +501,16 @@ public class FileSharingPeer {
         }
         
         
+        if(cmd.hasOption("socketProfile")) {
+        	try {
+        		socketProfile = SocketProfile.forName(cmd.getOptionValue("socketProfile"));
+        	} catch (IllegalArgumentException e) {
+        		System.out.println("-socketProfile requires one of interactive, bulk or default, parsed: "+
+        				cmd.getOptionValue("socketProfile"));
+        		help(options);
+        	}
+        }
+        
         // start up the client
         log.info("PB Peer starting up");
  
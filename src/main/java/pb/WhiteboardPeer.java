@@ -11,6 +11,7 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import pb.app.WhiteboardApp;
+import pb.managers.SocketProfile;
 import pb.utils.Utils;
 
 /**
@@ -37,6 +38,11 @@ public class WhiteboardPeer {
 	 */
 	private static String host=Utils.serverHost; // default host for the index server
 	
+	/**
+	 * socket options for connections, whiteboard updates are small and frequent
+	 */
+	private static SocketProfile socketProfile=SocketProfile.interactive();
+	
 	/**
 	 * Print some help.
 	 * @param options
@@ -58,6 +64,7 @@ public class WhiteboardPeer {
         options.addOption("port",true,"peer server port, an integer");
         options.addOption("host",true,"whiteboard server hostname, a string");
         options.addOption("whiteboardServerPort",true,"whiteboard server port, an integer");
+        options.addOption("socketProfile",true,"socket profile: interactive, bulk or default");
 		
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
@@ -91,7 +98,18 @@ public class WhiteboardPeer {
         	host = cmd.getOptionValue("host");
         }
         
-		WhiteboardApp whiteboard = new WhiteboardApp(peerPort,host,whiteboardServerPort);
+        if(cmd.hasOption("socketProfile")) {
+        	try {
+        		socketProfile = SocketProfile.forName(cmd.getOptionValue("socketProfile"));
+        	} catch (IllegalArgumentException e) {
+        		System.out.println("-socketProfile requires one of interactive, bulk or default, parsed: "+
+        				cmd.getOptionValue("socketProfile"));
+        		help(options);
+        	}
+        }
+        
+		WhiteboardApp whiteboard = new WhiteboardApp(peerPort,host,whiteboardServerPort,
+				socketProfile);
 		whiteboard.waitToFinish();
 		Utils.getInstance().cleanUp();
 	}
@@ -1,8 +1,7 @@
 package pb;
 
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -84,8 +83,9 @@ public class WhiteboardServer {
 	 * Default port number.
 	 */
 	private static int port = Utils.indexServerPort;
-	private static List<String> boardNames = new LinkedList<String>();
-	private static List <Endpoint> endpointList = new LinkedList<Endpoint>();
+	// sessions start, and boards are shared, on each client's own thread
+	private static CopyOnWriteArrayList<String> boardNames = new CopyOnWriteArrayList<String>();
+	private static CopyOnWriteArrayList<Endpoint> endpointList = new CopyOnWriteArrayList<Endpoint>();
 
 
 	private static void help(Options options){
@@ -106,6 +106,13 @@ public class WhiteboardServer {
 		Options options = new Options();
 		options.addOption("port",true,"server port, an integer");
 		options.addOption("password",true,"password for server");
+		options.addOption("backlog",true,"connections that can wait to be accepted, an integer");
+		options.addOption("acceptors",true,"threads accepting connections, an integer");
+		options.addOption("acceptRate",true,"most connections started per second, an integer");
+		options.addOption("maxClients",true,"most clients admitted at once, an integer");
+		options.addOption("maxHandshakes",true,"most clients admitted but not yet in a session, an integer");
+		options.addOption("maxHeap",true,"fraction of the heap in use over which clients are refused");
+		options.addOption("drainTimeout",true,"ms each phase of shutting down may take before escalating, an integer");
 
 
 		CommandLineParser parser = new DefaultParser();
@@ -133,6 +140,34 @@ public class WhiteboardServer {
 		} else {
 			serverManager = new ServerManager(port);
 		}
+		
+		try {
+			if(cmd.hasOption("backlog"))
+				serverManager.setBacklog(Integer.parseInt(cmd.getOptionValue("backlog")));
+			if(cmd.hasOption("acceptors"))
+				serverManager.setNumAcceptors(Integer.parseInt(cmd.getOptionValue("acceptors")));
+			if(cmd.hasOption("acceptRate")) {
+				int acceptRate=Integer.parseInt(cmd.getOptionValue("acceptRate"));
+				serverManager.setAcceptRate(acceptRate,Math.max(1,acceptRate));
+			}
+		} catch (IllegalArgumentException e){
+			System.out.println("-backlog, -acceptors and -acceptRate require positive integers");
+			help(options);
+		}
+		
+		try {
+			if(cmd.hasOption("maxClients"))
+				serverManager.setMaxLiveEndpoints(Integer.parseInt(cmd.getOptionValue("maxClients")));
+			if(cmd.hasOption("maxHandshakes"))
+				serverManager.setMaxPendingHandshakes(Integer.parseInt(cmd.getOptionValue("maxHandshakes")));
+			if(cmd.hasOption("maxHeap"))
+				serverManager.setMaxHeapUsage(Double.parseDouble(cmd.getOptionValue("maxHeap")));
+			if(cmd.hasOption("drainTimeout"))
+				serverManager.setDrainTimeout(Long.parseLong(cmd.getOptionValue("drainTimeout")));
+		} catch (IllegalArgumentException e){
+			System.out.println("-maxClients, -maxHandshakes and -drainTimeout require integers, -maxHeap a number between 0 and 1");
+			help(options);
+		}
 
 
 		/**
@@ -142,8 +177,7 @@ public class WhiteboardServer {
 		serverManager.on(ServerManager.sessionStarted,(eventArgs)->{
 			Endpoint endpoint = (Endpoint)eventArgs[0];
 			log.info("Client session started: "+endpoint.getOtherEndpointId());
-			if (!endpointList.contains(endpoint)) {
-				endpointList.add(endpoint);
+			if (endpointList.addIfAbsent(endpoint)) {
 				for(String names : boardNames){
 					endpoint.emit(sharingBoard, names);
 				}
@@ -151,9 +185,7 @@ public class WhiteboardServer {
 			endpoint.on(shareBoard, (eventArgs2)->{
 				String shareBoardName = (String) eventArgs2[0];
 				log.info("Received a being shared board: " + shareBoardName);
-				if (!boardNames.contains(shareBoardName)) {
-					boardNames.add(shareBoardName);
-				}
+				boardNames.addIfAbsent(shareBoardName);
 				System.out.println(shareBoardName);
 				for (Endpoint e : endpointList){
 					e.emit(sharingBoard,shareBoardName);
@@ -183,7 +215,7 @@ public class WhiteboardServer {
 		log.info("Whiteboard Server starting up");
 		serverManager.start();
 		// nothing more for the main thread to do
-		serverManager.join();
+		serverManager.joinThread();
 		Utils.getInstance().cleanUp();
 
 	}
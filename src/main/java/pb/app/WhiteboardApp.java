@@ -4,6 +4,7 @@ import pb.IndexServer;
 import pb.WhiteboardServer;
 import pb.managers.ClientManager;
 import pb.managers.PeerManager;
+import pb.managers.SocketProfile;
 import pb.managers.endpoint.Endpoint;
 import pb.utils.Utils;
 
@@ -15,6 +16,8 @@ import java.awt.event.*;
 import java.net.UnknownHostException;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.logging.Logger;
 
 import javax.swing.BoxLayout;
@@ -188,11 +191,21 @@ public class WhiteboardApp {
 	 */
 	public WhiteboardApp(int peerPort,String whiteboardServerHost,
 						 int whiteboardServerPort) {
+		this(peerPort,whiteboardServerHost,whiteboardServerPort,SocketProfile.interactive());
+	}
+
+	/**
+	 * Initialize the white board app, with the socket options for its connections.
+	 */
+	public WhiteboardApp(int peerPort,String whiteboardServerHost,
+						 int whiteboardServerPort,SocketProfile socketProfile) {
 		whiteboards = new HashMap<>();
-		endpoints = new HashMap<>();
-		endpointListen = new HashMap<>();
+		// peers connect, and listen to boards, on their own threads
+		endpoints = new ConcurrentHashMap<>();
+		endpointListen = new ConcurrentHashMap<>();
 		this.peerport = String.format("%s:%d", whiteboardServerHost, peerPort);
 		PeerManager peerManager = new PeerManager(peerPort);
+		peerManager.setSocketProfile(socketProfile);
 		show(peerport);
 		try {
 			connectToServer(peerPort, peerManager, whiteboardServerHost, whiteboardServerPort);
@@ -329,7 +342,7 @@ public class WhiteboardApp {
 					+endpoint.getOtherEndpointId());
 		});
 		clientManager.start();
-		clientManager.join();
+		clientManager.joinThread();
 		peerManager.joinWithClientManagers();
 	}
 
@@ -348,10 +361,17 @@ public class WhiteboardApp {
 		}
 		clientManager.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
+			boolean resumed = args.length > 2 && (Boolean)args[2];
 			System.out.println("Connected to other peer: "+endpoint.getOtherEndpointId());
 			endpoints.put(getBoardName(data), endpoint);
-			Whiteboard whiteboard = new Whiteboard(getBoardName(data), true);
-			addBoard(whiteboard, false);
+			Whiteboard whiteboard;
+			if (resumed && whiteboards.containsKey(getBoardName(data))) {
+				// the updates missed while disconnected are replayed, so keep the board
+				whiteboard = whiteboards.get(getBoardName(data));
+			} else {
+				whiteboard = new Whiteboard(getBoardName(data), true);
+				addBoard(whiteboard, false);
+			}
 			endpoint.on(boardData, (args2)->{
 				String boarddata = (String)args2[0];
 				whiteboard.whiteboardFromString(getBoardName(boarddata), getBoardData(boarddata));
@@ -405,7 +425,7 @@ public class WhiteboardApp {
 			System.out.println("Connected from peer: "+endpoint.getOtherEndpointId());
 			endpoints.put(getBoardName(data), endpoint);
 			if (!endpointListen.containsKey(getBoardName(data))) {
-				Set<Endpoint> inti = new HashSet<>();
+				Set<Endpoint> inti = new CopyOnWriteArraySet<>();
 				endpointListen.put(getBoardName(data), inti);
 			}
 			endpoint.on(getBoardData, (args2)-> {
@@ -416,7 +436,7 @@ public class WhiteboardApp {
 			}).on(listenBoard, (args2)->{
 				String listenboard = (String)args2[0];
 				if (!endpointListen.containsKey(getBoardName(listenboard))) {
-					Set<Endpoint> endlisten = new HashSet<>();
+					Set<Endpoint> endlisten = new CopyOnWriteArraySet<>();
 					endlisten.add(endpoints.get(getBoardName(listenboard)));
 					endpointListen.put(getBoardName(listenboard), endlisten);
 				} else if (!endpointListen.get(getBoardName(listenboard)).contains(endpoints.get(getBoardName(listenboard)))) {
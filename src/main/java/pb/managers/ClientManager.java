@@ -3,23 +3,42 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
+import pb.managers.endpoint.ChannelEndpoint;
 import pb.managers.endpoint.Endpoint;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
+import pb.protocols.ICallback;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
 import pb.protocols.event.EventProtocol;
 import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.keepalive.KeepAliveSweeper;
 import pb.protocols.session.ISessionProtocolHandler;
+import pb.protocols.session.ResumableSession;
 import pb.protocols.session.SessionProtocol;
 
 /**
- * Manages the connection to the server and the client's state.
+ * Manages the connection to the server and the client's state. A client
+ * manager can instead carry its session as a logical channel on the
+ * connection of another client manager to the same server, see
+ * {@link #ClientManager(ClientManager)}, in which case the channel is
+ * opened again, and the session resumed, whenever that connection is.
+ * <br/>
+ * When the connection ends in error it is made again, as the
+ * {@link pb.managers.RetryPolicy} says, waiting longer after each failure,
+ * or as long as the server asked if it was too busy. The server's address
+ * is resolved once and kept until a connection to it fails. The number of
+ * attempts and retries and how long connecting takes are reported, see
+ * {@link #toString()}.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -38,9 +57,13 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	
 	/**
-	 * Emitted when a session on an endpoint is ready for use.
+	 * Emitted when a session on an endpoint is ready for use, and whether
+	 * it is a session resumed after a lost connection, in which case the
+	 * events missed have been sent again and nothing needs to be fetched
+	 * afresh.
 	 * <ul>
 	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * <li>{@code args[1] instanceof Boolean}</li>
 	 * </ul>
 	 */
 	public static final String sessionStarted="SESSION_STARTED";
@@ -84,9 +107,100 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	private int port;
 	
 	/**
-	 * When a connection fails, should we retry.
+	 * When a connection fails, should we retry. Set before the endpoint is
+	 * closed, as it may be closed by a thread sending over it.
 	 */
-	private boolean shouldWeRetry=false;
+	private volatile boolean shouldWeRetry=false;
+	
+	/**
+	 * How to connect and reconnect.
+	 */
+	private volatile RetryPolicy retryPolicy=RetryPolicy.defaults();
+	
+	/**
+	 * The server's address, once resolved, until a connection to it fails.
+	 */
+	private InetAddress address=null;
+	
+	/**
+	 * Whether a session started on the current connection.
+	 */
+	private volatile boolean sessionWasStarted=false;
+	
+	/**
+	 * Statistics, only updated by this manager's thread.
+	 */
+	private volatile long connectAttempts=0;
+	private volatile long connectFailures=0;
+	private volatile long retries=0;
+	private volatile long totalConnectLatency=0;
+	private volatile long maxConnectLatency=0;
+	
+	/**
+	 * How long the server asked us to wait before reconnecting, in ms, or 0
+	 * if it did not refuse the session.
+	 */
+	private volatile long retryAfter=0;
+	
+	/**
+	 * The session to resume if the connection is lost, or null.
+	 */
+	private volatile ResumableSession resumableSession=null;
+	
+	/**
+	 * Number of events kept to send again should the session be resumed,
+	 * or 0 to not resume sessions.
+	 */
+	private volatile int replayCapacity=ResumableSession.defaultReplayCapacity;
+	
+	/**
+	 * Checks that the connection is alive.
+	 */
+	private volatile KeepAliveSweeper keepAliveSweeper=KeepAliveSweeper.getInstance();
+	
+	/**
+	 * Applied to the connection before it is made.
+	 */
+	private volatile SocketProfile socketProfile=SocketProfile.defaults();
+	
+	/**
+	 * How long to wait for the carrier's session to start, in ms.
+	 */
+	private static final int carrierTimeout=10000;
+	
+	/**
+	 * The client manager whose connection carries our session as a
+	 * logical channel, or null if we make a connection of our own.
+	 */
+	private final ClientManager carrier;
+	
+	/**
+	 * Whether our connection only carries the sessions of other client
+	 * managers as logical channels.
+	 */
+	private volatile boolean carriesOnly=false;
+	
+	/**
+	 * Set once the client manager is shut down, after which it does not
+	 * connect or open a channel again.
+	 */
+	private volatile boolean shuttingDown=false;
+	
+	/**
+	 * Called once we no longer use the carrier, or null.
+	 */
+	private volatile ICallback carrierReleased=null;
+	
+	/**
+	 * The endpoint whose session has started, null while there is none,
+	 * the channel we have open on the carrier's connection, null once it
+	 * has closed, and whether this manager has finished, guarded by the lock.
+	 */
+	private Endpoint sessionEndpoint=null;
+	private Endpoint channel=null;
+	private boolean finished=false;
+	private final ReentrantLock sessionLock=new ReentrantLock();
+	private final Condition sessionChanged=sessionLock.newCondition();
 	
 	/**
 	 * Initialise the client manage with a host and port to connect to.
@@ -98,34 +212,357 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	public ClientManager(String host,int port) throws UnknownHostException, InterruptedException {
 		this.host=host;
 		this.port=port;
+		this.carrier=null;
+	}
+	
+	/**
+	 * Initialise the client manager to carry its session as a logical
+	 * channel on the connection of another client manager, once that has
+	 * a session. When that connection is lost the channel is opened again
+	 * on the carrier's next one, as the retry policy allows, and the session
+	 * resumed. If the carrier finishes, or the server does not accept
+	 * channels, a connection of our own is made after all.
+	 * @param carrier
+	 */
+	public ClientManager(ClientManager carrier) {
+		this.host=carrier.host;
+		this.port=carrier.port;
+		this.carrier=carrier;
+	}
+	
+	/**
+	 * Set the socket options applied to the connection. Must be called
+	 * before the client manager is started.
+	 * @param socketProfile
+	 */
+	public void setSocketProfile(SocketProfile socketProfile) {
+		this.socketProfile=socketProfile;
+	}
+	
+	/**
+	 * Set how to connect and reconnect. Must be called before the client
+	 * manager is started.
+	 * @param retryPolicy
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy=retryPolicy;
+	}
+	
+	/**
+	 * 
+	 * @return how to connect and reconnect
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+	
+	/**
+	 * Set how many events are kept to send again should the session be
+	 * resumed; should be as many as the server keeps. Must be called
+	 * before the client manager is started.
+	 * @param replayCapacity or 0 to not resume sessions
+	 */
+	public void setReplayCapacity(int replayCapacity) {
+		if(replayCapacity<0) throw new IllegalArgumentException("invalid replay capacity");
+		this.replayCapacity=replayCapacity;
+	}
+	
+	/**
+	 * 
+	 * @return number of events kept to send again, or 0 if sessions are
+	 * not resumed
+	 */
+	public int getReplayCapacity() {
+		return replayCapacity;
+	}
+	
+	/**
+	 * Set the sweeper that checks the connection is alive, in place of the
+	 * one shared by client managers. Must be called before the client
+	 * manager is started.
+	 * @param keepAliveSweeper
+	 */
+	public void setKeepAliveSweeper(KeepAliveSweeper keepAliveSweeper) {
+		this.keepAliveSweeper=keepAliveSweeper;
+	}
+	
+	@Override
+	public KeepAliveSweeper getKeepAliveSweeper() {
+		return keepAliveSweeper;
+	}
+	
+	/**
+	 * Set what to call once this manager no longer uses its carrier, as its
+	 * session has ended or it has made a connection of its own. Must be
+	 * called before the client manager is started.
+	 * @param carrierReleased
+	 */
+	void setCarrierReleased(ICallback carrierReleased) {
+		this.carrierReleased=carrierReleased;
 	}
 	
+	/**
+	 * Set whether our connection only carries the sessions of other client
+	 * managers as logical channels, which the server is told so that it
+	 * neither reports our own session nor counts it against its limits.
+	 * Must be called before the client manager is started.
+	 * @param carriesOnly
+	 */
+	void setCarriesOnly(boolean carriesOnly) {
+		this.carriesOnly=carriesOnly;
+	}
+	
+	/**
+	 * Stop the session, if there is one, and don't connect or open a
+	 * channel again.
+	 */
 	@Override
 	public void shutdown() {
-		sessionProtocol.stopSession();
+		shuttingDown=true;
+		SessionProtocol protocol=sessionProtocol;
+		if(protocol!=null) protocol.stopSession();
+		if(carrier!=null) {
+			// stop waiting for the carrier
+			carrier.sessionLock.lock();
+			try {
+				carrier.sessionChanged.signalAll();
+			} finally {
+				carrier.sessionLock.unlock();
+			}
+		}
 	}
 	
 	@Override
 	public void run() {
-		int retries=10;
-		while(retries-- > 0) {
-			if(attemptToConnect(host,port)) {
-				// the connection ended in error, so let's just
-				// try to get it back up, transparently to the
-				// higher layer
+		try {
+			if(carrier!=null) {
 				try {
-					Thread.sleep(5000); // short pause before retrying
+					startCarrier();
+					if(carryWithRetries()) return;
 				} catch (InterruptedException e) {
+					return;
+				} finally {
+					ICallback callback=carrierReleased;
+					if(callback!=null) callback.callback();
+				}
+				log.info("no connection to carry the session, connecting to "+host+":"+port);
+			}
+			connectWithRetries();
+		} finally {
+			sessionLock.lock();
+			try {
+				finished=true;
+				sessionChanged.signalAll();
+			} finally {
+				sessionLock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Connect, and keep reconnecting after errors for as long as the retry
+	 * policy allows.
+	 */
+	private void connectWithRetries() {
+		int attempt=0; // retries since a session last started
+		long start=System.nanoTime();
+		while(!shuttingDown && attemptToConnect(host,port)) {
+			// the connection ended in error, so let's just
+			// try to get it back up, transparently to the
+			// higher layer
+			if(sessionWasStarted) {
+				attempt=0;
+				start=System.nanoTime();
+			}
+			long elapsed=TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start);
+			if(!retryPolicy.shouldRetry(attempt,elapsed)) {
+				log.severe("no more retries, giving up: "+this);
+				return;
+			}
+			// when the server said to if it was busy
+			long pause=retryAfter>0 ? retryAfter : retryPolicy.backoff(attempt);
+			attempt++;
+			retries++;
+			log.info("retrying in "+pause+" ms");
+			try {
+				Thread.sleep(pause); // pause before retrying
+			} catch (InterruptedException e) {
+				continue;
+			}
+		}
+		// connection ended cleanly, so we can terminate this manager
+	}
+	
+	/**
+	 * Carry the session as a logical channel on the carrier's connection,
+	 * and open the channel again on the carrier's next connection, to
+	 * resume the session, each time it ends in error, for as long as the
+	 * retry policy allows.
+	 * @return false if the session can't be carried, as the carrier has
+	 * finished or the server does not accept channels, else true once the
+	 * session has ended
+	 * @throws InterruptedException
+	 */
+	private boolean carryWithRetries() throws InterruptedException {
+		int attempt=0; // retries since a session last started
+		long start=System.nanoTime();
+		Endpoint closed=null; // a carrier endpoint that closed under us
+		while(!shuttingDown) {
+			shouldWeRetry=false;
+			retryAfter=0;
+			sessionWasStarted=false;
+			Endpoint carrierEndpoint=awaitCarrier(closed);
+			if(carrierEndpoint!=null) {
+				ChannelEndpoint channel=carrierEndpoint.openChannel(this);
+				if(channel==null) {
+					if(!carrierEndpoint.usesChannels()) return false;
+					// the connection is closing, wait for the next one
+					closed=carrierEndpoint;
 					continue;
-				} 
+				}
+				log.info("opened channel "+channel.getChannelId()+" to "+
+						carrierEndpoint.getOtherEndpointId());
+				carry(channel);
+			} else if(carrier.hasFinished()) {
+				return false;
+			} else if(!shuttingDown) {
+				shouldWeRetry=true; // the carrier is still connecting
+			}
+			if(!shouldWeRetry) return true;
+			if(sessionWasStarted) {
+				attempt=0;
+				start=System.nanoTime();
+			}
+			long elapsed=TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start);
+			if(!retryPolicy.shouldRetry(attempt,elapsed)) {
+				log.severe("no more retries, giving up: "+this);
+				return true;
+			}
+			// the carrier backs off by itself when its connection is lost,
+			// so only back off if the channel was lost on a live connection
+			long pause=retryAfter;
+			if(pause==0 && carrierEndpoint!=null && carrier.awaitSession(0)==carrierEndpoint) {
+				pause=retryPolicy.backoff(attempt);
+			}
+			attempt++;
+			retries++;
+			if(pause>0) {
+				log.info("opening channel again in "+pause+" ms");
+				Thread.sleep(pause);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Start the carrier, unless another client manager it carries already
+	 * has, as it only connects once one of them is started.
+	 */
+	private void startCarrier() {
+		carrier.sessionLock.lock();
+		try {
+			if(carrier.getState()==Thread.State.NEW) carrier.start();
+		} finally {
+			carrier.sessionLock.unlock();
+		}
+	}
+	
+	/**
+	 * Wait for the carrier's session to start.
+	 * @param closed an endpoint of the carrier known to be closing, or null
+	 * @return the carrier's endpoint with the session, or null if there is
+	 * none in time, the carrier has finished or we are shutting down
+	 * @throws InterruptedException
+	 */
+	private Endpoint awaitCarrier(Endpoint closed) throws InterruptedException {
+		long nanos=TimeUnit.MILLISECONDS.toNanos(carrierTimeout);
+		carrier.sessionLock.lock();
+		try {
+			while((carrier.sessionEndpoint==null || carrier.sessionEndpoint==closed) &&
+					!carrier.finished && !shuttingDown && nanos>0) {
+				nanos=carrier.sessionChanged.awaitNanos(nanos);
+			}
+			if(shuttingDown || carrier.sessionEndpoint==closed) return null;
+			return carrier.sessionEndpoint;
+		} finally {
+			carrier.sessionLock.unlock();
+		}
+	}
+	
+	/**
+	 * Start the channel, and wait for it to close.
+	 * @param channel
+	 * @throws InterruptedException
+	 */
+	private void carry(ChannelEndpoint channel) throws InterruptedException {
+		sessionLock.lock();
+		try {
+			this.channel=channel;
+		} finally {
+			sessionLock.unlock();
+		}
+		channel.start();
+		sessionLock.lock();
+		try {
+			while(this.channel==channel) sessionChanged.await();
+		} finally {
+			sessionLock.unlock();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return true if this manager has finished
+	 */
+	boolean hasFinished() {
+		sessionLock.lock();
+		try {
+			return finished;
+		} finally {
+			sessionLock.unlock();
+		}
+	}
+	
+	/**
+	 * Wait for a session to start.
+	 * @param timeout in ms
+	 * @return the endpoint with the session, or null if there is none in
+	 * time or this manager has finished
+	 * @throws InterruptedException
+	 */
+	public Endpoint awaitSession(long timeout) throws InterruptedException {
+		long nanos=TimeUnit.MILLISECONDS.toNanos(timeout);
+		sessionLock.lock();
+		try {
+			while(sessionEndpoint==null && !finished && nanos>0) {
+				nanos=sessionChanged.awaitNanos(nanos);
+			}
+			return sessionEndpoint;
+		} finally {
+			sessionLock.unlock();
+		}
+	}
+	
+	/**
+	 * Record the endpoint whose session has started, or that it has ended.
+	 * @param endpoint
+	 * @param started
+	 */
+	private void sessionChanged(Endpoint endpoint, boolean started) {
+		sessionLock.lock();
+		try {
+			if(started) {
+				sessionEndpoint=endpoint;
 			} else {
-				// connection ended cleanly, so we can terminate this manager
-				return;
+				if(sessionEndpoint==endpoint) sessionEndpoint=null;
+				if(channel==endpoint) channel=null;
 			}
+			sessionChanged.signalAll();
+		} finally {
+			sessionLock.unlock();
 		}
-		log.severe("no more retries, giving up");
-		
 	}
+	
 	/**
 	 * Attempt to connect.
 	 * @param host
@@ -135,15 +572,22 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	private boolean attemptToConnect(final String host,final int port) {
 		shouldWeRetry=false; // may be set to true by another thread
 						     // if errors occur on the connection
+		retryAfter=0;
+		sessionWasStarted=false;
 		log.info("attempting to connect to "+host+":"+port);
 		try {
-			socket=new Socket(InetAddress.getByName(host),port);
+			if(address==null) address=InetAddress.getByName(host);
+			socket=new Socket();
+			socketProfile.apply(socket);
+			connect(socket,port);
 			Endpoint endpoint = new Endpoint(socket,this);
+			endpoint.setUseVirtualThread(usesVirtualThread());
+			endpoint.setCarrier(carriesOnly);
 			endpoint.start();
 
 			try {
 				// just wait for this thread to terminate
-				endpoint.join();
+				endpoint.joinThread();
 			} catch (InterruptedException e) {
 				// just make sure the endpoint has done everything it should
 				endpoint.close();
@@ -163,6 +607,29 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 		return shouldWeRetry;
 	}
 	
+	/**
+	 * Connect a socket to the server, recording how long it takes, and
+	 * forgetting the server's address if it fails.
+	 * @param socket
+	 * @param port
+	 * @throws IOException if the connection could not be made in time
+	 */
+	private void connect(Socket socket, int port) throws IOException {
+		connectAttempts++;
+		long start=System.nanoTime();
+		try {
+			socket.connect(new InetSocketAddress(address,port),retryPolicy.getConnectTimeout());
+		} catch (IOException e) {
+			connectFailures++;
+			address=null; // look it up again in case it has moved
+			log.warning("could not connect to "+host+":"+port+": "+e.getMessage());
+			throw e;
+		}
+		long latency=System.nanoTime()-start;
+		totalConnectLatency+=latency;
+		if(latency>maxConnectLatency) maxConnectLatency=latency;
+	}
+	
 	/**
 	 * The endpoint is ready to use.
 	 * @param endpoint
@@ -179,6 +646,8 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 			// hmmm, so the server is requesting a session start?
 			log.warning("server initiated the session protocol... weird");
 		}
+		// a channel's connection is kept alive by its carrier
+		if(endpoint.isChannel()) return;
 		KeepAliveProtocol keepAliveProtocol = new KeepAliveProtocol(endpoint,this);
 		try {
 			// we need to add it to the endpoint before starting it
@@ -196,6 +665,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public void endpointClosed(Endpoint endpoint) {
 		log.info("connection with server terminated");
+		sessionChanged(endpoint,false);
 	}
 	
 	/**
@@ -206,9 +676,9 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointDisconnectedAbruptly(Endpoint endpoint) {
 		log.severe("connection with server terminated abruptly");
+		shouldWeRetry=true;
 		localEmit(sessionError,endpoint);
 		endpoint.close();
-		shouldWeRetry=true;
 	}
 
 	/**
@@ -230,9 +700,9 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointTimedOut(Endpoint endpoint,Protocol protocol) {
 		log.severe("server has timed out");
+		shouldWeRetry=true;
 		localEmit(sessionError,endpoint);
 		endpoint.close();
-		shouldWeRetry=true;
 	}
 
 	/**
@@ -253,6 +723,11 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStarted(Endpoint endpoint) {
 		log.info("session has started with server");
+		if(shuttingDown) {
+			// shut down while the session was starting
+			sessionProtocol.stopSession();
+			return;
+		}
 		
 		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
 		try {
@@ -262,9 +737,77 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 			// hmmm... already requested by the client
 		}
 		
-		localEmit(sessionStarted,endpoint);
+		sessionWasStarted=true;
+		resumableSession=endpoint.getResumableSession();
+		boolean resumed=resumableSession!=null && resumableSession.isResumed();
+		if(resumed) log.info("session resumed with server");
+		sessionChanged(endpoint,true);
+		localEmit(sessionStarted,endpoint,resumed);
 	}
 
+	/**
+	 * The server has asked for a session to start, which is only accepted.
+	 * @param endpoint
+	 * @return 0
+	 */
+	@Override
+	public long sessionRequested(Endpoint endpoint) {
+		return 0;
+	}
+	
+	/**
+	 * The server was too busy to start the session; try again when it
+	 * said to.
+	 * @param endpoint
+	 * @param retryAfter in ms
+	 */
+	@Override
+	public void sessionRefused(Endpoint endpoint, long retryAfter) {
+		log.warning("server is busy, retrying after "+retryAfter+" ms");
+		this.retryAfter=retryAfter;
+		shouldWeRetry=true;
+		localEmit(sessionError,endpoint);
+		endpoint.close();
+	}
+	
+	/**
+	 * 
+	 * @param endpoint
+	 * @return the session of the connection that was lost, if any
+	 */
+	@Override
+	public ResumableSession sessionToResume(Endpoint endpoint) {
+		return resumableSession;
+	}
+	
+	/**
+	 * The server does not ask the client to start sessions.
+	 * @param endpoint
+	 * @param token
+	 * @param lastReceived
+	 * @param oldestKept
+	 * @return null
+	 */
+	@Override
+	public ResumableSession resumeSession(Endpoint endpoint, String token, long lastReceived,
+			long oldestKept) {
+		return null;
+	}
+	
+	/**
+	 * Keep the session the server started, to resume it should the
+	 * connection be lost.
+	 * @param endpoint
+	 * @param token
+	 * @return the session, or null if sessions are not resumed
+	 */
+	@Override
+	public ResumableSession sessionGiven(Endpoint endpoint, String token) {
+		int capacity=replayCapacity;
+		if(capacity==0) return null;
+		return new ResumableSession(token,capacity);
+	}
+	
 	/**
 	 * The session protocol is indicating that the session has stopped. 
 	 * @param endpoint
@@ -272,6 +815,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with server");
+		resumableSession=null; // stopped cleanly, so nothing to resume
 		localEmit(sessionStopped,endpoint);
 		endpoint.close(); // this will stop all the protocols as well
 	}
@@ -297,4 +841,53 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 			return false;
 		}
 	}
+	
+	/**
+	 * 
+	 * @return number of connections attempted
+	 */
+	public long getConnectAttempts() {
+		return connectAttempts;
+	}
+	
+	/**
+	 * 
+	 * @return number of connections that could not be made
+	 */
+	public long getConnectFailures() {
+		return connectFailures;
+	}
+	
+	/**
+	 * 
+	 * @return number of times the connection was made again after an error
+	 */
+	public long getRetries() {
+		return retries;
+	}
+	
+	/**
+	 * 
+	 * @return average time, in ms, to make a connection
+	 */
+	public double getAverageConnectLatency() {
+		long n=connectAttempts-connectFailures;
+		return n==0 ? 0 : totalConnectLatency/(n*1e6);
+	}
+	
+	/**
+	 * 
+	 * @return longest time, in ms, to make a connection
+	 */
+	public double getMaxConnectLatency() {
+		return maxConnectLatency/1e6;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%d connection attempts, %d failed, %d retries, "+
+				"connect latency %.1f ms average, %.1f ms max",getConnectAttempts(),
+				getConnectFailures(),getRetries(),getAverageConnectLatency(),
+				getMaxConnectLatency());
+	}
 }
@@ -1,12 +1,24 @@
 package pb.managers;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import pb.utils.ManagedThread;
+import pb.utils.Threads;
+import pb.utils.TokenBucket;
+
 /**
  * Listen for connections on a given port number and pass them to the
  * {@link pb.managers.ServerManager} using
@@ -14,27 +26,76 @@ import java.util.logging.Logger;
  * {@link pb.managers.ServerManager} is responsible for creating a thread for this
  * connection, else the IOThread will not accept any more connections until this
  * connection is finished.
- * 
+ * <br/>
+ * Connections are accepted by one or more acceptor threads, as fast as they
+ * arrive, so that the listen backlog does not overflow and connections are
+ * not refused when many clients connect at once. Accepted connections wait
+ * in a queue, as long as the backlog, until the IOThread passes them on,
+ * no faster than the accept rate if one is set; if the queue fills up, the
+ * acceptors stop accepting until there is room. The backlog, number of
+ * acceptors, bind address and accept rate are taken from the
+ * {@link pb.managers.ServerManager}. The depth of the queue and how long
+ * connections wait in it are reported, see {@link #toString()}.
+ *
  * @see {@link pb.managers.ServerManager}
  * @author aaron
  *
  */
-public class IOThread extends Thread {
+public class IOThread extends ManagedThread {
 	private static Logger log = Logger.getLogger(IOThread.class.getName());
 	private ServerSocket serverSocket=null;
-	private int port;
-	private ServerManager serverManager;
-	
+	protected int port;
+	protected ServerManager serverManager;
+
 	/**
 	 * Emitted when the io thread has started. The argument
-	 * provides the io thread's Internet address in the 
+	 * provides the io thread's Internet address in the
 	 * form "host:port"
 	 * <ol>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ol>
 	 */
 	public static final String ioThread = "IO_THREAD";
-	
+
+	/**
+	 * An accepted connection waiting to be passed to the ServerManager.
+	 */
+	private static class Pending {
+		private final Closeable connection;
+		private final Runnable admit;
+		private final long acceptedAt=System.nanoTime();
+
+		Pending(Closeable connection, Runnable admit) {
+			this.connection=connection;
+			this.admit=admit;
+		}
+	}
+
+	/**
+	 * Accepted connections waiting to be passed on.
+	 */
+	private final BlockingQueue<Pending> pending;
+
+	/**
+	 * Limits the rate connections are passed on, or null if there is no limit.
+	 */
+	private final TokenBucket acceptRate;
+
+	/**
+	 * Threads accepting connections, other than this one.
+	 */
+	private final List<Thread> acceptors=new ArrayList<>();
+
+	/**
+	 * Statistics.
+	 */
+	private final AtomicLong accepted=new AtomicLong();
+	private final AtomicLong admitted=new AtomicLong();
+	private final AtomicLong deferred=new AtomicLong();
+	private final AtomicLong totalLatency=new AtomicLong();
+	private final AtomicLong maxLatency=new AtomicLong();
+	private volatile int maxDepth=0;
+
 	/**
 	 * Initialise the IOThread with a port number to listen on and reference
 	 * to the {@link pb.managers.ServerManager}.
@@ -43,13 +104,35 @@ public class IOThread extends Thread {
 	 * @throws IOException whenever the server socket can't be created
 	 */
 	public IOThread(int port, ServerManager serverManager) throws IOException{
-		serverSocket = new ServerSocket(port); // let's throw this since its potentially unrecoverable
-		this.port=port;
-		this.serverManager=serverManager;
+		this(serverManager,port);
+		serverSocket = new ServerSocket();
+		serverManager.getSocketProfile().apply(serverSocket);
+		try {
+			serverSocket.bind(new InetSocketAddress(serverManager.getBindAddress(),port),
+					serverManager.getBacklog());
+		} catch (IOException e) {
+			serverSocket.close();
+			throw e; // let's throw this since its potentially unrecoverable
+		}
 		setName("IOThread");
 		start();
 	}
-	
+
+	/**
+	 * Initialise the IOThread without creating a server socket or starting
+	 * the thread, for subclasses that accept connections differently.
+	 * @param serverManager to send connections to
+	 * @param port to listen on
+	 */
+	protected IOThread(ServerManager serverManager, int port) {
+		this.port=port;
+		this.serverManager=serverManager;
+		pending=new ArrayBlockingQueue<>(Math.max(1,serverManager.getBacklog()));
+		double rate=serverManager.getAcceptRate();
+		acceptRate = rate>0 ? new TokenBucket(rate,serverManager.getAcceptBurst()) : null;
+		setUseVirtualThread(serverManager.usesVirtualThread());
+	}
+
 	/**
 	 * Close the server socket and make sure the thread terminates.
 	 */
@@ -62,34 +145,211 @@ public class IOThread extends Thread {
 			}
 		interrupt();
 	}
-	
+
 	/**
-	 * Listen for connections and pass them to the ServerManager.
+	 *
+	 * @return true while connections are being accepted
+	 */
+	protected boolean isListening() {
+		return !serverSocket.isClosed();
+	}
+
+	/**
+	 * Start the acceptors, and pass the connections they accept to the
+	 * ServerManager until shut down.
 	 */
 	@Override
 	public void run() {
 		log.info("listening for connections on port "+port);
-		try {
-			serverManager.emit(ioThread,InetAddress.getLocalHost().getHostAddress()+":"+port);
-		} catch (UnknownHostException e1) {
-			log.severe("Could not get address of local host, continuing anyway, assuming 127.0.0.1");
-			serverManager.emit(ioThread,"127.0.0.1:"+port);
+		emitAddress();
+		int numAcceptors=numAcceptors();
+		for(int i=0;i<numAcceptors;i++) {
+			Runnable acceptor=this::accept;
+			String name=getName()+"-acceptor-"+i;
+			Thread thread;
+			if(usesVirtualThread()) {
+				thread=Threads.startVirtualThread(name,acceptor);
+			} else {
+				thread=new Thread(acceptor,name);
+				thread.start();
+			}
+			acceptors.add(thread);
+		}
+		admit();
+		log.info(getName()+" terminating: "+this);
+		for(Thread acceptor : acceptors) {
+			acceptor.interrupt();
+			try {
+				acceptor.join();
+			} catch (InterruptedException e) {
+				// keep going, the acceptors have been told to stop
+			}
 		}
-		while(!isInterrupted() && !serverSocket.isClosed()){
+		// the clients of connections not yet passed on will see them close
+		Pending connection;
+		while((connection=pending.poll())!=null) close(connection.connection);
+		closeListener();
+	}
+
+	/**
+	 *
+	 * @return number of acceptor threads to start
+	 */
+	protected int numAcceptors() {
+		return Math.max(1,serverManager.getNumAcceptors());
+	}
+
+	/**
+	 * Accept connections and queue them, until shut down. Run by each
+	 * acceptor thread.
+	 */
+	protected void accept() {
+		while(!isInterrupted() && isListening()){
 			Socket clientSocket;
 			try {
 				clientSocket = serverSocket.accept();
 				log.info("Received connection from "+clientSocket.getInetAddress());
-				serverManager.acceptClient(clientSocket);
+				enqueue(clientSocket,()->serverManager.acceptClient(clientSocket));
 			} catch (IOException e) {
-				log.warning("exception accepting connection: "+e.getMessage());
-			} 
+				if(isListening())
+					log.warning("exception accepting connection: "+e.getMessage());
+			} catch (InterruptedException e) {
+				break;
+			}
 		}
-		log.info("IOThread terminating");
+	}
+
+	/**
+	 * Queue an accepted connection to be passed on, waiting while the
+	 * queue is full.
+	 * @param connection the accepted connection
+	 * @param admit passes the connection to the ServerManager
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	protected void enqueue(Closeable connection, Runnable admit) throws InterruptedException {
+		accepted.incrementAndGet();
+		Pending p=new Pending(connection,admit);
+		if(!pending.offer(p)) {
+			try {
+				pending.put(p);
+			} catch (InterruptedException e) {
+				close(connection);
+				throw e;
+			}
+		}
+		int depth=pending.size();
+		if(depth>maxDepth) maxDepth=depth;
+	}
+
+	/**
+	 * Pass queued connections to the ServerManager, no faster than the
+	 * accept rate, until shut down.
+	 */
+	private void admit() {
+		while(!isInterrupted() && isListening()) {
+			try {
+				Pending connection=pending.poll(100,TimeUnit.MILLISECONDS);
+				if(connection==null) continue;
+				if(acceptRate!=null && !acceptRate.tryAcquire()) {
+					deferred.incrementAndGet();
+					acceptRate.acquire();
+				}
+				long latency=System.nanoTime()-connection.acceptedAt;
+				totalLatency.addAndGet(latency);
+				maxLatency.accumulateAndGet(latency,Math::max);
+				admitted.incrementAndGet();
+				connection.admit.run();
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	private static void close(Closeable connection) {
+		try {
+			connection.close();
+		} catch (IOException e) {
+			log.warning("exception closing connection: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Close the server socket, once the thread is terminating.
+	 */
+	protected void closeListener() {
 		try {
 			serverSocket.close();
 		} catch (IOException e) {
 			log.warning("exception closing server socket: "+e.getMessage());
 		}
 	}
+
+	/**
+	 * Tell the ServerManager the Internet address we are listening on.
+	 */
+	protected void emitAddress() {
+		try {
+			serverManager.emit(ioThread,InetAddress.getLocalHost().getHostAddress()+":"+port);
+		} catch (UnknownHostException e1) {
+			log.severe("Could not get address of local host, continuing anyway, assuming 127.0.0.1");
+			serverManager.emit(ioThread,"127.0.0.1:"+port);
+		}
+	}
+
+	/**
+	 *
+	 * @return number of accepted connections waiting to be passed on
+	 */
+	public int getAcceptQueueDepth() {
+		return pending.size();
+	}
+
+	/**
+	 *
+	 * @return most accepted connections that have waited to be passed on
+	 */
+	public int getMaxAcceptQueueDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 *
+	 * @return number of connections accepted
+	 */
+	public long getConnectionsAccepted() {
+		return accepted.get();
+	}
+
+	/**
+	 *
+	 * @return number of connections that were held back by the accept rate
+	 */
+	public long getConnectionsDeferred() {
+		return deferred.get();
+	}
+
+	/**
+	 *
+	 * @return average time, in ms, from accepting a connection to passing it on
+	 */
+	public double getAverageAcceptLatency() {
+		long n=admitted.get();
+		return n==0 ? 0 : totalLatency.get()/(n*1e6);
+	}
+
+	/**
+	 *
+	 * @return longest time, in ms, from accepting a connection to passing it on
+	 */
+	public double getMaxAcceptLatency() {
+		return maxLatency.get()/1e6;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("accepted %d connections, %d deferred, queue depth %d (max %d), "+
+				"accept latency %.1f ms average, %.1f ms max",getConnectionsAccepted(),
+				getConnectionsDeferred(),getAcceptQueueDepth(),getMaxAcceptQueueDepth(),
+				getAverageAcceptLatency(),getMaxAcceptLatency());
+	}
 }
@@ -0,0 +1,108 @@
+package pb.managers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Logger;
+
+/**
+ * Accept connections using a non-blocking server socket channel and pass
+ * them to the {@link pb.managers.ServerManager} using
+ * {@link pb.managers.ServerManager#acceptClient(SocketChannel)}. Unlike the
+ * {@link pb.managers.IOThread}, the accepted connections do not need a thread
+ * each; they are serviced by the server manager's event loops. Accepting
+ * on a non-blocking channel is cheap, so there is a single acceptor, the
+ * selector thread, whatever the number of acceptors asked for; accepted
+ * connections are queued and passed on as for the IOThread.
+ *
+ * @see {@link pb.managers.IOThread}
+ * @see {@link pb.managers.endpoint.NioEventLoop}
+ */
+public class NioIOThread extends IOThread {
+	private static Logger log = Logger.getLogger(NioIOThread.class.getName());
+	private ServerSocketChannel serverChannel;
+	private Selector selector;
+
+	/**
+	 * Initialise the NioIOThread with a port number to listen on and reference
+	 * to the {@link pb.managers.ServerManager}.
+	 * @param port to listen on
+	 * @param serverManager to send connections to
+	 * @throws IOException whenever the server socket channel can't be created
+	 */
+	public NioIOThread(int port, ServerManager serverManager) throws IOException {
+		super(serverManager,port);
+		serverChannel = ServerSocketChannel.open();
+		serverManager.getSocketProfile().apply(serverChannel.socket());
+		serverChannel.bind(new InetSocketAddress(serverManager.getBindAddress(),port),
+				serverManager.getBacklog());
+		serverChannel.configureBlocking(false);
+		selector = Selector.open();
+		serverChannel.register(selector,SelectionKey.OP_ACCEPT);
+		setName("NioIOThread");
+		start();
+	}
+
+	/**
+	 * Close the server socket channel and make sure the thread terminates.
+	 */
+	@Override
+	public void shutDown() {
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			log.warning("exception closing server socket channel: "+e.getMessage());
+		}
+		selector.wakeup();
+		interrupt();
+	}
+
+	@Override
+	protected boolean isListening() {
+		return serverChannel.isOpen();
+	}
+
+	@Override
+	protected int numAcceptors() {
+		return 1;
+	}
+
+	/**
+	 * Accept all pending connections whenever the selector says there
+	 * are some, and queue them.
+	 */
+	@Override
+	protected void accept() {
+		while(!isInterrupted() && serverChannel.isOpen()) {
+			try {
+				selector.select();
+				selector.selectedKeys().clear();
+				SocketChannel clientChannel;
+				while((clientChannel=serverChannel.accept())!=null) {
+					log.info("Received connection from "+clientChannel.socket().getInetAddress());
+					clientChannel.configureBlocking(false);
+					SocketChannel channel=clientChannel;
+					enqueue(channel,()->serverManager.acceptClient(channel));
+				}
+			} catch (IOException e) {
+				if(serverChannel.isOpen())
+					log.warning("exception accepting connection: "+e.getMessage());
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	@Override
+	protected void closeListener() {
+		try {
+			serverChannel.close();
+			selector.close();
+		} catch (IOException e) {
+			log.warning("exception closing server socket channel: "+e.getMessage());
+		}
+	}
+}
@@ -1,11 +1,16 @@
 package pb.managers;
 
 import java.net.UnknownHostException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.keepalive.KeepAliveSweeper;
+import pb.protocols.session.ResumableSession;
 
 
 
@@ -22,10 +27,12 @@ public class PeerManager extends Manager {
 	 */
 	
 	/**
-	 * Emitted when a session on the server manager is ready for use.
+	 * Emitted when a session on the server manager is ready for use, and
+	 * whether it is a session resumed after a lost connection.
 	 * <ul>
 	 * <li>{@code args[0] instanceof Endpoint}</li>
 	 * <li>{@code args[1] instanceof ServerManager}</li>
+	 * <li>{@code args[2] instanceof Boolean}</li>
 	 * </ul>
 	 * Note that this event is also emitted on new client managers and
 	 * in this case {@code args[1] instanceof ClientManager}
@@ -68,6 +75,29 @@ public class PeerManager extends Manager {
 	 */
 	private Set<ClientManager> clientManagers;
 	
+	/**
+	 * A connection to a server/peer, made by a client manager of its own
+	 * that has no users, which carries the sessions of the client managers
+	 * connected to that server/peer as logical channels. It is started by
+	 * the first of them to start, and shut down once the last of them has
+	 * finished.
+	 */
+	private static class Carrier {
+		private final ClientManager clientManager;
+		private int users=0;
+		
+		Carrier(ClientManager clientManager) {
+			this.clientManager=clientManager;
+		}
+	}
+	
+	/**
+	 * The connections carrying client managers, by host:port, and how many
+	 * client managers each is carrying. Guarded by the lock.
+	 */
+	private final Map<String,Carrier> carriers=new HashMap<>();
+	private final ReentrantLock carriersLock=new ReentrantLock();
+	
 	/**
 	 * The server manager is for accepting connections from other peers.
 	 */
@@ -78,6 +108,26 @@ public class PeerManager extends Manager {
 	 */
 	private int myServerPort;
 	
+	/**
+	 * Applied to the connections made and accepted by this peer.
+	 */
+	private volatile SocketProfile socketProfile=SocketProfile.defaults();
+	
+	/**
+	 * How the client managers of this peer connect and reconnect.
+	 */
+	private volatile RetryPolicy retryPolicy=RetryPolicy.defaults();
+	
+	/**
+	 * Number of events kept for each session to send again.
+	 */
+	private volatile int replayCapacity=ResumableSession.defaultReplayCapacity;
+	
+	/**
+	 * Checks that the connections made and accepted by this peer are alive.
+	 */
+	private final KeepAliveSweeper keepAliveSweeper=new KeepAliveSweeper();
+	
 	/**
 	 * Initialize with a port for the server manager for this peer
 	 * to use.
@@ -88,6 +138,44 @@ public class PeerManager extends Manager {
 		this.myServerPort=myServerPort;
 	}
 	
+	/**
+	 * Set the socket options applied to the connections made and accepted
+	 * by this peer. Must be called before the peer manager is started.
+	 * @param socketProfile
+	 */
+	public void setSocketProfile(SocketProfile socketProfile) {
+		this.socketProfile=socketProfile;
+	}
+	
+	/**
+	 * Set how the client managers of this peer connect and reconnect.
+	 * Applies to the client managers made from then on.
+	 * @param retryPolicy
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy=retryPolicy;
+	}
+	
+	/**
+	 * Set how many events are kept for each session, made or accepted by
+	 * this peer, to send again should it be resumed. Must be called before
+	 * the peer manager is started.
+	 * @param replayCapacity or 0 to not resume sessions
+	 */
+	public void setReplayCapacity(int replayCapacity) {
+		if(replayCapacity<0) throw new IllegalArgumentException("invalid replay capacity");
+		this.replayCapacity=replayCapacity;
+	}
+	
+	/**
+	 * 
+	 * @return the sweeper that checks the connections made and accepted by
+	 * this peer are alive, which also tells how long each has been quiet
+	 */
+	public KeepAliveSweeper getKeepAliveSweeper() {
+		return keepAliveSweeper;
+	}
+	
 	/**
 	 * 
 	 * @return the server manager for this peer
@@ -98,7 +186,14 @@ public class PeerManager extends Manager {
 	
 	/**
 	 * Connect to either a server or another peer. The client manager
-	 * needs to be started after it is returned.
+	 * needs to be started after it is returned. The sessions of the client
+	 * managers connected to the same server/peer are carried as logical
+	 * channels on one connection, when the other side accepts channels,
+	 * rather than each on a connection of its own. The connection belongs
+	 * to this peer manager rather than any of them, so any of them can stop
+	 * without affecting the others. It is made once the first of them is
+	 * started, and closed once they all have stopped. Its own session is
+	 * not reported by the other side, only those of the channels.
 	 * @param serverPort the port of the server/peer to connect to
 	 * @param host the hostname of the server/peer to connect to
 	 * @throws InterruptedException 
@@ -106,11 +201,32 @@ public class PeerManager extends Manager {
 	 * @return the client manager for the new connection
 	 */
 	public ClientManager connect(int serverPort,String host) throws UnknownHostException, InterruptedException {
-		ClientManager clientManager = new ClientManager(host,serverPort);
+		String key=host+":"+serverPort;
+		ClientManager clientManager;
+		carriersLock.lock();
+		try {
+			Carrier carrier=carriers.get(key);
+			if(carrier==null || carrier.clientManager.getState()==Thread.State.TERMINATED) {
+				ClientManager carrierManager=new ClientManager(host,serverPort);
+				configure(carrierManager);
+				// the sessions resumed are those of the channels
+				carrierManager.setReplayCapacity(0);
+				carrierManager.setCarriesOnly(true);
+				carrier=new Carrier(carrierManager);
+				carriers.put(key,carrier);
+			}
+			carrier.users++;
+			Carrier used=carrier;
+			clientManager = new ClientManager(carrier.clientManager);
+			clientManager.setCarrierReleased(()->release(key,used));
+		} finally {
+			carriersLock.unlock();
+		}
+		configure(clientManager);
 		clientManagers.add(clientManager);
 		clientManager.on(ClientManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
-			clientManager.emit(peerStarted, client,clientManager);
+			clientManager.emit(peerStarted, client,clientManager,args[1]);
 		}).on(ClientManager.sessionStopped, (args)->{
 			Endpoint client = (Endpoint)args[0];
 			clientManager.emit(peerStopped, client,clientManager);
@@ -121,6 +237,35 @@ public class PeerManager extends Manager {
 		return clientManager;
 	}
 	
+	/**
+	 * Apply this peer's settings to a client manager.
+	 * @param clientManager
+	 */
+	private void configure(ClientManager clientManager) {
+		clientManager.setUseVirtualThread(usesVirtualThread());
+		clientManager.setSocketProfile(socketProfile);
+		clientManager.setRetryPolicy(retryPolicy);
+		clientManager.setReplayCapacity(replayCapacity);
+		clientManager.setKeepAliveSweeper(keepAliveSweeper);
+	}
+	
+	/**
+	 * A client manager no longer uses the connection carrying it, so close
+	 * the connection if it was the last.
+	 * @param key
+	 * @param carrier
+	 */
+	private void release(String key, Carrier carrier) {
+		carriersLock.lock();
+		try {
+			if(--carrier.users>0) return;
+			carriers.remove(key,carrier);
+		} finally {
+			carriersLock.unlock();
+		}
+		carrier.clientManager.shutdown();
+	}
+	
 	/**
 	 * Close the server and all remaining connections.
 	 * We will do a graceful shutdown here, to allow any other peers that
@@ -133,16 +278,27 @@ public class PeerManager extends Manager {
 		clientManagers.forEach((clientManager)->{
 			clientManager.shutdown(); // client manager will send a session stop
 		});
+		// in case a client manager was never started
+		carriersLock.lock();
+		try {
+			carriers.values().forEach((carrier)->carrier.clientManager.shutdown());
+		} finally {
+			carriersLock.unlock();
+		}
 	}
 	
 	@Override
 	public void run() {
 		// initialize a server manager for other peers to connect to
 		serverManager=new ServerManager(myServerPort);
+		serverManager.setUseVirtualThread(usesVirtualThread());
+		serverManager.setSocketProfile(socketProfile);
+		serverManager.setReplayCapacity(replayCapacity);
+		serverManager.setKeepAliveSweeper(keepAliveSweeper);
 		// setup the callbacks for when another peer connects to this peer
 		serverManager.on(ServerManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
-			localEmit(peerStarted,client,serverManager);
+			localEmit(peerStarted,client,serverManager,args[1]);
 		}).on(ServerManager.sessionStopped, (args)->{
 			Endpoint client = (Endpoint)args[0];
 			localEmit(peerStopped,client,serverManager);
@@ -163,7 +319,7 @@ public class PeerManager extends Manager {
 	public void joinWithClientManagers() {
 		clientManagers.forEach((clientManager)->{
 			try {
-				clientManager.join();
+				clientManager.joinThread();
 			} catch (InterruptedException e) {
 				log.warning("could not join with client manager");
 			}
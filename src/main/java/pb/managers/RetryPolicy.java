@@ -0,0 +1,173 @@
+package pb.managers;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How a client manager connects and reconnects: how long a connection
+ * attempt may take, and how long to wait before each retry. The waits grow
+ * exponentially from an initial backoff up to a maximum, and with full
+ * jitter each wait is drawn at random between 0 and that, so that clients
+ * that lost the same server don't all come back at the same moment. Retries
+ * stop after a number of attempts, or once a budget of time has been spent
+ * trying, whichever comes first. The count and the budget start again once
+ * a session has started.
+ *
+ * @see {@link pb.managers.ClientManager#setRetryPolicy(RetryPolicy)}
+ * @see {@link pb.managers.PeerManager#setRetryPolicy(RetryPolicy)}
+ */
+public class RetryPolicy {
+
+	/**
+	 * Defaults.
+	 */
+	public static final int defaultMaxRetries = 10;
+	public static final long defaultInitialBackoff = 1000;
+	public static final long defaultMaxBackoff = 30000;
+	public static final int defaultConnectTimeout = 10000;
+
+	private int maxRetries=defaultMaxRetries;
+	private long initialBackoff=defaultInitialBackoff;
+	private long maxBackoff=defaultMaxBackoff;
+	private double multiplier=2;
+	private boolean jitter=true;
+	private long maxElapsed=0;
+	private int connectTimeout=defaultConnectTimeout;
+
+	/**
+	 *
+	 * @return a policy of up to {@value #defaultMaxRetries} retries, waiting
+	 * from {@value #defaultInitialBackoff} ms doubling up to
+	 * {@value #defaultMaxBackoff} ms with full jitter, and connection attempts
+	 * of up to {@value #defaultConnectTimeout} ms
+	 */
+	public static RetryPolicy defaults() {
+		return new RetryPolicy();
+	}
+
+	/**
+	 *
+	 * @return a policy of up to {@value #defaultMaxRetries} retries, waiting
+	 * 5 s between each, the way clients used to retry
+	 */
+	public static RetryPolicy fixed() {
+		return new RetryPolicy().setInitialBackoff(5000).setMaxBackoff(5000).setJitter(false);
+	}
+
+	/**
+	 * Set the most retries after the first attempt.
+	 * @param maxRetries
+	 * @return this policy
+	 */
+	public RetryPolicy setMaxRetries(int maxRetries) {
+		if(maxRetries<0) throw new IllegalArgumentException("max retries must not be negative");
+		this.maxRetries=maxRetries;
+		return this;
+	}
+
+	/**
+	 * Set the wait before the first retry, before jitter.
+	 * @param initialBackoff in ms
+	 * @return this policy
+	 */
+	public RetryPolicy setInitialBackoff(long initialBackoff) {
+		if(initialBackoff<=0) throw new IllegalArgumentException("backoff must be positive");
+		this.initialBackoff=initialBackoff;
+		return this;
+	}
+
+	/**
+	 * Set the longest wait before a retry, before jitter.
+	 * @param maxBackoff in ms
+	 * @return this policy
+	 */
+	public RetryPolicy setMaxBackoff(long maxBackoff) {
+		if(maxBackoff<=0) throw new IllegalArgumentException("backoff must be positive");
+		this.maxBackoff=maxBackoff;
+		return this;
+	}
+
+	/**
+	 * Set how much the wait grows by after each retry.
+	 * @param multiplier at least 1
+	 * @return this policy
+	 */
+	public RetryPolicy setMultiplier(double multiplier) {
+		if(multiplier<1) throw new IllegalArgumentException("multiplier must be at least 1");
+		this.multiplier=multiplier;
+		return this;
+	}
+
+	/**
+	 * Turn full jitter on, or off.
+	 * @param jitter
+	 * @return this policy
+	 */
+	public RetryPolicy setJitter(boolean jitter) {
+		this.jitter=jitter;
+		return this;
+	}
+
+	/**
+	 * Set the time after which no more retries are made, counted from the
+	 * first attempt.
+	 * @param maxElapsed in ms, or 0 for no limit
+	 * @return this policy
+	 */
+	public RetryPolicy setMaxElapsed(long maxElapsed) {
+		if(maxElapsed<0) throw new IllegalArgumentException("max elapsed must not be negative");
+		this.maxElapsed=maxElapsed;
+		return this;
+	}
+
+	/**
+	 * Set how long a connection attempt may take.
+	 * @param connectTimeout in ms, or 0 to wait as long as the operating
+	 * system does
+	 * @return this policy
+	 */
+	public RetryPolicy setConnectTimeout(int connectTimeout) {
+		if(connectTimeout<0) throw new IllegalArgumentException("connect timeout must not be negative");
+		this.connectTimeout=connectTimeout;
+		return this;
+	}
+
+	/**
+	 *
+	 * @return how long a connection attempt may take, in ms, or 0 for as
+	 * long as the operating system does
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Whether to retry after a number of retries, some time after the
+	 * first attempt.
+	 * @param retries made so far
+	 * @param elapsed ms since the first attempt
+	 * @return true if another retry should be made
+	 */
+	public boolean shouldRetry(int retries, long elapsed) {
+		if(retries>=maxRetries) return false;
+		return maxElapsed==0 || elapsed<maxElapsed;
+	}
+
+	/**
+	 * How long to wait before a retry.
+	 * @param retries made so far
+	 * @return the wait in ms
+	 */
+	public long backoff(int retries) {
+		double wait=initialBackoff*Math.pow(multiplier,retries);
+		long cap=(long)Math.min(maxBackoff,wait);
+		if(!jitter) return cap;
+		return ThreadLocalRandom.current().nextLong(cap+1);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("retry up to %d times%s, backoff %d..%d ms x%.1f%s, connect timeout %d ms",
+				maxRetries,maxElapsed>0 ? " within "+maxElapsed+" ms" : "",initialBackoff,
+				maxBackoff,multiplier,jitter ? " with jitter" : "",connectTimeout);
+	}
+}
@@ -1,12 +1,26 @@
 package pb.managers;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.NioEndpoint;
+import pb.managers.endpoint.NioEventLoopGroup;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
@@ -14,12 +28,35 @@ import pb.protocols.event.EventProtocol;
 import pb.protocols.event.IEventProtocolHandler;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.keepalive.KeepAliveSweeper;
 import pb.protocols.session.ISessionProtocolHandler;
+import pb.protocols.session.ResumableSession;
 import pb.protocols.session.SessionProtocol;
+import pb.utils.TimingWheel.Timeout;
+import pb.utils.Utils;
 
 
 /**
  * Manages all of the clients for the server and the server's state.
+ * <br/>
+ * Clients are admitted when their endpoint is ready, unless the server is
+ * already at its most live endpoints or pending handshakes, or its heap or
+ * load is over a threshold, see {@link #setMaxLiveEndpoints(int)} and the
+ * other limits. A client that is not admitted is not kept alive, and its
+ * session start request is refused with a reply saying how long to wait
+ * before trying again, after which it is closed. All of the limits are off
+ * by default.
+ * <br/>
+ * Once shut down, the server drains: it waits for its endpoints to close,
+ * woken each time one does. If they have not all closed by the drain
+ * timeout, the shutdown escalates from graceful to force and then to vader,
+ * see {@link #setDrainTimeout(long)}. Progress is emitted as
+ * {@link #shutdownProgress}, and sent to admin clients that asked to watch.
+ * <br/>
+ * Sessions are given a token so that a client whose connection is lost can
+ * resume its session, with the events it missed sent again, if it
+ * reconnects within the resume timeout, see {@link #setResumeTimeout(long)}
+ * and {@link pb.protocols.session.ResumableSession}.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.IOThread}
@@ -39,9 +76,14 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	
 	/**
-	 * Emitted when a session on an endpoint is ready for use.
+	 * Emitted when a session on an endpoint is ready for use, and whether
+	 * it is a session resumed after a lost connection, in which case the
+	 * events missed have been sent again and nothing needs to be fetched
+	 * afresh. None of the session events are emitted for a connection that
+	 * only carries logical channels, only for the channels.
 	 * <ul>
 	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * <li>{@code args[1] instanceof Boolean}</li>
 	 * </ul>
 	 */
 	public static final String sessionStarted="SESSION_STARTED";
@@ -90,20 +132,104 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	public static final String vaderShutdownServer="SERVER_VADER_SHUTDOWN";
 	
+	/**
+	 * Emitted by an admin client to be sent the shutdown progress. Message
+	 * is the password.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String watchShutdown="SERVER_WATCH_SHUTDOWN";
+	
+	/**
+	 * Emitted as the server drains its endpoints while shutting down, with
+	 * the phase of the shutdown and the number of endpoints still to close,
+	 * not counting admin clients watching. Sent to admin clients watching
+	 * as a single String, the phase and the number separated by a space.
+	 * <ul>
+	 * <li>{@code args[0] instanceof DrainPhase}</li>
+	 * <li>{@code args[1] instanceof Integer}</li>
+	 * </ul>
+	 */
+	public static final String shutdownProgress="SERVER_SHUTDOWN_PROGRESS";
+	
+	/**
+	 * The phases of shutting down, in the order they escalate.
+	 */
+	static public enum DrainPhase {
+		/**
+		 * Waiting for clients to stop their sessions.
+		 */
+		Graceful,
+		/**
+		 * Clients have been asked to stop their sessions.
+		 */
+		Force,
+		/**
+		 * Endpoints have been closed.
+		 */
+		Vader,
+		/**
+		 * All endpoints have closed.
+		 */
+		Drained
+	}
+	
+	/**
+	 * How the server handles its connections.
+	 */
+	static public enum Engine {
+		/**
+		 * A blocking {@link pb.managers.IOThread} and a thread per endpoint.
+		 */
+		Classic,
+		/**
+		 * A non-blocking {@link pb.managers.NioIOThread} and endpoints
+		 * shared over a small number of selector threads.
+		 */
+		Nio
+	}
+	
 	
 	/**
 	 * The io thread accepts connections and informs the server manager
 	 * of the connection's socket.
 	 */
-	private IOThread ioThread;
+	private volatile IOThread ioThread;
 	
 	/**
 	 * Keep a track of endpoints that
 	 * have not yet terminated, so that we can wait/ask/force for them to finish
 	 * before completely terminating. This object can be called by multiple
-	 * endpoint threads and this server manager thread; so synchronized is needed.
+	 * endpoint threads and this server manager thread; so it is guarded by
+	 * the endpoints lock, and the condition is signalled whenever an endpoint
+	 * closes or the shutdown is escalated.
 	 */
 	private final Set<Endpoint> liveEndpoints;
+	private final ReentrantLock endpointsLock=new ReentrantLock();
+	private final Condition endpointsChanged=endpointsLock.newCondition();
+	
+	/**
+	 * Admin endpoints watching the shutdown, guarded by the endpoints lock.
+	 */
+	private final Set<Endpoint> watchers=new HashSet<>();
+	
+	/**
+	 * How long each phase of shutting down may take before escalating to
+	 * the next, in ms, or 0 to wait as long as it takes.
+	 */
+	private volatile long drainTimeout=0;
+	
+	/**
+	 * Least time between reports of the shutdown progress, in ms.
+	 */
+	private static final long progressInterval=250;
+	
+	/**
+	 * How long to wait for watching admin clients to stop their sessions,
+	 * when the drain timeout does not say, in ms.
+	 */
+	private static final long watcherTimeout=5000;
 	
 	/**
 	 * The port for this server.
@@ -125,14 +251,135 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private String password=null;
 	
+	/**
+	 * The engine used for connections.
+	 */
+	private final Engine engine;
+	
+	/**
+	 * Number of selector threads when using the {@link Engine#Nio} engine.
+	 */
+	private int numEventLoops=Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Selector threads for endpoints when using the {@link Engine#Nio} engine.
+	 */
+	private NioEventLoopGroup eventLoops;
+	
+	/**
+	 * Default length of the listen backlog, and of the queue of accepted
+	 * connections waiting to be passed on.
+	 */
+	public static final int defaultBacklog = 1024;
+	
+	/**
+	 * Length of the listen backlog.
+	 */
+	private int backlog=defaultBacklog;
+	
+	/**
+	 * Number of threads accepting connections.
+	 */
+	private int numAcceptors=1;
+	
+	/**
+	 * Address to listen on, or null for all local addresses.
+	 */
+	private InetAddress bindAddress=null;
+	
+	/**
+	 * Most connections passed on per second, and in a burst, or 0 for no limit.
+	 */
+	private double acceptRate=0;
+	private int acceptBurst=1;
+	
+	/**
+	 * Applied to each accepted connection.
+	 */
+	private SocketProfile socketProfile=SocketProfile.defaults();
+	
+	/**
+	 * Default time a refused client is asked to wait before trying again, in ms.
+	 */
+	public static final long defaultRetryAfter = 1000;
+	
+	/**
+	 * Admission limits, 0 for no limit.
+	 */
+	private volatile int maxLiveEndpoints=0;
+	private volatile int maxPendingHandshakes=0;
+	private volatile double maxHeapUsage=0;
+	private volatile double maxLoad=0;
+	
+	/**
+	 * Time a refused client is asked to wait before trying again, in ms,
+	 * to which up to as much again is added at random so that refused
+	 * clients don't all come back at once.
+	 */
+	private volatile long retryAfter=defaultRetryAfter;
+	
+	/**
+	 * Admitted endpoints whose session has not started yet, endpoints
+	 * that were not admitted with how long they are to wait, and endpoints
+	 * whose connection only carries logical channels, which are not counted
+	 * against the limits as the channels are, guarded by the endpoints lock.
+	 */
+	private final Set<Endpoint> pendingHandshakes=new HashSet<>();
+	private final Map<Endpoint,Long> refusedEndpoints=new HashMap<>();
+	private final Set<Endpoint> carrierEndpoints=new HashSet<>();
+	
+	/**
+	 * Sessions that can be resumed, by token, guarded by the endpoints lock.
+	 * A session is held while its endpoint is live and for the resume
+	 * timeout after its connection is lost.
+	 */
+	private static class HeldSession {
+		private final ResumableSession session;
+		private Endpoint endpoint;
+		private Timeout expiry=null;
+		
+		HeldSession(ResumableSession session, Endpoint endpoint) {
+			this.session=session;
+			this.endpoint=endpoint;
+		}
+	}
+	private final Map<String,HeldSession> heldSessions=new HashMap<>();
+	
+	/**
+	 * Set once no more connections are accepted, after which sessions are
+	 * no longer held, since they can't be resumed.
+	 */
+	private volatile boolean draining=false;
+	
+	/**
+	 * Number of events kept for each session to send again, or 0 if
+	 * sessions can't be resumed, and how long a session is held after
+	 * its connection is lost, in ms.
+	 */
+	private volatile int replayCapacity=ResumableSession.defaultReplayCapacity;
+	private volatile long resumeTimeout=defaultResumeTimeout;
+	
+	/**
+	 * Checks that the clients are alive.
+	 */
+	private volatile KeepAliveSweeper keepAliveSweeper=new KeepAliveSweeper();
+	
+	/**
+	 * Default time a session is held after its connection is lost, in ms.
+	 */
+	public static final long defaultResumeTimeout = 60000;
+	
+	/**
+	 * Number of sessions refused.
+	 */
+	private final AtomicLong sessionsRefused=new AtomicLong();
+	
 	/**
 	 * Initialise the ServerManager with a port number for the io thread to listen on.
 	 * @param port to use when creating the io thread
 	 */
 	public ServerManager(int port) {
-		this.port=port;
-		liveEndpoints=new HashSet<>();
-		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
+		this(port,null,Engine.Classic);
 	}
 	
 	/**
@@ -142,12 +389,350 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @param password to use by admin clients
 	 */
 	public ServerManager(int port,String password) {
+		this(port,password,Engine.Classic);
+	}
+	
+	/**
+	 * Initialise the ServerManager with a port number for the io thread to listen on,
+	 * a password and the engine to use for connections.
+	 * @param port to use when creating the io thread
+	 * @param password to use by admin clients, or null for none
+	 * @param engine to use for connections
+	 */
+	public ServerManager(int port,String password,Engine engine) {
 		this.port=port;
 		liveEndpoints=new HashSet<>();
 		this.password = password;
+		this.engine = engine;
 		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
 	}
 	
+	/**
+	 * Set the number of selector threads to use with the {@link Engine#Nio}
+	 * engine. Must be called before the server manager is started.
+	 * @param numEventLoops
+	 */
+	public void setNumEventLoops(int numEventLoops) {
+		this.numEventLoops=numEventLoops;
+	}
+	
+	/**
+	 * Set the length of the listen backlog, which is also how many accepted
+	 * connections can wait to be passed on. The operating system may limit
+	 * the backlog further. Must be called before the server manager is started.
+	 * @param backlog
+	 */
+	public void setBacklog(int backlog) {
+		if(backlog<=0) throw new IllegalArgumentException("backlog must be positive");
+		this.backlog=backlog;
+	}
+	
+	/**
+	 * 
+	 * @return length of the listen backlog
+	 */
+	public int getBacklog() {
+		return backlog;
+	}
+	
+	/**
+	 * Set the number of threads accepting connections with the
+	 * {@link Engine#Classic} engine; the {@link Engine#Nio} engine always
+	 * has one. Must be called before the server manager is started.
+	 * @param numAcceptors
+	 */
+	public void setNumAcceptors(int numAcceptors) {
+		if(numAcceptors<=0) throw new IllegalArgumentException("number of acceptors must be positive");
+		this.numAcceptors=numAcceptors;
+	}
+	
+	/**
+	 * 
+	 * @return number of threads accepting connections
+	 */
+	public int getNumAcceptors() {
+		return numAcceptors;
+	}
+	
+	/**
+	 * Set the address to listen on. Must be called before the server
+	 * manager is started.
+	 * @param bindAddress the address, or null for all local addresses
+	 */
+	public void setBindAddress(InetAddress bindAddress) {
+		this.bindAddress=bindAddress;
+	}
+	
+	/**
+	 * 
+	 * @return the address listened on, or null for all local addresses
+	 */
+	public InetAddress getBindAddress() {
+		return bindAddress;
+	}
+	
+	/**
+	 * Limit the rate that accepted connections are passed on, and so the
+	 * rate that endpoints are started. Connections over the limit wait,
+	 * already accepted, until their turn. Must be called before the server
+	 * manager is started.
+	 * @param perSecond most connections passed on per second, or 0 for no limit
+	 * @param burst most connections passed on at once
+	 */
+	public void setAcceptRate(double perSecond, int burst) {
+		if(perSecond<0 || burst<=0) throw new IllegalArgumentException("invalid accept rate");
+		acceptRate=perSecond;
+		acceptBurst=burst;
+	}
+	
+	/**
+	 * 
+	 * @return most connections passed on per second, or 0 for no limit
+	 */
+	public double getAcceptRate() {
+		return acceptRate;
+	}
+	
+	/**
+	 * 
+	 * @return most connections passed on at once
+	 */
+	public int getAcceptBurst() {
+		return acceptBurst;
+	}
+	
+	/**
+	 * Set the socket options applied to each accepted connection. Must be
+	 * called before the server manager is started.
+	 * @param socketProfile
+	 */
+	public void setSocketProfile(SocketProfile socketProfile) {
+		this.socketProfile=socketProfile;
+	}
+	
+	/**
+	 * 
+	 * @return the socket options applied to each accepted connection
+	 */
+	public SocketProfile getSocketProfile() {
+		return socketProfile;
+	}
+	
+	/**
+	 * Set the most endpoints admitted at once, whether or not their session
+	 * has started. May be changed while the server manager is running.
+	 * @param maxLiveEndpoints or 0 for no limit
+	 */
+	public void setMaxLiveEndpoints(int maxLiveEndpoints) {
+		if(maxLiveEndpoints<0) throw new IllegalArgumentException("invalid max live endpoints");
+		this.maxLiveEndpoints=maxLiveEndpoints;
+	}
+	
+	/**
+	 * 
+	 * @return most endpoints admitted at once, or 0 for no limit
+	 */
+	public int getMaxLiveEndpoints() {
+		return maxLiveEndpoints;
+	}
+	
+	/**
+	 * Set the most admitted endpoints whose session has not started yet.
+	 * May be changed while the server manager is running.
+	 * @param maxPendingHandshakes or 0 for no limit
+	 */
+	public void setMaxPendingHandshakes(int maxPendingHandshakes) {
+		if(maxPendingHandshakes<0) throw new IllegalArgumentException("invalid max pending handshakes");
+		this.maxPendingHandshakes=maxPendingHandshakes;
+	}
+	
+	/**
+	 * 
+	 * @return most admitted endpoints whose session has not started yet,
+	 * or 0 for no limit
+	 */
+	public int getMaxPendingHandshakes() {
+		return maxPendingHandshakes;
+	}
+	
+	/**
+	 * Stop admitting endpoints while the heap in use is over a fraction of
+	 * the largest heap. May be changed while the server manager is running.
+	 * @param maxHeapUsage between 0 and 1, or 0 for no limit
+	 */
+	public void setMaxHeapUsage(double maxHeapUsage) {
+		if(maxHeapUsage<0 || maxHeapUsage>1) throw new IllegalArgumentException("invalid max heap usage");
+		this.maxHeapUsage=maxHeapUsage;
+	}
+	
+	/**
+	 * 
+	 * @return fraction of the largest heap over which endpoints are not
+	 * admitted, or 0 for no limit
+	 */
+	public double getMaxHeapUsage() {
+		return maxHeapUsage;
+	}
+	
+	/**
+	 * Stop admitting endpoints while the system load average, per
+	 * processor, is over a threshold. Ignored where the load average is
+	 * not available. May be changed while the server manager is running.
+	 * @param maxLoad or 0 for no limit
+	 */
+	public void setMaxLoad(double maxLoad) {
+		if(maxLoad<0) throw new IllegalArgumentException("invalid max load");
+		this.maxLoad=maxLoad;
+	}
+	
+	/**
+	 * 
+	 * @return load average per processor over which endpoints are not
+	 * admitted, or 0 for no limit
+	 */
+	public double getMaxLoad() {
+		return maxLoad;
+	}
+	
+	/**
+	 * Set how long a refused client is asked to wait before trying again,
+	 * to which up to as much again is added at random.
+	 * @param retryAfter in ms
+	 */
+	public void setRetryAfter(long retryAfter) {
+		if(retryAfter<=0) throw new IllegalArgumentException("invalid retry after");
+		this.retryAfter=retryAfter;
+	}
+	
+	/**
+	 * 
+	 * @return how long a refused client is asked to wait before trying
+	 * again, in ms, before the random part is added
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+	
+	/**
+	 * Set how many events are kept for each session to send again should
+	 * it be resumed. Applies to sessions started from then on.
+	 * @param replayCapacity or 0 to not let sessions be resumed
+	 */
+	public void setReplayCapacity(int replayCapacity) {
+		if(replayCapacity<0) throw new IllegalArgumentException("invalid replay capacity");
+		this.replayCapacity=replayCapacity;
+	}
+	
+	/**
+	 * 
+	 * @return number of events kept for each session to send again, or 0
+	 * if sessions can't be resumed
+	 */
+	public int getReplayCapacity() {
+		return replayCapacity;
+	}
+	
+	/**
+	 * Set the sweeper that checks the clients are alive, e.g. to share one
+	 * with other managers. Must be called before the server manager is
+	 * started.
+	 * @param keepAliveSweeper
+	 */
+	public void setKeepAliveSweeper(KeepAliveSweeper keepAliveSweeper) {
+		this.keepAliveSweeper=keepAliveSweeper;
+	}
+	
+	/**
+	 * 
+	 * @return the sweeper that checks the clients are alive, which also
+	 * tells how long each has been quiet
+	 */
+	@Override
+	public KeepAliveSweeper getKeepAliveSweeper() {
+		return keepAliveSweeper;
+	}
+	
+	/**
+	 * Set how long a session is held after its connection is lost, for
+	 * the client to resume it.
+	 * @param resumeTimeout in ms
+	 */
+	public void setResumeTimeout(long resumeTimeout) {
+		if(resumeTimeout<=0) throw new IllegalArgumentException("invalid resume timeout");
+		this.resumeTimeout=resumeTimeout;
+	}
+	
+	/**
+	 * 
+	 * @return how long a session is held after its connection is lost, in ms
+	 */
+	public long getResumeTimeout() {
+		return resumeTimeout;
+	}
+	
+	/**
+	 * 
+	 * @return number of sessions held that can be resumed
+	 */
+	public int numHeldSessions() {
+		endpointsLock.lock();
+		try {
+			return heldSessions.size();
+		} finally {
+			endpointsLock.unlock();
+		}
+	}
+	
+	/**
+	 * Set how long each phase of shutting down may take before escalating
+	 * to the next, from graceful to force to vader. May be changed while
+	 * the server manager is running, taking effect from the next phase.
+	 * @param drainTimeout in ms, or 0 to wait as long as it takes
+	 */
+	public void setDrainTimeout(long drainTimeout) {
+		if(drainTimeout<0) throw new IllegalArgumentException("invalid drain timeout");
+		this.drainTimeout=drainTimeout;
+	}
+	
+	/**
+	 * 
+	 * @return how long each phase of shutting down may take, in ms, or 0
+	 * to wait as long as it takes
+	 */
+	public long getDrainTimeout() {
+		return drainTimeout;
+	}
+	
+	/**
+	 * 
+	 * @return number of admitted endpoints whose session has not started yet
+	 */
+	public int numPendingHandshakes() {
+		endpointsLock.lock();
+		try {
+			return pendingHandshakes.size();
+		} finally {
+			endpointsLock.unlock();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return number of sessions refused because the server was too busy
+	 */
+	public long getSessionsRefused() {
+		return sessionsRefused.get();
+	}
+	
+	/**
+	 * 
+	 * @return the io thread, which reports how connections are being
+	 * accepted, or null if the server manager has not started
+	 */
+	public IOThread getIOThread() {
+		return ioThread;
+	}
+	
 	/**
 	 * Usually a single shutdown method would suffice, but for servers
 	 * it is convenient to have different methods, depending on how the
@@ -166,12 +751,14 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		log.warning("server force shutdown called");
 		forceShutdown=true; // this will send session stops to all the clients
 		ioThread.shutDown();
+		signalEndpointsChanged(); // in case we are already draining
 	}
 	
 	public void vaderShutdown() { // Darkside style :-]
 		log.warning("server vader shutdown called");
 		vaderShutdown=true; // this will just close all of the endpoints abruptly
 		ioThread.shutDown();
+		signalEndpointsChanged();
 	}
 	
 	/**
@@ -179,8 +766,23 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @return the number of live endpoints
 	 */
 	public int numLiveEndpoints() {
-		synchronized(liveEndpoints) {
+		endpointsLock.lock();
+		try {
 			return liveEndpoints.size();
+		} finally {
+			endpointsLock.unlock();
+		}
+	}
+	
+	/**
+	 * Wake the server manager thread if it is draining.
+	 */
+	private void signalEndpointsChanged() {
+		endpointsLock.lock();
+		try {
+			endpointsChanged.signalAll();
+		} finally {
+			endpointsLock.unlock();
 		}
 	}
 	
@@ -190,15 +792,21 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		// when the IO thread terminates, and all endpoints have terminated,
 		// then the server will terminate
 		try {
-			ioThread = new IOThread(port,this);
+			if(engine==Engine.Nio) {
+				eventLoops = new NioEventLoopGroup(numEventLoops);
+				ioThread = new NioIOThread(port,this);
+			} else {
+				ioThread = new IOThread(port,this);
+			}
 		} catch (IOException e1) {
 			log.severe("could not start the io thread");
+			if(eventLoops!=null) eventLoops.shutDown();
 			return;
 		}
 		
 		try {
 			// just wait for this thread to terminate
-			ioThread.join();
+			ioThread.joinThread();
 		} catch (InterruptedException e) {
 			// just make sure the ioThread is going to terminate
 			ioThread.shutDown();
@@ -209,56 +817,193 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		// At this point, there still may be some endpoints that have not
 		// terminated, and so the JVM will remain running until they do.
 		// However no new endpoints can be created.
-		
-		// let's create our own list of endpoints that exist at this point
-		HashSet<Endpoint> currentEndpoints = new HashSet<>();
-		synchronized(liveEndpoints) {
-			currentEndpoints = new HashSet<>(liveEndpoints);
+		try {
+			drain();
+		} catch (InterruptedException e) {
+			int remaining=numLiveEndpoints();
+			if(remaining>0) {
+				log.severe("terminating server with "+remaining+" still unfinished");
+			}
 		}
-		
-		// if we want to tell clients to end session
-		// it is indeed possible that both may be set true
-		if(forceShutdown && !vaderShutdown) {
+		if(eventLoops!=null) eventLoops.shutDown();
+		log.info("terminated");
+	}
+	
+	/**
+	 * 
+	 * @return the phase of shutting down that has been asked for
+	 */
+	private DrainPhase requestedPhase() {
+		if(vaderShutdown) return DrainPhase.Vader;
+		if(forceShutdown) return DrainPhase.Force;
+		return DrainPhase.Graceful;
+	}
+	
+	/**
+	 * Wait for the endpoints, other than admin clients watching, to close,
+	 * escalating the shutdown if they don't close in time, and then stop
+	 * the sessions of the watchers. Woken whenever an endpoint closes or
+	 * the shutdown is escalated, rather than polling.
+	 * @throws InterruptedException
+	 */
+	private void drain() throws InterruptedException {
+		releaseHeldSessions();
+		DrainPhase phase=null;
+		boolean bounded=false;
+		long deadline=0;
+		int reported=-1;
+		long nextReport=System.nanoTime();
+		while(true) {
+			long now=System.nanoTime();
+			DrainPhase wanted=requestedPhase();
+			if(phase!=null && wanted.compareTo(phase)<0) wanted=phase;
+			if(wanted==phase && bounded && now-deadline>=0) {
+				wanted=DrainPhase.values()[phase.ordinal()+1];
+				log.warning("endpoints did not drain in time, escalating to "+wanted);
+			}
+			if(wanted!=phase) {
+				phase=wanted;
+				if(phase==DrainPhase.Force) forceShutdown=true;
+				if(phase==DrainPhase.Vader) vaderShutdown=true;
+				long timeout=drainTimeout;
+				// there is nothing to escalate to after Vader, so then just
+				// wait for the endpoints to close
+				bounded=timeout>0 && phase!=DrainPhase.Vader;
+				deadline=now+TimeUnit.MILLISECONDS.toNanos(timeout);
+				enterPhase(phase);
+				reported=-1;
+				continue;
+			}
+			int remaining=numDraining();
+			if(remaining==0) break;
+			if(remaining!=reported && now-nextReport>=0) {
+				reportProgress(phase,remaining);
+				reported=remaining;
+				nextReport=now+TimeUnit.MILLISECONDS.toNanos(progressInterval);
+			}
+			endpointsLock.lock();
+			try {
+				while(numDraining()==remaining && requestedPhase().compareTo(phase)<=0) {
+					long wait=Long.MAX_VALUE;
+					now=System.nanoTime();
+					if(bounded) wait=deadline-now;
+					if(remaining!=reported) wait=Math.min(wait,nextReport-now);
+					if(wait==Long.MAX_VALUE) {
+						endpointsChanged.await();
+					} else if(wait<=0 || endpointsChanged.awaitNanos(wait)<=0) {
+						break;
+					}
+				}
+			} finally {
+				endpointsLock.unlock();
+			}
+		}
+		reportProgress(DrainPhase.Drained,0);
+		stopWatchers();
+	}
+	
+	/**
+	 * 
+	 * @return number of live endpoints, not counting admin clients watching
+	 */
+	private int numDraining() {
+		endpointsLock.lock();
+		try {
+			return liveEndpoints.size()-watchers.size();
+		} finally {
+			endpointsLock.unlock();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the live endpoints, other than admin clients watching
+	 */
+	private List<Endpoint> drainingEndpoints() {
+		endpointsLock.lock();
+		try {
+			List<Endpoint> endpoints=new ArrayList<>(liveEndpoints);
+			endpoints.removeAll(watchers);
+			return endpoints;
+		} finally {
+			endpointsLock.unlock();
+		}
+	}
+	
+	/**
+	 * Act on the endpoints still to close as a phase of shutting down starts.
+	 * @param phase
+	 */
+	private void enterPhase(DrainPhase phase) {
+		log.info("shutdown phase "+phase+" with "+numDraining()+" endpoints to close");
+		switch(phase) {
+		case Force:
 			// let's send a stop session to existing clients
-			currentEndpoints.forEach((endpoint)->{
+			drainingEndpoints().forEach((endpoint)->{
 				SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol("SessionProtocol");
 				if(sessionProtocol!=null)
 					sessionProtocol.stopSession();
 			});
+			break;
+		case Vader:
+			// in this case we just close the endpoints, which will likely cause
+			// abrupt disconnection
+			drainingEndpoints().forEach((endpoint)->endpoint.close());
+			break;
+		default:
+			break;
 		}
-		
-		// in this case we just close the endpoints, which will likely cause
-		// abrupt disconnection
-		if(vaderShutdown) {
-			// let's just close everything
-			currentEndpoints.forEach((endpoint)->{
-				endpoint.close();
-			});
+	}
+	
+	/**
+	 * Emit the shutdown progress, and send it to the admin clients watching.
+	 * @param phase
+	 * @param remaining endpoints still to close
+	 */
+	private void reportProgress(DrainPhase phase, int remaining) {
+		log.info("shutdown "+phase+": waiting for "+remaining+" endpoints to finish");
+		localEmit(shutdownProgress,phase,remaining);
+		List<Endpoint> current;
+		endpointsLock.lock();
+		try {
+			current=new ArrayList<>(watchers);
+		} finally {
+			endpointsLock.unlock();
 		}
-		
-		// let's wait for the remaining clients if we can
-		while(numLiveEndpoints()>0 && !vaderShutdown) {
-			log.warning("still waiting for "+numLiveEndpoints()+" to finish");
-			try {
-				Thread.sleep(1000); // just wait a little longer
-			} catch (InterruptedException e) {
-				if(numLiveEndpoints()>0) {
-					log.severe("terminating server with "+numLiveEndpoints()+
-							" still unfinished");
-				}
-				break;
-			}
-			if(vaderShutdown) {
-				// maybe we missed some earlier
-				synchronized(liveEndpoints) {
-					currentEndpoints = new HashSet<>(liveEndpoints);
-				}
-				currentEndpoints.forEach((endpoint)->{
-						endpoint.close();
-				});
+		current.forEach((endpoint)->endpoint.emit(shutdownProgress,phase+" "+remaining));
+	}
+	
+	/**
+	 * Stop the sessions of the admin clients watching, once everything else
+	 * has drained, and close any that don't stop in time.
+	 * @throws InterruptedException
+	 */
+	private void stopWatchers() throws InterruptedException {
+		List<Endpoint> current;
+		endpointsLock.lock();
+		try {
+			current=new ArrayList<>(watchers);
+		} finally {
+			endpointsLock.unlock();
+		}
+		if(current.isEmpty()) return;
+		current.forEach((endpoint)->{
+			SessionProtocol sessionProtocol=(SessionProtocol) endpoint.getProtocol("SessionProtocol");
+			if(sessionProtocol!=null)
+				sessionProtocol.stopSession();
+		});
+		long timeout=drainTimeout>0 ? drainTimeout : watcherTimeout;
+		long nanos=TimeUnit.MILLISECONDS.toNanos(timeout);
+		endpointsLock.lock();
+		try {
+			while(!watchers.isEmpty() && nanos>0) {
+				nanos=endpointsChanged.awaitNanos(nanos);
 			}
+			current=new ArrayList<>(watchers);
+		} finally {
+			endpointsLock.unlock();
 		}
-		log.info("terminated");
+		current.forEach((endpoint)->endpoint.close());
 	}
 	
 	/**
@@ -268,7 +1013,21 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @param clientSocket the socket connection for the client.
 	 */
 	public void acceptClient(Socket clientSocket) {
+		socketProfile.apply(clientSocket);
 		Endpoint endpoint = new Endpoint(clientSocket,this);
+		endpoint.setUseVirtualThread(usesVirtualThread());
+		endpoint.start();
+	}
+	
+	/**
+	 * A new client has connected to the server using the {@link Engine#Nio}
+	 * engine. The endpoint is handed to one of the event loops rather than
+	 * being given a thread of its own.
+	 * @param clientChannel the non-blocking channel for the client.
+	 */
+	public void acceptClient(SocketChannel clientChannel) {
+		socketProfile.apply(clientChannel.socket());
+		Endpoint endpoint = new NioEndpoint(clientChannel,this,eventLoops.next());
 		endpoint.start();
 	}
 	
@@ -276,9 +1035,10 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * Called by a client endpoint to signal that it is now ready for
 	 * use, the server can send data and it may start receiving messages
 	 * from the client, etc. The server will now start the KeepAlive protocol
-	 * so as to detect clients that are dead. The server will wait for the
-	 * client to start the session protocol, or else terminate the connection
-	 * if it does not stay alive.
+	 * so as to detect clients that are dead, unless the endpoint is a logical
+	 * channel, whose connection is kept alive for it. The server will wait
+	 * for the client to start the session protocol, or else terminate the
+	 * connection if it does not stay alive.
 	 * @param endpoint
 	 */
 	@Override
@@ -287,8 +1047,25 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 			endpoint.close(); // we'll kill it here
 			return;
 		}
-		synchronized(liveEndpoints) {
+		String overloaded;
+		endpointsLock.lock();
+		try {
+			overloaded=overloaded();
 			liveEndpoints.add(endpoint);
+			if(overloaded==null) {
+				pendingHandshakes.add(endpoint);
+			} else {
+				long wait=retryAfter;
+				refusedEndpoints.put(endpoint,wait+ThreadLocalRandom.current().nextLong(wait+1));
+			}
+		} finally {
+			endpointsLock.unlock();
+		}
+		if(overloaded!=null) {
+			// the session protocol's own timeout closes it if it never asks
+			log.warning("not admitting client "+endpoint.getOtherEndpointId()+": "+overloaded);
+			startSessionProtocol(endpoint);
+			return;
 		}
 		
 		if(password!=null) {
@@ -314,9 +1091,25 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 				} else {
 					vaderShutdown();
 				}
+			}).on(watchShutdown, (args)->{
+				String msg = (String) args[0];
+				if(!msg.equals(password)) {
+					log.warning("incorrect password given by client: "+endpoint.getOtherEndpointId());
+				} else {
+					watch(endpoint);
+				}
 			});
 		}
 		
+		if(!endpoint.isChannel()) startKeepAliveProtocol(endpoint);
+		startSessionProtocol(endpoint);
+	}
+	
+	/**
+	 * Start the keep alive protocol, to detect the client if it is dead.
+	 * @param endpoint
+	 */
+	private void startKeepAliveProtocol(Endpoint endpoint) {
 		KeepAliveProtocol keepAliveProtocol = new KeepAliveProtocol(endpoint,this);
 		try {
 			// we need to add it to the endpoint before starting it
@@ -325,6 +1118,13 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		} catch (ProtocolAlreadyRunning e) {
 			// hmmm... already requested by the client
 		}
+	}
+	
+	/**
+	 * Wait for the client to start the session protocol.
+	 * @param endpoint
+	 */
+	private void startSessionProtocol(Endpoint endpoint) {
 		SessionProtocol sessionProtocol = new SessionProtocol(endpoint,this);
 		try {
 			endpoint.handleProtocol(sessionProtocol);
@@ -332,8 +1132,49 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		} catch (ProtocolAlreadyRunning e) {
 			// hmmm... already started by the client
 		}
-		
-		
+	}
+	
+	/**
+	 * Send the shutdown progress to an admin client, which is not waited
+	 * for until everything else has drained.
+	 * @param endpoint
+	 */
+	private void watch(Endpoint endpoint) {
+		endpointsLock.lock();
+		try {
+			if(liveEndpoints.contains(endpoint)) watchers.add(endpoint);
+			endpointsChanged.signalAll();
+		} finally {
+			endpointsLock.unlock();
+		}
+	}
+	
+	/**
+	 * Check the admission limits. Called holding the endpoints lock.
+	 * @return why another endpoint can't be admitted, or null if it can
+	 */
+	private String overloaded() {
+		int max=maxLiveEndpoints;
+		if(max>0 && liveEndpoints.size()-refusedEndpoints.size()-carrierEndpoints.size()>=max)
+			return "at most live endpoints "+max;
+		max=maxPendingHandshakes;
+		if(max>0 && pendingHandshakes.size()>=max)
+			return "at most pending handshakes "+max;
+		double heap=maxHeapUsage;
+		if(heap>0) {
+			Runtime runtime=Runtime.getRuntime();
+			double used=(double)(runtime.totalMemory()-runtime.freeMemory())/runtime.maxMemory();
+			if(used>heap) return String.format("heap usage %.2f over %.2f",used,heap);
+		}
+		double load=maxLoad;
+		if(load>0) {
+			double average=ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+			if(average>=0) {
+				average/=Runtime.getRuntime().availableProcessors();
+				if(average>load) return String.format("load %.2f over %.2f",average,load);
+			}
+		}
+		return null;
 	}
 	
 	/**
@@ -342,19 +1183,189 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	@Override
 	public void endpointClosed(Endpoint endpoint) {
-		synchronized(liveEndpoints) {
+		endpointsLock.lock();
+		try {
 			liveEndpoints.remove(endpoint);
+			pendingHandshakes.remove(endpoint);
+			refusedEndpoints.remove(endpoint);
+			carrierEndpoints.remove(endpoint);
+			watchers.remove(endpoint);
+			holdSession(endpoint);
+			endpointsChanged.signalAll();
+		} finally {
+			endpointsLock.unlock();
+		}
+	}
+	
+	/**
+	 * Hold the session of an endpoint whose connection was lost, for the
+	 * resume timeout. Called holding the endpoints lock.
+	 * @param endpoint
+	 */
+	private void holdSession(Endpoint endpoint) {
+		ResumableSession session=endpoint.getResumableSession();
+		if(session==null) return;
+		if(draining) {
+			heldSessions.remove(session.getToken());
+			return;
+		}
+		HeldSession held=heldSessions.get(session.getToken());
+		if(held==null || held.endpoint!=endpoint) return;
+		held.endpoint=null;
+		held.expiry=Utils.getInstance().setTimeout(()->{
+			endpointsLock.lock();
+			try {
+				if(heldSessions.get(session.getToken())==held && held.endpoint==null)
+					heldSessions.remove(session.getToken());
+			} finally {
+				endpointsLock.unlock();
+			}
+		}, resumeTimeout);
+	}
+	
+	/**
+	 * Stop holding sessions, as no connections are accepted to resume them.
+	 */
+	private void releaseHeldSessions() {
+		endpointsLock.lock();
+		try {
+			draining=true;
+			heldSessions.values().removeIf((held)->{
+				if(held.endpoint!=null) return false;
+				if(held.expiry!=null) held.expiry.cancel();
+				return true;
+			});
+		} finally {
+			endpointsLock.unlock();
+		}
+	}
+	
+	/**
+	 * Clients don't ask the server to resume sessions.
+	 * @param endpoint
+	 * @return null
+	 */
+	@Override
+	public ResumableSession sessionToResume(Endpoint endpoint) {
+		return null;
+	}
+	
+	/**
+	 * Resume the session with the token if it is held and can be resumed,
+	 * closing the endpoint of its old connection if that is still open,
+	 * else start a new session. A session carried on a logical channel is
+	 * resumed on a channel of the client's next connection.
+	 * @param endpoint
+	 * @param token
+	 * @param lastReceived
+	 * @param oldestKept
+	 * @return the session, or null if sessions can't be resumed
+	 */
+	@Override
+	public ResumableSession resumeSession(Endpoint endpoint, String token, long lastReceived,
+			long oldestKept) {
+		int capacity=replayCapacity;
+		if(capacity==0) return null;
+		Endpoint old=null;
+		ResumableSession session=null;
+		endpointsLock.lock();
+		try {
+			HeldSession held=token==null ? null : heldSessions.remove(token);
+			if(held!=null && held.session.resume(lastReceived,oldestKept)) {
+				if(held.expiry!=null) held.expiry.cancel();
+				held.expiry=null;
+				old=held.endpoint;
+				held.endpoint=endpoint;
+				heldSessions.put(token,held);
+				session=held.session;
+			} else {
+				if(held!=null) old=held.endpoint;
+				session=ResumableSession.create(capacity);
+				heldSessions.put(session.getToken(),new HeldSession(session,endpoint));
+			}
+		} finally {
+			endpointsLock.unlock();
+		}
+		if(old!=null && old!=endpoint) {
+			// the client has already given up on it
+			old.close();
 		}
+		if(token!=null && !session.isResumed()) {
+			log.info("could not resume session with client "+endpoint.getOtherEndpointId());
+		}
+		return session;
+	}
+	
+	/**
+	 * Clients don't start sessions for the server.
+	 * @param endpoint
+	 * @param token
+	 * @return null
+	 */
+	@Override
+	public ResumableSession sessionGiven(Endpoint endpoint, String token) {
+		return null;
+	}
+	
+	/**
+	 * The client has asked for the session to start, which is refused if
+	 * it was not admitted. A connection that only carries logical channels
+	 * is always accepted and no longer counted, as each of its channels is
+	 * admitted on its own.
+	 * @param endpoint
+	 * @return 0 to accept the session, otherwise how long the client should
+	 * wait before trying again, in ms
+	 */
+	@Override
+	public long sessionRequested(Endpoint endpoint) {
+		Long wait;
+		endpointsLock.lock();
+		try {
+			if(!endpoint.isCarrier()) {
+				wait=refusedEndpoints.get(endpoint);
+				return wait==null ? 0 : wait;
+			}
+			carrierEndpoints.add(endpoint);
+			pendingHandshakes.remove(endpoint);
+			wait=refusedEndpoints.remove(endpoint);
+		} finally {
+			endpointsLock.unlock();
+		}
+		// it was not admitted, so nothing checks it is alive yet
+		if(wait!=null) startKeepAliveProtocol(endpoint);
+		return 0;
+	}
+	
+	/**
+	 * The client's session has been refused and it has been told when to
+	 * try again, so it can be closed.
+	 * @param endpoint
+	 * @param retryAfter
+	 */
+	@Override
+	public void sessionRefused(Endpoint endpoint, long retryAfter) {
+		log.info("refused session with client "+endpoint.getOtherEndpointId()+
+				", retry after "+retryAfter+" ms");
+		sessionsRefused.incrementAndGet();
+		endpoint.close();
 	}
 
 	/**
 	 * The session has started for this client endpoint. Other protocols
-	 * may now be started, etc. We will start the event protocol now.
+	 * may now be started, etc. We will start the event protocol now. The
+	 * session of a connection that only carries logical channels is not
+	 * reported, as the application uses the channels' sessions.
 	 * @param endpoint
 	 */
 	@Override
 	public void sessionStarted(Endpoint endpoint) {
 		log.info("session has started with client: "+endpoint.getOtherEndpointId());
+		endpointsLock.lock();
+		try {
+			pendingHandshakes.remove(endpoint);
+		} finally {
+			endpointsLock.unlock();
+		}
 		
 		if(forceShutdown) {
 			// ask the client to stop now
@@ -374,7 +1385,9 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		
 		// the event protocol has started but still no events
 		// could have been received at this point
-		localEmit(sessionStarted,endpoint);
+		ResumableSession session=endpoint.getResumableSession();
+		if(!endpoint.isCarrier())
+			localEmit(sessionStarted,endpoint,session!=null && session.isResumed());
 		
 	}
 
@@ -388,8 +1401,18 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with client: "+endpoint.getOtherEndpointId());
+		ResumableSession session=endpoint.getResumableSession();
+		if(session!=null) {
+			// stopped cleanly, so nothing to resume
+			endpointsLock.lock();
+			try {
+				heldSessions.remove(session.getToken());
+			} finally {
+				endpointsLock.unlock();
+			}
+		}
 		
-		localEmit(sessionStopped,endpoint);
+		if(!endpoint.isCarrier()) localEmit(sessionStopped,endpoint);
 		
 		// we can now signal the client endpoint to close and forget this client
 		endpoint.close(); // will stop all remaining protocols
@@ -434,7 +1457,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void protocolViolation(Endpoint endpoint, Protocol protocol) {
 		log.severe("client "+endpoint.getOtherEndpointId()+" violated the protocol "+protocol.getProtocolName());
-		localEmit(sessionError,endpoint);
+		if(!endpoint.isCarrier()) localEmit(sessionError,endpoint);
 		endpoint.close();
 	}
 	
@@ -447,7 +1470,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointDisconnectedAbruptly(Endpoint endpoint) {
 		log.severe("client disconnected abruptly "+endpoint.getOtherEndpointId());
-		localEmit(sessionError,endpoint);
+		if(!endpoint.isCarrier()) localEmit(sessionError,endpoint);
 		endpoint.close();
 	}
 	
@@ -459,7 +1482,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointSentInvalidMessage(Endpoint endpoint) {
 		log.severe("client sent an invalid message "+endpoint.getOtherEndpointId());
-		localEmit(sessionError,endpoint);
+		if(!endpoint.isCarrier()) localEmit(sessionError,endpoint);
 		endpoint.close();
 	}
 
@@ -472,7 +1495,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointTimedOut(Endpoint endpoint, Protocol protocol) {
 		log.severe("client "+endpoint.getOtherEndpointId()+" has timed out on protocol "+protocol.getProtocolName());
-		localEmit(sessionError,endpoint);
+		if(!endpoint.isCarrier()) localEmit(sessionError,endpoint);
 		endpoint.close();
 	}
 
@@ -0,0 +1,179 @@
+package pb.managers;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.logging.Logger;
+
+/**
+ * A profile of socket options, applied to every socket a manager accepts or
+ * connects. Options that are not set are left as the operating system has
+ * them. There are presets for the two kinds of traffic in this system:
+ * {@link #interactive()}, for small messages that should go at once such as
+ * whiteboard updates, and {@link #bulk()}, for file transfers; a profile
+ * can also be built up option by option.
+ *
+ * @see {@link pb.managers.ServerManager#setSocketProfile(SocketProfile)}
+ * @see {@link pb.managers.ClientManager#setSocketProfile(SocketProfile)}
+ * @see {@link pb.managers.PeerManager#setSocketProfile(SocketProfile)}
+ */
+public class SocketProfile {
+	private static Logger log = Logger.getLogger(SocketProfile.class.getName());
+
+	/**
+	 * Names of the presets, as given on command lines.
+	 */
+	public static final String defaultPreset = "default";
+	public static final String interactivePreset = "interactive";
+	public static final String bulkPreset = "bulk";
+
+	/**
+	 * Size of the send and receive buffers of the bulk preset.
+	 */
+	public static final int bulkBufferSize = 1024*1024;
+
+	private final String name;
+	private Boolean tcpNoDelay=null;
+	private Boolean keepAlive=null;
+	private Integer sendBufferSize=null;
+	private Integer receiveBufferSize=null;
+	private Integer linger=null;
+
+	/**
+	 * Initialise a profile with no options set.
+	 * @param name of the profile, for logging
+	 */
+	public SocketProfile(String name) {
+		this.name=name;
+	}
+
+	/**
+	 *
+	 * @return a profile with no options set
+	 */
+	public static SocketProfile defaults() {
+		return new SocketProfile(defaultPreset);
+	}
+
+	/**
+	 *
+	 * @return a profile for small messages that should be sent at once:
+	 * no Nagle delay, and keep alive so that dead peers are noticed
+	 */
+	public static SocketProfile interactive() {
+		return new SocketProfile(interactivePreset).setTcpNoDelay(true).setKeepAlive(true);
+	}
+
+	/**
+	 *
+	 * @return a profile for large transfers: large send and receive
+	 * buffers, and keep alive
+	 */
+	public static SocketProfile bulk() {
+		return new SocketProfile(bulkPreset).setSendBufferSize(bulkBufferSize)
+				.setReceiveBufferSize(bulkBufferSize).setKeepAlive(true);
+	}
+
+	/**
+	 * Get a preset by name.
+	 * @param preset one of {@value #defaultPreset}, {@value #interactivePreset}
+	 * or {@value #bulkPreset}
+	 * @return the preset
+	 * @throws IllegalArgumentException if there is no preset with the name
+	 */
+	public static SocketProfile forName(String preset) {
+		switch(preset) {
+		case defaultPreset: return defaults();
+		case interactivePreset: return interactive();
+		case bulkPreset: return bulk();
+		default: throw new IllegalArgumentException("no socket profile: "+preset);
+		}
+	}
+
+	/**
+	 * Turn Nagle's algorithm off, or on.
+	 * @param tcpNoDelay
+	 * @return this profile
+	 */
+	public SocketProfile setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay=tcpNoDelay;
+		return this;
+	}
+
+	/**
+	 * Turn TCP keep alive on, or off.
+	 * @param keepAlive
+	 * @return this profile
+	 */
+	public SocketProfile setKeepAlive(boolean keepAlive) {
+		this.keepAlive=keepAlive;
+		return this;
+	}
+
+	/**
+	 * Set the size of the send buffer.
+	 * @param size in bytes
+	 * @return this profile
+	 */
+	public SocketProfile setSendBufferSize(int size) {
+		if(size<=0) throw new IllegalArgumentException("buffer size must be positive");
+		sendBufferSize=size;
+		return this;
+	}
+
+	/**
+	 * Set the size of the receive buffer. It is also set on the server
+	 * socket, so that it applies from the start of each accepted connection.
+	 * @param size in bytes
+	 * @return this profile
+	 */
+	public SocketProfile setReceiveBufferSize(int size) {
+		if(size<=0) throw new IllegalArgumentException("buffer size must be positive");
+		receiveBufferSize=size;
+		return this;
+	}
+
+	/**
+	 * Set how long closing a socket waits for unsent data to be sent.
+	 * @param seconds to wait, or -1 to not wait
+	 * @return this profile
+	 */
+	public SocketProfile setLinger(int seconds) {
+		linger=seconds;
+		return this;
+	}
+
+	/**
+	 * Apply the options to a server socket, before it is bound.
+	 * @param serverSocket
+	 */
+	public void apply(ServerSocket serverSocket) {
+		try {
+			if(receiveBufferSize!=null) serverSocket.setReceiveBufferSize(receiveBufferSize);
+		} catch (SocketException e) {
+			log.warning("could not apply "+this+" to server socket: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Apply the options to a socket, best setting buffer sizes before it
+	 * is connected. Options that can't be set are logged and skipped.
+	 * @param socket
+	 */
+	public void apply(Socket socket) {
+		try {
+			if(tcpNoDelay!=null) socket.setTcpNoDelay(tcpNoDelay);
+			if(keepAlive!=null) socket.setKeepAlive(keepAlive);
+			if(sendBufferSize!=null) socket.setSendBufferSize(sendBufferSize);
+			if(receiveBufferSize!=null) socket.setReceiveBufferSize(receiveBufferSize);
+			if(linger!=null) socket.setSoLinger(linger>=0,Math.max(0,linger));
+		} catch (SocketException e) {
+			log.warning("could not apply "+this+" to socket: "+e.getMessage());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name+" socket profile";
+	}
+}
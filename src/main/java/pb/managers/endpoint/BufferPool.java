@@ -0,0 +1,252 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of buffers that endpoints borrow to encode and decode frames, so
+ * that sending and receiving messages does not make garbage for every frame.
+ * Buffers come in size classes from {@value #minClassSize} bytes up to
+ * {@value #maxClassSize} bytes, each four times the one before, and are
+ * carved out of {@value #slabSize} byte slabs. A buffer must be given back
+ * with {@link #release(ByteBuffer)} once the frame in it has been written
+ * or dispatched, and must not be used after that.
+ * <br/>
+ * Larger buffers are not pooled: they are allocated on the heap when asked
+ * for and left for the garbage collector when released.
+ * <br/>
+ * Endpoints share the {@link #heap} pool. A pool of buffers outside of the
+ * heap can be made, but encoding into them a byte at a time is much slower
+ * than into an array, which outweighs the copy a channel makes when
+ * writing a heap buffer. The hit, miss and outstanding counts show how
+ * well a pool is working; an outstanding count that keeps growing means
+ * buffers are not released.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ */
+public class BufferPool {
+
+	/**
+	 * Size of the smallest buffers.
+	 */
+	public static final int minClassSize = 256;
+
+	/**
+	 * Size of the largest pooled buffers.
+	 */
+	public static final int maxClassSize = 1024*1024;
+
+	/**
+	 * Size of the slabs that buffers are cut from.
+	 */
+	public static final int slabSize = 1024*1024;
+
+	/**
+	 * Most bytes of free buffers to keep in each size class, buffers
+	 * released beyond this are left for the garbage collector.
+	 */
+	public static final int maxFreeBytesPerClass = 4*1024*1024;
+
+	/**
+	 * Buffers with backing arrays, shared by all endpoints.
+	 */
+	public static final BufferPool heap = new BufferPool(false);
+
+	/**
+	 * The free buffers of one size class, and its statistics, guarded by
+	 * its lock.
+	 */
+	private static class SizeClass {
+		final int size;
+		final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+		final ReentrantLock lock = new ReentrantLock();
+		long hits=0;
+		long misses=0;
+		long released=0;
+		SizeClass(int size) {
+			this.size=size;
+		}
+	}
+
+	private final boolean isDirect;
+	private final SizeClass[] classes;
+
+	/**
+	 * Statistics for buffers that are not pooled.
+	 */
+	private final AtomicLong unpooledAcquired=new AtomicLong();
+	private final AtomicLong unpooledReleased=new AtomicLong();
+	private final AtomicLong slabBytes=new AtomicLong();
+
+	/**
+	 * Initialise an empty pool, slabs are only allocated when needed.
+	 * @param isDirect whether buffers are outside of the heap
+	 */
+	public BufferPool(boolean isDirect) {
+		this.isDirect=isDirect;
+		int n=0;
+		for(int size=minClassSize;size<=maxClassSize;size*=4) n++;
+		classes=new SizeClass[n];
+		for(int i=0, size=minClassSize;i<n;i++, size*=4) {
+			classes[i]=new SizeClass(size);
+		}
+	}
+
+	/**
+	 *
+	 * @param size
+	 * @return the smallest size class that holds size bytes, or null if
+	 * buffers of that size are not pooled
+	 */
+	private SizeClass classFor(int size) {
+		if(size<=minClassSize) return classes[0];
+		// each class is four times, two bits, larger than the one before
+		int i=(33-Integer.numberOfLeadingZeros(size-1)-Integer.numberOfTrailingZeros(minClassSize))/2;
+		return i<classes.length ? classes[i] : null;
+	}
+
+	/**
+	 * Borrow a buffer.
+	 * @param size number of bytes needed
+	 * @return a cleared buffer with at least size bytes of room, its
+	 * limit set to size
+	 */
+	public ByteBuffer acquire(int size) {
+		SizeClass sizeClass=classFor(size);
+		if(sizeClass==null) {
+			unpooledAcquired.incrementAndGet();
+			return ByteBuffer.allocate(size);
+		}
+		ByteBuffer buffer;
+		sizeClass.lock.lock();
+		try {
+			buffer=sizeClass.free.pollLast();
+			if(buffer==null) {
+				buffer=carve(sizeClass);
+				sizeClass.misses++;
+			} else {
+				sizeClass.hits++;
+			}
+		} finally {
+			sizeClass.lock.unlock();
+		}
+		buffer.clear().limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Cut a new slab into buffers of a size class, keeping all but one of
+	 * them as free buffers. Called with the size class locked.
+	 * @param sizeClass
+	 * @return a buffer of the size class
+	 */
+	private ByteBuffer carve(SizeClass sizeClass) {
+		int size=Math.max(slabSize,sizeClass.size);
+		ByteBuffer slab=isDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		slabBytes.addAndGet(size);
+		ByteBuffer buffer=null;
+		for(int offset=0;offset+sizeClass.size<=size;offset+=sizeClass.size) {
+			slab.limit(offset+sizeClass.size).position(offset);
+			buffer=slab.slice();
+			if(offset+sizeClass.size<size) sizeClass.free.add(buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Give back a buffer borrowed from this pool.
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		SizeClass sizeClass=classFor(buffer.capacity());
+		if(sizeClass==null || sizeClass.size!=buffer.capacity() || buffer.isDirect()!=isDirect) {
+			unpooledReleased.incrementAndGet();
+			return;
+		}
+		sizeClass.lock.lock();
+		try {
+			sizeClass.released++;
+			if((sizeClass.free.size()+1)*(long)sizeClass.size<=maxFreeBytesPerClass) {
+				sizeClass.free.add(buffer);
+			}
+		} finally {
+			sizeClass.lock.unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @return true if the buffers are outside of the heap
+	 */
+	public boolean isDirect() {
+		return isDirect;
+	}
+
+	/**
+	 *
+	 * @return number of buffers handed out from the free buffers
+	 */
+	public long getHits() {
+		long hits=0;
+		for(SizeClass sizeClass : classes) {
+			sizeClass.lock.lock();
+			try {
+				hits+=sizeClass.hits;
+			} finally {
+				sizeClass.lock.unlock();
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 *
+	 * @return number of buffers that had to be allocated, from a new slab
+	 * or because they were too large to pool
+	 */
+	public long getMisses() {
+		long misses=unpooledAcquired.get();
+		for(SizeClass sizeClass : classes) {
+			sizeClass.lock.lock();
+			try {
+				misses+=sizeClass.misses;
+			} finally {
+				sizeClass.lock.unlock();
+			}
+		}
+		return misses;
+	}
+
+	/**
+	 *
+	 * @return number of buffers borrowed and not yet released
+	 */
+	public long getOutstanding() {
+		long outstanding=unpooledAcquired.get()-unpooledReleased.get();
+		for(SizeClass sizeClass : classes) {
+			sizeClass.lock.lock();
+			try {
+				outstanding+=sizeClass.hits+sizeClass.misses-sizeClass.released;
+			} finally {
+				sizeClass.lock.unlock();
+			}
+		}
+		return outstanding;
+	}
+
+	/**
+	 *
+	 * @return number of bytes allocated for slabs
+	 */
+	public long getSlabBytes() {
+		return slabBytes.get();
+	}
+
+	@Override
+	public String toString() {
+		return (isDirect ? "direct" : "heap")+" pool: hits="+getHits()+" misses="+getMisses()+
+				" outstanding="+getOutstanding()+" slabBytes="+getSlabBytes();
+	}
+}
@@ -0,0 +1,163 @@
+package pb.managers.endpoint;
+
+import java.util.logging.Logger;
+
+import pb.protocols.Message;
+
+/**
+ * A logical channel carried over the connection of another endpoint, its
+ * carrier. To its manager and protocols a channel is an endpoint like any
+ * other, with its own session, events and timeouts, but its messages are
+ * tagged with its channel id and sent on the carrier's connection, so
+ * opening one costs a session handshake rather than a new connection.
+ * The channel has no thread of its own; received messages are passed to
+ * it by the carrier.
+ * <br/>
+ * A channel is not kept alive separately, that is left to the carrier,
+ * and how frames are sent was settled by the carrier's session handshake.
+ * The carrier's outbound queue is shared by all of its channels, so a
+ * channel is writable when its carrier is, and {@link #writable} and
+ * {@link #unwritable} are emitted on the channels as well as the carrier.
+ * When the carrier closes, the manager of each of its channels is told
+ * that the channel has disconnected abruptly.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#openChannel(IEndpointHandler)}
+ */
+public class ChannelEndpoint extends Endpoint {
+	private static Logger log = Logger.getLogger(ChannelEndpoint.class.getName());
+
+	/**
+	 * The endpoint whose connection carries this channel.
+	 */
+	private final Endpoint carrier;
+
+	/**
+	 * Tags the messages of this channel.
+	 */
+	private final long channelId;
+
+	/**
+	 * Initialise the channel.
+	 * @param carrier
+	 * @param channelId
+	 * @param manager
+	 */
+	ChannelEndpoint(Endpoint carrier, long channelId, IEndpointHandler manager) {
+		super(carrier.socket,manager,carrier.pool);
+		this.carrier=carrier;
+		this.channelId=channelId;
+		setName("ChannelEndpoint");
+	}
+
+	/**
+	 * The channel is ready as soon as it exists, there is no thread
+	 * to start.
+	 */
+	@Override
+	public synchronized void start() {
+		signalReady();
+		// the carrier may have closed before the channel started
+		if(carrier.stopped) carrierClosed();
+	}
+
+	/**
+	 * Send a message on the carrier's connection, with the channel id in
+	 * its frame.
+	 */
+	@Override
+	protected boolean send(Message msg, boolean mayBlock) {
+		if(stopped) return false;
+		return carrier.send(msg,channelId,mayBlock);
+	}
+
+	/**
+	 * Nothing to close but the channel itself, the connection belongs
+	 * to the carrier.
+	 */
+	@Override
+	protected void closeConnection() {
+		outboundQueue.close();
+		carrier.removeChannel(this);
+	}
+
+	/**
+	 * The carrier has closed, so the channel can't be used any more.
+	 */
+	void carrierClosed() {
+		if(stopped) return;
+		log.warning("connection carrying channel "+channelId+" has closed");
+		manager.endpointDisconnectedAbruptly(this);
+		if(!stopped) close();
+	}
+
+	@Override
+	public boolean isChannel() {
+		return true;
+	}
+
+	/**
+	 *
+	 * @return the id of this channel on the carrier's connection
+	 */
+	public long getChannelId() {
+		return channelId;
+	}
+
+	/**
+	 *
+	 * @return the endpoint whose connection carries this channel
+	 */
+	public Endpoint getCarrier() {
+		return carrier;
+	}
+
+	@Override
+	public OutboundQueue getOutboundQueue() {
+		return carrier.getOutboundQueue();
+	}
+
+	@Override
+	public boolean isWritable() {
+		return carrier.isWritable();
+	}
+
+	@Override
+	public int getMaxFrameSize() {
+		return carrier.getMaxFrameSize();
+	}
+
+	@Override
+	public int getPeerMaxFrameSize() {
+		return carrier.getPeerMaxFrameSize();
+	}
+
+	@Override
+	public boolean usesBinaryCodec() {
+		return carrier.usesBinaryCodec();
+	}
+
+	@Override
+	public boolean usesCompression() {
+		return carrier.usesCompression();
+	}
+
+	@Override
+	public Codec getCodec() {
+		return carrier.getCodec();
+	}
+
+	@Override
+	public boolean getCompression() {
+		return carrier.getCompression();
+	}
+
+	@Override
+	public boolean getChannels() {
+		return false;
+	}
+
+	@Override
+	public String getOtherEndpointId() {
+		return carrier.getOtherEndpointId()+"#"+channelId;
+	}
+}
@@ -1,36 +1,74 @@
 package pb.managers.endpoint;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UTFDataFormatException;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import pb.utils.Eventable;
+import pb.utils.Threads;
+import pb.utils.Utf8;
 import pb.utils.Utils;
+import pb.protocols.BinaryCodec;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
-import pb.protocols.event.EventProtocol;
-import pb.protocols.event.IEventProtocolHandler;
+import pb.protocols.ProtocolRegistry;
 import pb.protocols.ICallback;
 import pb.protocols.IRequestReplyProtocol;
-import pb.protocols.keepalive.IKeepAliveProtocolHandler;
-import pb.protocols.keepalive.KeepAliveProtocol;
-import pb.protocols.session.ISessionProtocolHandler;
-import pb.protocols.session.SessionProtocol;
+import pb.protocols.session.ResumableSession;
+import pb.protocols.session.SessionStartRequest;
 
 /**
  * The endpoint is a thread that blocking reads incoming messages (on a socket)
  * and sends them to the appropriate protocol for processing; thus a
- * thread-per-connection model is being used. It also provides a synchronized
- * method to send data to the socket which will be sent to the other endpoint.
+ * thread-per-connection model is being used. It also provides a method to
+ * send data to the other endpoint; messages are queued in an
+ * {@link pb.managers.endpoint.OutboundQueue} and written to the socket by a
+ * writer thread of the endpoint's own, so that callers are not held up by a
+ * slow peer. Callers that produce a lot of data should pause while the endpoint
+ * is not writable, see {@link #writable} and {@link #unwritable}.
  * Any number of protocols can be handled by the endpoint, but there can be only
- * one instance of each protocol running at a time.
+ * one instance of each protocol running at a time. See
+ * {@link pb.managers.endpoint.NioEndpoint} for an endpoint that does not need
+ * a thread of its own.
+ * <br/>
+ * Messages are framed in one of two ways. A short frame is written by
+ * writeUTF: a two byte length and at most 65535 bytes of modified UTF-8.
+ * A long frame starts with a zero two byte length, which writeUTF never
+ * writes for a message, followed by a four byte length and the message in
+ * UTF-8. Long frames are only sent once the other endpoint has said, in the
+ * session handshake, how large a frame it accepts; both kinds are always
+ * accepted, so endpoints that don't know about long frames keep working.
+ * <br/>
+ * The message in a long frame is either JSON or, if both endpoints asked
+ * for it in the session handshake, encoded by the
+ * {@link pb.protocols.BinaryCodec}, see {@link #setCodec(Codec)}. It may
+ * also be compressed, if both endpoints said in the session handshake that
+ * they accept compressed frames, see {@link #setCompression(boolean)}.
+ * <br/>
+ * A connection can also carry logical channels, each a
+ * {@link pb.managers.endpoint.ChannelEndpoint} with protocols of its own,
+ * see {@link #openChannel(IEndpointHandler)}.
+ * <br/>
+ * Frames are encoded straight into buffers borrowed from a
+ * {@link pb.managers.endpoint.BufferPool}, which are released once they have
+ * been written, and long frames are read into borrowed buffers, which are
+ * released once the message in them has been parsed.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.protocols.session.SessionProtocol}
@@ -41,15 +79,115 @@ import pb.protocols.session.SessionProtocol;
 public class Endpoint extends Eventable {
 	private static Logger log = Logger.getLogger(Endpoint.class.getName());
 	
+	/**
+	 * Emitted locally (not sent to the other endpoint) when the outbound queue
+	 * has drained down to its low watermark after having been unwritable.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String writable = "WRITABLE";
+	
+	/**
+	 * Emitted locally (not sent to the other endpoint) when the outbound queue
+	 * has filled up to its high watermark. Producers should pause until
+	 * {@link #writable} is emitted.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Endpoint}</li>
+	 * </ul>
+	 */
+	public static final String unwritable = "UNWRITABLE";
+	
+	/**
+	 * How messages are encoded in long frames.
+	 */
+	static public enum Codec {
+		/**
+		 * JSON, as for short frames.
+		 */
+		Json,
+		/**
+		 * The {@link pb.protocols.BinaryCodec}.
+		 */
+		Binary
+	}
+	
+	/**
+	 * System property that selects the binary codec by default, e.g.
+	 * <code>java -Dpb.binaryCodec=true ...</code>
+	 */
+	public static final String binaryCodecProperty = "pb.binaryCodec";
+	
+	/**
+	 * System property that turns on compression by default, e.g.
+	 * <code>java -Dpb.compression=true ...</code>
+	 */
+	public static final String compressionProperty = "pb.compression";
+	
+	/**
+	 * System property that turns off logical channels, which are on by
+	 * default, e.g. <code>java -Dpb.channels=false ...</code>
+	 */
+	public static final String channelsProperty = "pb.channels";
+	
+	/**
+	 * System property that turns off coalescing of request timeouts, which
+	 * is on by default, e.g. <code>java -Dpb.coalesceTimeouts=false ...</code>
+	 */
+	public static final String coalesceTimeoutsProperty = "pb.coalesceTimeouts";
+	
+	/**
+	 * System property that turns off cumulative acknowledgement of events,
+	 * which is on by default, e.g. <code>java -Dpb.eventAcks=false ...</code>
+	 */
+	public static final String eventAcksProperty = "pb.eventAcks";
+	
+	/**
+	 * System property that turns off batching of events, which is on by
+	 * default, e.g. <code>java -Dpb.eventBatches=false ...</code>
+	 */
+	public static final String eventBatchesProperty = "pb.eventBatches";
+	
+	/**
+	 * System property that turns off counting any message as a sign of
+	 * life, which is on by default, e.g. <code>java -Dpb.quietKeepAlive=false ...</code>
+	 */
+	public static final String quietKeepAliveProperty = "pb.quietKeepAlive";
+	
+	/**
+	 * How long to wait for queued messages to be written when closing, in ms.
+	 */
+	private static final int closeTimeout = 5000;
+	
+	/**
+	 * Size of the buffer that messages are gathered in before being flushed.
+	 */
+	private static final int outBufferSize = 64*1024;
+	
+	/**
+	 * Default size of the largest long frame accepted from the other endpoint.
+	 */
+	public static final int defaultMaxFrameSize = 16*1024*1024;
+	
+	/**
+	 * Largest message that fits in a short frame.
+	 */
+	public static final int maxShortFrameSize = 65535;
+	
+	/**
+	 * Bytes before the message in a long frame.
+	 */
+	protected static final int longFrameHeaderSize = 6;
+	
 	/**
 	 * The socket this endpoint is wrapped around.
 	 */
-	private Socket socket;
+	protected Socket socket;
 	
 	/**
 	 * The manager to report to when things happen.
 	 */
-	private IEndpointHandler manager;
+	protected IEndpointHandler manager;
 	
 	/**
 	 * The input data stream on the socket.
@@ -62,9 +200,13 @@ public class Endpoint extends Eventable {
 	private DataOutputStream out=null;
 	
 	/**
-	 * A protocol name to protocol map, of protocols in use.
+	 * The protocols in use, indexed by their id in the
+	 * {@link pb.protocols.ProtocolRegistry}. The array is replaced, holding
+	 * the protocols lock, whenever a protocol starts or stops being handled,
+	 * so that finding the protocol for a received message takes no lock.
 	 */
-	private Map<String,Protocol> protocols;
+	private volatile Protocol[] protocols=new Protocol[0];
+	private final ReentrantLock protocolsLock=new ReentrantLock();
 	
 	/**
 	 * Timeout id to use.
@@ -72,14 +214,162 @@ public class Endpoint extends Eventable {
 	private long timeoutId=1;
 	
 	/**
-	 * Oustanding ids
+	 * Timeouts of messages that are waiting for a reply.
+	 */
+	private final RequestTimeouts requestTimeouts=new RequestTimeouts(
+			Boolean.parseBoolean(System.getProperty(coalesceTimeoutsProperty,"true")));
+	
+	/**
+	 * Estimates the round trip time to the other endpoint.
 	 */
-	private Set<Long> outstandingIds;
+	private final RttEstimator rtt=new RttEstimator();
 	
 	/**
 	 * stopped flag
 	 */
-	private volatile boolean stopped=true; // the use of send will return false always
+	protected volatile boolean stopped=true; // the use of send will return false always
+	
+	/**
+	 * Serializes the allocation of timeout ids and closing. A lock is used rather
+	 * than synchronized so that a virtual thread blocked inside it does not pin
+	 * its carrier thread.
+	 */
+	private final ReentrantLock sendLock=new ReentrantLock();
+	
+	/**
+	 * The pool that frames to send are encoded in.
+	 */
+	protected final BufferPool pool;
+	
+	/**
+	 * Messages waiting to be written.
+	 */
+	protected final OutboundQueue outboundQueue;
+	
+	/**
+	 * The thread writing messages from the outbound queue to the socket.
+	 */
+	private volatile Thread writer;
+	
+	/**
+	 * When the writer flushes.
+	 */
+	protected volatile FlushPolicy flushPolicy=FlushPolicy.endOfBatch;
+	
+	/**
+	 * Number of times data has been flushed to the socket. Only changed
+	 * by the writer.
+	 */
+	protected volatile long flushes=0;
+	
+	/**
+	 * Largest long frame accepted from the other endpoint.
+	 */
+	protected volatile int maxFrameSize=defaultMaxFrameSize;
+	
+	/**
+	 * Largest long frame the other endpoint accepts, or 0 if it only
+	 * accepts short frames.
+	 */
+	private volatile int peerMaxFrameSize=0;
+	
+	/**
+	 * The codec we ask the other endpoint to use, and use if it asks too.
+	 */
+	protected volatile Codec codec=Boolean.getBoolean(binaryCodecProperty) ? Codec.Binary : Codec.Json;
+	
+	/**
+	 * Whether the other endpoint asked for the binary codec.
+	 */
+	private volatile boolean peerBinaryCodec=false;
+	
+	/**
+	 * Whether we accept compressed frames, and compress frames if the
+	 * other endpoint accepts them too.
+	 */
+	protected volatile boolean compression=Boolean.getBoolean(compressionProperty);
+	
+	/**
+	 * Whether the other endpoint accepts compressed frames.
+	 */
+	private volatile boolean peerCompression=false;
+	
+	/**
+	 * Compresses and decompresses frames, and counts the bytes saved.
+	 */
+	protected final FrameCompressor compressor=new FrameCompressor();
+	
+	/**
+	 * Whether we accept logical channels on this connection.
+	 */
+	protected volatile boolean channels=Boolean.parseBoolean(System.getProperty(channelsProperty,"true"));
+	
+	/**
+	 * Whether the other endpoint accepts logical channels.
+	 */
+	private volatile boolean peerChannels=false;
+	
+	/**
+	 * Whether this connection only carries logical channels, so that its
+	 * own session is not one the application sees.
+	 */
+	private volatile boolean carrierOnly=false;
+	
+	/**
+	 * Whether we acknowledge events cumulatively, rather than each with a
+	 * reply, if the other endpoint does too.
+	 */
+	protected volatile boolean eventAcks=Boolean.parseBoolean(System.getProperty(eventAcksProperty,"true"));
+	
+	/**
+	 * Whether the other endpoint acknowledges events cumulatively.
+	 */
+	private volatile boolean peerEventAcks=false;
+	
+	/**
+	 * Whether we accept batches of events, and send them if the other
+	 * endpoint does too.
+	 */
+	protected volatile boolean eventBatches=Boolean.parseBoolean(System.getProperty(eventBatchesProperty,"true"));
+	
+	/**
+	 * Whether the other endpoint accepts batches of events.
+	 */
+	private volatile boolean peerEventBatches=false;
+	
+	/**
+	 * Whether we count any message as a sign of life, so that keep alive
+	 * requests need only be sent when the connection is quiet.
+	 */
+	protected volatile boolean quietKeepAlive=Boolean.parseBoolean(System.getProperty(quietKeepAliveProperty,"true"));
+	
+	/**
+	 * Whether the other endpoint counts any message as a sign of life.
+	 */
+	private volatile boolean peerQuietKeepAlive=false;
+	
+	/**
+	 * When a message was last received and last queued to send, by
+	 * {@link System#nanoTime()}.
+	 */
+	private volatile long lastHeard=System.nanoTime();
+	private volatile long lastSent=lastHeard;
+	
+	/**
+	 * The resumable session carried by this endpoint, or null if the
+	 * session can't be resumed.
+	 */
+	private volatile ResumableSession resumableSession=null;
+	
+	/**
+	 * The open logical channels on this connection, by channel id.
+	 */
+	private final Map<Long,ChannelEndpoint> channelEndpoints=new ConcurrentHashMap<>();
+	
+	/**
+	 * The id to give the next channel we open.
+	 */
+	private final AtomicLong nextChannelId=new AtomicLong(1);
 	
 	/**
 	 * Initialise the endpoint with a socket and a manager.
@@ -87,32 +377,609 @@ public class Endpoint extends Eventable {
 	 * @param manager
 	 */
 	public Endpoint(Socket socket, IEndpointHandler manager) {
+		this(socket,manager,BufferPool.heap);
+	}
+	
+	/**
+	 * Initialise the endpoint with a socket, a manager and the pool to
+	 * encode frames in.
+	 * @param socket
+	 * @param manager
+	 * @param pool
+	 */
+	protected Endpoint(Socket socket, IEndpointHandler manager, BufferPool pool) {
 		this.socket = socket;
 		this.manager = manager;
-		protocols = new HashMap<>();
-		outstandingIds = new HashSet<>();
+		this.pool = pool;
+		outboundQueue = new OutboundQueue(pool,()->writabilityChanged(writable),
+				()->writabilityChanged(unwritable));
 		setName("Endpoint"); // name the thread
 	}
 	
 	/**
-	 * Send a Message on the socket for this endpoint. This is synchronized
-	 * to avoid multiple concurrent messages overwriting each other on the socket.
+	 * Emit {@link #writable} or {@link #unwritable} on this endpoint and on
+	 * the channels it carries, which share its outbound queue.
+	 * @param eventName
+	 */
+	private void writabilityChanged(String eventName) {
+		localEmit(eventName,this);
+		channelEndpoints.values().forEach((channel)->channel.localEmit(eventName,channel));
+	}
+	
+	/**
+	 * Queue a Message to be sent on the socket for this endpoint. The caller
+	 * is only blocked if the outbound queue is at capacity.
+	 * @param msg
+	 * @return true if the message was queued, false otherwise
+	 */
+	public boolean send(Message msg) {
+		return send(msg,true);
+	}
+	
+	/**
+	 * Queue a Message to be sent on the socket for this endpoint without
+	 * ever blocking the caller, even if the outbound queue is at capacity,
+	 * for callers such as a shared timer thread that must not wait on one
+	 * slow connection.
+	 * @param msg
+	 * @return true if the message was queued, false otherwise
+	 */
+	public boolean sendWithoutBlocking(Message msg) {
+		return send(msg,false);
+	}
+	
+	/**
+	 * Queue a Message to be sent on the socket for this endpoint.
 	 * @param msg
-	 * @return true if the message was sent, false otherwise
+	 * @param mayBlock whether the caller may be blocked while the outbound
+	 * queue is at capacity
+	 * @return true if the message was queued, false otherwise
 	 */
-	public synchronized boolean send(Message msg) {
+	protected boolean send(Message msg, boolean mayBlock) {
+		return send(msg,0,mayBlock);
+	}
+	
+	/**
+	 * Queue a Message to be sent on the socket for this endpoint, tagged
+	 * with a logical channel. The message itself is left as it is.
+	 * @param msg
+	 * @param channelId the channel the message belongs to, 0 for the
+	 * connection itself
+	 * @param mayBlock whether the caller may be blocked while the outbound
+	 * queue is at capacity
+	 * @return true if the message was queued, false otherwise
+	 */
+	protected boolean send(Message msg, long channelId, boolean mayBlock) {
 		if(stopped) return false;
+		ByteBuffer frame;
 		try {
-			log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
-			out.flush();
+			frame=frame(msg,channelId);
 		} catch (IOException e) {
-			manager.endpointDisconnectedAbruptly(this);
+			// nothing has been written, so the connection is still fine
+			log.severe("message not sent to "+getOtherEndpointId()+": "+e.getMessage());
 			return false;
 		}
+		log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
+		if(!outboundQueue.offer(frame,mayBlock && mayBlockSender())) return false;
+		sent();
 		return true;
 	}
 	
+	/**
+	 * Encode a message as it will be written on the socket, in a long frame
+	 * if the other endpoint accepts them and in a short frame otherwise.
+	 * @param msg
+	 * @param channelId the channel the message belongs to, 0 for the
+	 * connection itself
+	 * @return a buffer borrowed from the pool holding the encoded frame,
+	 * ready to be written
+	 * @throws IOException if the message is too large for the other endpoint
+	 */
+	protected ByteBuffer frame(Message msg, long channelId) throws IOException {
+		int peerMax=peerMaxFrameSize;
+		if(peerMax==0) {
+			// as written by writeUTF
+			String json=msg.toJsonString(channelId);
+			int length=Utf8.modifiedLength(json);
+			if(length>maxShortFrameSize) {
+				throw new UTFDataFormatException("message of "+length+
+						" bytes is too long for the other endpoint");
+			}
+			ByteBuffer frame=pool.acquire(2+length);
+			frame.putShort((short)length);
+			Utf8.putModified(frame,json,length);
+			frame.flip();
+			return frame;
+		}
+		ByteBuffer frame=usesBinaryCodec() ?
+				BinaryCodec.encode(msg,channelId,longFrameHeaderSize,pool::acquire) : null;
+		if(frame==null) {
+			String json=msg.toJsonString(channelId);
+			int length=Utf8.length(json);
+			if(length>peerMax) throw frameTooLarge(length,peerMax);
+			frame=pool.acquire(longFrameHeaderSize+length);
+			frame.position(longFrameHeaderSize);
+			Utf8.put(frame,json,length);
+		}
+		int length=frame.position()-longFrameHeaderSize;
+		if(length>peerMax) {
+			pool.release(frame);
+			throw frameTooLarge(length,peerMax);
+		}
+		if(usesCompression()) {
+			frame=compressor.compress(frame,longFrameHeaderSize,pool);
+			length=frame.position()-longFrameHeaderSize;
+		}
+		frame.putShort(0,(short)0); // marks a long frame
+		frame.putInt(2,length);
+		frame.flip();
+		return frame;
+	}
+
+	private static IOException frameTooLarge(int length, int peerMax) {
+		return new IOException("message of "+length+
+				" bytes is larger than the other endpoint accepts ("+peerMax+")");
+	}
+	
+	/**
+	 * Parse a message from the payload of a long frame, either in the binary
+	 * codec or UTF-8 JSON, and possibly compressed, without making a string
+	 * of the whole payload first.
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return the message
+	 * @throws InvalidMessage if the payload is not a valid message
+	 */
+	protected Message parseLongFrame(byte[] bytes, int offset, int length) throws InvalidMessage {
+		if(FrameCompressor.isCompressed(bytes,offset,length)) {
+			ByteBuffer buffer=compressor.decompress(bytes,offset,length,maxFrameSize,BufferPool.heap);
+			try {
+				return parseMessage(buffer.array(),buffer.arrayOffset(),buffer.remaining());
+			} finally {
+				BufferPool.heap.release(buffer);
+			}
+		}
+		return parseMessage(bytes,offset,length);
+	}
+	
+	/**
+	 * Parse an uncompressed message, either in the binary codec or UTF-8 JSON.
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return the message
+	 * @throws InvalidMessage if the bytes are not a valid message
+	 */
+	private static Message parseMessage(byte[] bytes, int offset, int length) throws InvalidMessage {
+		if(BinaryCodec.isBinary(bytes,offset,length)) {
+			return BinaryCodec.decode(bytes,offset,length);
+		}
+		return Message.toMessage(new InputStreamReader(
+				new ByteArrayInputStream(bytes,offset,length),StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * 
+	 * @return the codec we ask the other endpoint to use
+	 */
+	public Codec getCodec() {
+		return codec;
+	}
+	
+	/**
+	 * Set the codec to ask the other endpoint to use. It is told to the
+	 * other endpoint in the session handshake, so should be set before the
+	 * session starts. The binary codec is only used if both endpoints ask
+	 * for it, otherwise messages are sent as JSON.
+	 * @param codec
+	 */
+	public void setCodec(Codec codec) {
+		this.codec=codec;
+	}
+	
+	/**
+	 * Record whether the other endpoint asked for the binary codec, as
+	 * told in the session handshake.
+	 * @param peerBinaryCodec
+	 */
+	public void setPeerBinaryCodec(boolean peerBinaryCodec) {
+		this.peerBinaryCodec=peerBinaryCodec;
+	}
+	
+	/**
+	 * 
+	 * @return true if messages are sent to the other endpoint in the binary codec
+	 */
+	public boolean usesBinaryCodec() {
+		return codec==Codec.Binary && peerBinaryCodec && peerMaxFrameSize>0;
+	}
+	
+	/**
+	 * 
+	 * @return true if we accept compressed frames
+	 */
+	public boolean getCompression() {
+		return compression;
+	}
+	
+	/**
+	 * Set whether we accept compressed frames. It is told to the other
+	 * endpoint in the session handshake, so should be set before the
+	 * session starts. Frames are only compressed if both endpoints accept
+	 * them; messages smaller than {@link FrameCompressor#getThreshold()}
+	 * are never compressed.
+	 * @param compression
+	 */
+	public void setCompression(boolean compression) {
+		this.compression=compression;
+	}
+	
+	/**
+	 * Record whether the other endpoint accepts compressed frames, as
+	 * told in the session handshake.
+	 * @param peerCompression
+	 */
+	public void setPeerCompression(boolean peerCompression) {
+		this.peerCompression=peerCompression;
+	}
+	
+	/**
+	 * 
+	 * @return true if frames sent to the other endpoint are compressed
+	 */
+	public boolean usesCompression() {
+		return compression && peerCompression && peerMaxFrameSize>0;
+	}
+	
+	/**
+	 * 
+	 * @return true if we accept logical channels on this connection
+	 */
+	public boolean getChannels() {
+		return channels;
+	}
+	
+	/**
+	 * Set whether we accept logical channels on this connection. It is
+	 * told to the other endpoint in the session handshake, so should be
+	 * set before the session starts.
+	 * @param channels
+	 */
+	public void setChannels(boolean channels) {
+		this.channels=channels;
+	}
+	
+	/**
+	 * Record whether the other endpoint accepts logical channels, as
+	 * told in the session handshake.
+	 * @param peerChannels
+	 */
+	public void setPeerChannels(boolean peerChannels) {
+		this.peerChannels=peerChannels;
+	}
+	
+	/**
+	 * 
+	 * @return true if this connection only carries logical channels
+	 */
+	public boolean isCarrier() {
+		return carrierOnly;
+	}
+	
+	/**
+	 * Set whether this connection only carries logical channels. It is
+	 * told to the other endpoint in the session handshake, so should be
+	 * set before the session starts, and is recorded from it by the other
+	 * endpoint.
+	 * @param carrier
+	 */
+	public void setCarrier(boolean carrier) {
+		this.carrierOnly=carrier;
+	}
+	
+	/**
+	 * 
+	 * @return true if we acknowledge events cumulatively
+	 */
+	public boolean getEventAcks() {
+		return eventAcks;
+	}
+	
+	/**
+	 * Set whether we acknowledge events cumulatively, see
+	 * {@link pb.protocols.event.EventProtocol}. It is told to the other
+	 * endpoint in the session handshake, so should be set before the
+	 * session starts. Events are only acknowledged cumulatively if both
+	 * endpoints do so, otherwise each is replied to.
+	 * @param eventAcks
+	 */
+	public void setEventAcks(boolean eventAcks) {
+		this.eventAcks=eventAcks;
+	}
+	
+	/**
+	 * Record whether the other endpoint acknowledges events cumulatively,
+	 * as told in the session handshake.
+	 * @param peerEventAcks
+	 */
+	public void setPeerEventAcks(boolean peerEventAcks) {
+		this.peerEventAcks=peerEventAcks;
+	}
+	
+	/**
+	 * 
+	 * @return true if events are acknowledged cumulatively on this connection
+	 */
+	public boolean usesEventAcks() {
+		return eventAcks && peerEventAcks;
+	}
+	
+	/**
+	 * 
+	 * @return true if we accept batches of events
+	 */
+	public boolean getEventBatches() {
+		return eventBatches;
+	}
+	
+	/**
+	 * Set whether we accept batches of events, see
+	 * {@link pb.protocols.event.EventProtocol}. It is told to the other
+	 * endpoint in the session handshake, so should be set before the
+	 * session starts. Events are only sent in batches if both endpoints
+	 * accept them.
+	 * @param eventBatches
+	 */
+	public void setEventBatches(boolean eventBatches) {
+		this.eventBatches=eventBatches;
+	}
+	
+	/**
+	 * Record whether the other endpoint accepts batches of events, as told
+	 * in the session handshake.
+	 * @param peerEventBatches
+	 */
+	public void setPeerEventBatches(boolean peerEventBatches) {
+		this.peerEventBatches=peerEventBatches;
+	}
+	
+	/**
+	 * 
+	 * @return true if events are sent in batches on this connection
+	 */
+	public boolean usesEventBatches() {
+		return eventBatches && peerEventBatches;
+	}
+	
+	/**
+	 * 
+	 * @return true if we count any message as a sign of life
+	 */
+	public boolean getQuietKeepAlive() {
+		return quietKeepAlive;
+	}
+	
+	/**
+	 * Set whether we count any message as a sign of life, see
+	 * {@link pb.protocols.keepalive.KeepAliveProtocol}. It is told to the
+	 * other endpoint in the session handshake, so should be set before the
+	 * session starts. Keep alive requests are only left out while there is
+	 * traffic if both endpoints do so.
+	 * @param quietKeepAlive
+	 */
+	public void setQuietKeepAlive(boolean quietKeepAlive) {
+		this.quietKeepAlive=quietKeepAlive;
+	}
+	
+	/**
+	 * Record whether the other endpoint counts any message as a sign of
+	 * life, as told in the session handshake.
+	 * @param peerQuietKeepAlive
+	 */
+	public void setPeerQuietKeepAlive(boolean peerQuietKeepAlive) {
+		this.peerQuietKeepAlive=peerQuietKeepAlive;
+	}
+	
+	/**
+	 * 
+	 * @return true if keep alive requests need only be sent when this
+	 * connection is quiet
+	 */
+	public boolean usesQuietKeepAlive() {
+		return quietKeepAlive && peerQuietKeepAlive;
+	}
+	
+	/**
+	 * 
+	 * @return when a message was last received, by {@link System#nanoTime()}
+	 */
+	public long getLastHeard() {
+		return lastHeard;
+	}
+	
+	/**
+	 * 
+	 * @return when a message was last queued to send, by {@link System#nanoTime()}
+	 */
+	public long getLastSent() {
+		return lastSent;
+	}
+	
+	/**
+	 * Record that a message was queued to send.
+	 */
+	protected void sent() {
+		lastSent=System.nanoTime();
+	}
+	
+	/**
+	 * Record the resumable session carried by this endpoint, as agreed in
+	 * the session handshake.
+	 * @param resumableSession or null if the session can't be resumed
+	 */
+	public void setResumableSession(ResumableSession resumableSession) {
+		this.resumableSession=resumableSession;
+	}
+	
+	/**
+	 * 
+	 * @return the resumable session carried by this endpoint, or null if
+	 * the session can't be resumed
+	 */
+	public ResumableSession getResumableSession() {
+		return resumableSession;
+	}
+	
+	/**
+	 * 
+	 * @return true if channels can be opened to the other endpoint
+	 */
+	public boolean usesChannels() {
+		return channels && peerChannels;
+	}
+	
+	/**
+	 * 
+	 * @return the compressor, for its threshold and its statistics
+	 */
+	public FrameCompressor getCompressor() {
+		return compressor;
+	}
+	
+	/**
+	 * 
+	 * @return size of the largest long frame accepted from the other endpoint
+	 */
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+	
+	/**
+	 * Set the size of the largest long frame accepted from the other endpoint.
+	 * It is told to the other endpoint in the session handshake, so should
+	 * be set before the session starts.
+	 * @param maxFrameSize at least {@link #maxShortFrameSize}
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if(maxFrameSize<maxShortFrameSize)
+			throw new IllegalArgumentException("frames of "+maxShortFrameSize+" bytes must be accepted");
+		this.maxFrameSize=maxFrameSize;
+	}
+	
+	/**
+	 * 
+	 * @return size of the largest long frame that the other endpoint accepts,
+	 * or 0 if it only accepts short frames
+	 */
+	public int getPeerMaxFrameSize() {
+		return peerMaxFrameSize;
+	}
+	
+	/**
+	 * Record the largest long frame that the other endpoint accepts, as
+	 * told in the session handshake. From now on messages are sent in
+	 * long frames.
+	 * @param peerMaxFrameSize 0 if the other endpoint did not say, in
+	 * which case short frames continue to be sent
+	 */
+	public void setPeerMaxFrameSize(long peerMaxFrameSize) {
+		if(peerMaxFrameSize<=0) return;
+		this.peerMaxFrameSize=(int)Math.min(Integer.MAX_VALUE-longFrameHeaderSize,peerMaxFrameSize);
+	}
+	
+	/**
+	 * Write queued frames to the socket until the queue is closed. Frames are
+	 * gathered in the output buffer and flushed according to the flush policy.
+	 */
+	private void writeFrames() {
+		try {
+			OutboundQueue.Frame frame;
+			while((frame=outboundQueue.take())!=null) {
+				FlushPolicy policy=flushPolicy;
+				write(frame);
+				long unflushed=frame.size;
+				long delay=TimeUnit.MICROSECONDS.toNanos(policy.getDelayMicros());
+				long flushAt=System.nanoTime()+delay;
+				while(unflushed<policy.getMaxBytes()) {
+					frame = delay==0 ? outboundQueue.poll() :
+						outboundQueue.poll(flushAt-System.nanoTime());
+					if(frame==null) break;
+					write(frame);
+					unflushed+=frame.size;
+				}
+				out.flush();
+				flushes++;
+			}
+		} catch (IOException e) {
+			outboundQueue.abandon();
+			if(!stopped) manager.endpointDisconnectedAbruptly(this);
+		} catch (InterruptedException e) {
+			outboundQueue.abandon();
+		}
+	}
+	
+	/**
+	 * Write a frame to the output buffer and give it back to the pool.
+	 * @param frame
+	 * @throws IOException
+	 */
+	private void write(OutboundQueue.Frame frame) throws IOException {
+		ByteBuffer buffer=frame.buffer;
+		try {
+			if(buffer.hasArray()) {
+				out.write(buffer.array(),buffer.arrayOffset()+buffer.position(),buffer.remaining());
+			} else {
+				byte[] bytes=new byte[buffer.remaining()];
+				buffer.get(bytes);
+				out.write(bytes);
+			}
+		} finally {
+			pool.release(buffer);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the queue of messages waiting to be written, for its statistics
+	 */
+	public OutboundQueue getOutboundQueue() {
+		return outboundQueue;
+	}
+	
+	/**
+	 * 
+	 * @return the pool that frames to send are encoded in, for its statistics
+	 */
+	public BufferPool getBufferPool() {
+		return pool;
+	}
+	
+	/**
+	 * Set when queued messages are flushed to the socket.
+	 * @param flushPolicy
+	 */
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		this.flushPolicy=flushPolicy;
+	}
+	
+	/**
+	 * 
+	 * @return number of times data has been flushed to the socket, which
+	 * compared to the number of messages sent shows how well they are gathered
+	 */
+	public long getFlushCount() {
+		return flushes;
+	}
+	
+	/**
+	 * 
+	 * @return true if the outbound queue is below its high watermark
+	 */
+	public boolean isWritable() {
+		return outboundQueue.isWritable();
+	}
+	
 	/**
 	 * Send a message and attach a timeout identifier to it. The callback
 	 * is triggered if no reply to the message was seen within the given
@@ -122,25 +989,67 @@ public class Endpoint extends Eventable {
 	 * @param timeInterval
 	 * @return true if the message was sent and false otherwise
 	 */
-	public synchronized boolean sendWithTimeout(Message msg,
+	public boolean sendWithTimeout(Message msg,
 			ICallback timeoutCallback,int timeInterval) {
-		long nextId = timeoutId++;
-		synchronized(outstandingIds) {
-			outstandingIds.add(nextId);
+		long nextId;
+		boolean sent;
+		awaitRoom();
+		sendLock.lock();
+		try {
+			nextId = timeoutId++;
+			// the timeout is in place before the reply can arrive
+			requestTimeouts.add(nextId,timeoutCallback,timeInterval);
+			msg.setTimeoutId(nextId);
+			sent=send(msg,false);
+		} finally {
+			sendLock.unlock();
 		}
-		msg.setTimeoutId(nextId);
-		boolean sent=send(msg);
-		if(!sent) return false;
-		Utils.getInstance().setTimeout(()->{
-			boolean timedout;
-			synchronized(outstandingIds) {
-				timedout=outstandingIds.contains(nextId);
-			}
-			if(timedout) timeoutCallback.callback();
-		}, timeInterval);
+		if(!sent) requestTimeouts.remove(nextId);
 		return sent;
 	}
 	
+	/**
+	 * Send a message with a timeout identifier attached to it, but no
+	 * timeout, for a protocol that keeps track of its replies itself.
+	 * Identifiers are given in the order messages are queued, so a reply
+	 * to the message with one identifier can also stand for the replies to
+	 * the protocol's messages with lower identifiers.
+	 * @param msg
+	 * @return the timeout identifier, or 0 if the message was not sent
+	 */
+	public long sendNumbered(Message msg) {
+		awaitRoom();
+		sendLock.lock();
+		try {
+			long nextId = timeoutId++;
+			msg.setTimeoutId(nextId);
+			return send(msg,false) ? nextId : 0;
+		} finally {
+			sendLock.unlock();
+		}
+	}
+	
+	/**
+	 * Wait while the outbound queue is at capacity, if the caller may be
+	 * blocked. Messages numbered under the send lock are then queued
+	 * without blocking, as {@link #close()} needs the lock, and a sender
+	 * blocked holding it would keep an endpoint whose peer stopped reading
+	 * from ever closing.
+	 */
+	private void awaitRoom() {
+		if(mayBlockSender()) getOutboundQueue().awaitRoom();
+	}
+	
+	/**
+	 * 
+	 * @return true if the calling thread may be blocked while the outbound
+	 * queue is at capacity, which no event loop may be, e.g. a callback on
+	 * one loop sending to endpoints on others
+	 */
+	protected boolean mayBlockSender() {
+		return !NioEventLoop.inAnyEventLoop();
+	}
+	
 	/**
 	 * Send a message in reply to a message that has a timeout id associated
 	 * with it. If it is received in time then it will ensure that a timeout
@@ -149,18 +1058,69 @@ public class Endpoint extends Eventable {
 	 * @param replyingTo
 	 * @return true if the message was sent and false otherwise
 	 */
-	public synchronized boolean sendAndCancelTimeout(Message msg,
+	public boolean sendAndCancelTimeout(Message msg,
 			Message replyingTo) {
 		msg.setTimeoutId(replyingTo.getTimeoutId());
 		return(send(msg));
 	}
+
+	/**
+	 *
+	 * @return number of messages sent with a timeout that are still
+	 * waiting for a reply
+	 */
+	public int getOutstandingRequests() {
+		return requestTimeouts.size();
+	}
+	
+	/**
+	 * 
+	 * @return the estimate of the round trip time to the other endpoint,
+	 * from how long requests take to be replied to
+	 */
+	public RttEstimator getRtt() {
+		return rtt;
+	}
+	
+	/**
+	 * 
+	 * @return true if request timeouts are coalesced
+	 */
+	public boolean getCoalesceTimeouts() {
+		return requestTimeouts.getCoalesce();
+	}
 	
+	/**
+	 * Set whether the timeouts of requests sent from now on are coalesced,
+	 * so that the endpoint has a single timeout, for the earliest deadline
+	 * of its outstanding requests, rather than one per request. Either way
+	 * the callback of each request that is not replied to in time is called.
+	 * @param coalesce
+	 */
+	public void setCoalesceTimeouts(boolean coalesce) {
+		requestTimeouts.setCoalesce(coalesce);
+	}
+
 	/**
 	 * Closes the endpoint, which closes the socket. Both the endpoint thread
 	 * and the timer thread may end up attempting to do this in the event that
 	 * they detect problems.
 	 */
-	public synchronized void close() {
+	public void close() {
+		sendLock.lock();
+		try {
+			closeLocked();
+		} finally {
+			sendLock.unlock();
+		}
+		// the channels can't go on without the connection
+		channelEndpoints.values().forEach((channel)->channel.carrierClosed());
+	}
+	
+	/**
+	 * Does the work of {@link #close()} while holding the send lock.
+	 */
+	private void closeLocked() {
 		// we are stopping this endpoint, the send method will return false always now.
 		stopped=true;
 		/* 
@@ -168,12 +1128,9 @@ public class Endpoint extends Eventable {
 		* their intended function however - and this should be flagged as an error
 		* if it is the case.
 		*/
-		Set<String> protocolNames;
-		synchronized(protocols) {
-			protocolNames = new HashSet<String>(protocols.keySet());
+		for(Protocol protocol : protocols) {
+			if(protocol!=null) stopProtocol(protocol.getProtocolName());
 		}
-		if(protocolNames!=null)
-			protocolNames.forEach((protocolName)->{stopProtocol(protocolName);});
 		
 		/*
 		 *  The endpoint thread itself will not process any more messages if we
@@ -186,14 +1143,48 @@ public class Endpoint extends Eventable {
 		/**
 		 * At this point there may be exactly one _currently executing_ timer
 		 * thread callback (which is a pain, but it can't be inside the
-		 * send methods because these methods are synchronized), plus there may
+		 * close method because it holds the send lock), plus there may
 		 * be pending timer thread callbacks that will want to use this endpoint
 		 * (which wont run since protocol stopped has been set in the protocols).
 		 * The endpoint is at this point just "closing", not closed.
 		 */
 		
+		closeConnection();
+		compressor.end();
+		manager.endpointClosed(this);
+	}
+	
+	/**
+	 * Let the writer finish writing what has been queued, e.g. a final
+	 * session stop reply, and then close the socket.
+	 */
+	protected void closeConnection() {
+		outboundQueue.close();
+		Thread writer=this.writer;
+		boolean stuck=false;
+		if(writer!=null && Thread.currentThread()!=writer) {
+			// the writer stops once the queue is empty; we may have just
+			// interrupted ourselves, so keep waiting regardless
+			long deadline=System.currentTimeMillis()+closeTimeout;
+			boolean interrupted=false;
+			while(writer.isAlive() && System.currentTimeMillis()<deadline) {
+				try {
+					writer.join(Math.max(1,deadline-System.currentTimeMillis()));
+				} catch (InterruptedException e) {
+					interrupted=true;
+				}
+			}
+			if(interrupted) Thread.currentThread().interrupt();
+			if(writer.isAlive()) {
+				log.warning("closing with unsent messages to: "+getOtherEndpointId());
+				// the other endpoint is not reading, so flushing the stream
+				// would block too; closing the socket stops the writer
+				stuck=true;
+				outboundQueue.abandon();
+			}
+		}
 		try {
-			if(out!=null) out.close();
+			if(out!=null && !stuck) out.close();
 			out=null;
 		} catch (IOException e) {
 			log.warning("connection did not close properly: "+e.getMessage());
@@ -203,7 +1194,6 @@ public class Endpoint extends Eventable {
 		} catch (IOException e) {
 			log.warning("socket did not close properly: "+e.getMessage());
 		}
-		manager.endpointClosed(this);
 	}
 	
 	/**
@@ -212,55 +1202,24 @@ public class Endpoint extends Eventable {
 	@Override
 	public void run() {
 		try {
-			in = new DataInputStream(socket.getInputStream());
-			out = new DataOutputStream(socket.getOutputStream());
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(
+					socket.getOutputStream(),outBufferSize));
 		} catch (IOException e){
 			manager.endpointDisconnectedAbruptly(this);
 			return;
 		}
-		stopped=false; // allow use of the out stream
-		manager.endpointReady(this);
-		log.info("endpoint has started to: "+getOtherEndpointId());
+		writer=Threads.startThread("EndpointWriter",this::writeFrames,usesVirtualThread());
+		signalReady();
 		while(!isInterrupted()) {
 			try {
-				String line=in.readUTF();
-				Message msg = Message.toMessage(line);
-				// cancel any related time out
-				if(msg.getType()==Message.Type.Reply) {
-					synchronized(outstandingIds) {
-						outstandingIds.remove(msg.getTimeoutId());
-					}
-				}
-				// find the protocol
-				Protocol protocol=null;
-				synchronized(protocols) {
-					protocol=protocols.get(msg.getProtocolName());
-				}
-				if(protocol==null) {
-					switch(msg.getProtocolName()) {
-					case SessionProtocol.protocolName:
-						protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
-						break;
-					case KeepAliveProtocol.protocolName:
-						protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
-						break;
-					case EventProtocol.protocolName:
-						protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
-					}
-					if(!manager.protocolRequested(this,protocol)) {
-						log.info("message dropped due to no protocol available: "+line);
-						continue;
-					}
-				}
-				log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
-				switch(msg.getType()) {
-				case Request:
-					((IRequestReplyProtocol)protocol).receiveRequest(msg);
-					break;
-				case Reply:
-					((IRequestReplyProtocol)protocol).receiveReply(msg);
+				Message msg=readFrame();
+				if(msg==null) {
+					manager.endpointSentInvalidMessage(this);
+					// we can't find the next frame
 					break;
 				}
+				receive(msg);
 			} catch (IOException e) {
 				manager.endpointDisconnectedAbruptly(this);
 				// we can't continue here
@@ -278,6 +1237,87 @@ public class Endpoint extends Eventable {
 		log.info("endpoint has terminated to: "+getOtherEndpointId());
 	}
 	
+	/**
+	 * Read the next frame, short or long, from the socket.
+	 * @return the message in the frame, or null if the frame is larger than
+	 * accepted, in which case the stream can't be read any further
+	 * @throws IOException
+	 * @throws InvalidMessage if the frame does not hold a valid message
+	 */
+	private Message readFrame() throws IOException, InvalidMessage {
+		in.mark(2);
+		int length=in.readUnsignedShort();
+		if(length!=0) {
+			in.reset();
+			return Message.toMessage(in.readUTF());
+		}
+		length=in.readInt();
+		if(length<0 || length>maxFrameSize) {
+			log.severe("frame of "+length+" bytes is larger than accepted from "+getOtherEndpointId());
+			return null;
+		}
+		ByteBuffer buffer=BufferPool.heap.acquire(length);
+		try {
+			in.readFully(buffer.array(),buffer.arrayOffset(),length);
+			// the message does not refer to the buffer once parsed
+			return parseLongFrame(buffer.array(),buffer.arrayOffset(),length);
+		} finally {
+			BufferPool.heap.release(buffer);
+		}
+	}
+	
+	/**
+	 * Allow use of the endpoint for sending and tell the manager that
+	 * it is ready. Called once the underlying connection can carry data.
+	 */
+	protected void signalReady() {
+		stopped=false; // allow use of the out stream
+		manager.endpointReady(this);
+		log.info("endpoint has started to: "+getOtherEndpointId());
+	}
+	
+	/**
+	 * Pass a received message to the appropriate protocol, creating the
+	 * protocol if the manager allows it.
+	 * @param msg the received message
+	 */
+	protected void receive(Message msg) {
+		lastHeard=System.nanoTime();
+		if(msg.getChannelId()!=0 && !isChannel()) {
+			receiveOnChannel(msg);
+			return;
+		}
+		// cancel any related time out, and time the round trip
+		if(msg.getType()==Message.Type.Reply) {
+			long waited=requestTimeouts.remove(msg.getTimeoutId());
+			if(waited>=0) rtt.sample(waited);
+		}
+		// find the protocol
+		int protocolId=msg.getProtocolId();
+		Protocol protocol=getProtocol(protocolId);
+		if(protocol==null) {
+			if(stopped) {
+				// the protocols were stopped on closing, don't start them again
+				log.info("message dropped as the endpoint is closed: "+msg.getName());
+				return;
+			}
+			protocol=ProtocolRegistry.newProtocol(protocolId,this,manager);
+			if(protocol==null || !manager.protocolRequested(this,protocol)) {
+				log.info("message dropped due to no protocol available: "+msg.toJsonString());
+				return;
+			}
+		}
+		log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
+		switch(msg.getType()) {
+		case Request:
+			((IRequestReplyProtocol)protocol).receiveRequest(msg);
+			break;
+		case Reply:
+			((IRequestReplyProtocol)protocol).receiveReply(msg);
+			break;
+		}
+	}
+	
 	/**
 	 * Start handling a protocol. Only one instance of a protocol can be handled
 	 * at a time. Either client or server may start/initiate the use of the protocol.
@@ -287,13 +1327,19 @@ public class Endpoint extends Eventable {
 	 * running on this endpoint
 	 */
 	public void handleProtocol(Protocol protocol) throws ProtocolAlreadyRunning {
-		synchronized(protocols) {
-			if(protocols.containsKey(protocol.getProtocolName())){
+		int protocolId=ProtocolRegistry.registerProtocol(protocol.getProtocolName());
+		protocolsLock.lock();
+		try {
+			Protocol[] current=protocols;
+			if(protocolId<current.length && current[protocolId]!=null) {
 				throw new ProtocolAlreadyRunning();
-			} else {
-				protocols.put(protocol.getProtocolName(),protocol);
-				log.info("now handling protocol: "+protocol.getProtocolName());
 			}
+			Protocol[] updated=Arrays.copyOf(current,Math.max(current.length,protocolId+1));
+			updated[protocolId]=protocol;
+			protocols=updated;
+			log.info("now handling protocol: "+protocol.getProtocolName());
+		} finally {
+			protocolsLock.unlock();
 		}
 	}
 	
@@ -304,16 +1350,85 @@ public class Endpoint extends Eventable {
 	 * @param protocolName the protocol name to stop
 	 */
 	public void stopProtocol(String protocolName) {
-		synchronized(protocols) {
-			if(!protocols.containsKey(protocolName)) {
+		int protocolId=ProtocolRegistry.getProtocolId(protocolName);
+		protocolsLock.lock();
+		try {
+			Protocol protocol=getProtocol(protocolId);
+			if(protocol==null) {
 				log.warning("no instance of protocol to stop: "+protocolName);
 				return;
 			}
-			protocols.get(protocolName).stopProtocol();
-			protocols.remove(protocolName);
+			protocol.stopProtocol();
+			Protocol[] updated=protocols.clone();
+			updated[protocolId]=null;
+			protocols=updated;
+		} finally {
+			protocolsLock.unlock();
 		}
 	}
 	
+	/**
+	 * Pass a message received for a logical channel to the channel. A
+	 * session start request for a channel that is not open opens it,
+	 * if we accept channels.
+	 * @param msg
+	 */
+	private void receiveOnChannel(Message msg) {
+		long channelId=msg.getChannelId();
+		ChannelEndpoint channel=channelEndpoints.get(channelId);
+		if(channel==null) {
+			if(!channels || !(msg instanceof SessionStartRequest) || stopped) {
+				log.info("message dropped for channel "+channelId+" that is not open: "+msg.getName());
+				return;
+			}
+			channel=new ChannelEndpoint(this,channelId,manager);
+			channelEndpoints.put(channelId,channel);
+			channel.start();
+		}
+		channel.receive(msg);
+	}
+	
+	/**
+	 * Open a logical channel on this connection. The channel has to be
+	 * started, once its callbacks are in place, and then starts its own
+	 * session with the other endpoint. Channels are only opened by the
+	 * endpoint that made the connection.
+	 * @param manager the manager to report to about the channel
+	 * @return the channel, or null if the other endpoint does not accept
+	 * channels or this endpoint is closed
+	 */
+	public ChannelEndpoint openChannel(IEndpointHandler manager) {
+		if(!usesChannels() || stopped) return null;
+		long channelId=nextChannelId.getAndIncrement();
+		ChannelEndpoint channel=new ChannelEndpoint(this,channelId,manager);
+		channelEndpoints.put(channelId,channel);
+		return channel;
+	}
+	
+	/**
+	 * Forget a channel that has closed.
+	 * @param channel
+	 */
+	void removeChannel(ChannelEndpoint channel) {
+		channelEndpoints.remove(channel.getChannelId(),channel);
+	}
+	
+	/**
+	 * 
+	 * @return number of logical channels open on this connection
+	 */
+	public int getNumChannels() {
+		return channelEndpoints.size();
+	}
+	
+	/**
+	 * 
+	 * @return true if this is a logical channel carried by another endpoint
+	 */
+	public boolean isChannel() {
+		return false;
+	}
+	
 	/**
 	 * 
 	 * @return the id of the other endpoint
@@ -329,8 +1444,18 @@ public class Endpoint extends Eventable {
 	 * otherwise
 	 */
 	public Protocol getProtocol(String string) {
-		synchronized(protocols) {
-			return protocols.get(string);
-		}
+		return getProtocol(ProtocolRegistry.getProtocolId(string));
+	}
+	
+	/**
+	 * 
+	 * @param protocolId protocol id in the {@link pb.protocols.ProtocolRegistry}
+	 * @return the protocol with the given id, if it is being handled or null
+	 * otherwise
+	 */
+	public Protocol getProtocol(int protocolId) {
+		Protocol[] current=protocols;
+		if(protocolId<0 || protocolId>=current.length) return null;
+		return current[protocolId];
 	}
 }
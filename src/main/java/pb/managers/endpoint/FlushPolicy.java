@@ -0,0 +1,81 @@
+package pb.managers.endpoint;
+
+/**
+ * When an endpoint's writer flushes the messages it has written. Messages
+ * written between flushes go to the socket together, in one gathered write,
+ * which saves system calls and TCP segments when many messages are sent at
+ * once, at the cost of holding back some of them for a little while.
+ * <ul>
+ * <li>{@link #immediate} flushes after every message.</li>
+ * <li>{@link #endOfBatch} writes all of the messages that are queued and then
+ * flushes; a lone message is not delayed at all. This is the default.</li>
+ * <li>{@link #delayed(long, int)} waits up to a number of microseconds after
+ * the first unflushed message for more messages to arrive, or until a number
+ * of bytes are waiting, before flushing.</li>
+ * </ul>
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#setFlushPolicy(FlushPolicy)}
+ */
+public class FlushPolicy {
+
+	/**
+	 * Flush after every message.
+	 */
+	public static final FlushPolicy immediate = new FlushPolicy(0,0);
+
+	/**
+	 * Flush when there are no more messages queued.
+	 */
+	public static final FlushPolicy endOfBatch = new FlushPolicy(0,Integer.MAX_VALUE);
+
+	/**
+	 * How long to wait for more messages, in microseconds.
+	 */
+	private final long delayMicros;
+
+	/**
+	 * Flush once this many bytes are waiting.
+	 */
+	private final int maxBytes;
+
+	private FlushPolicy(long delayMicros, int maxBytes) {
+		this.delayMicros=delayMicros;
+		this.maxBytes=maxBytes;
+	}
+
+	/**
+	 * Flush after a delay or after a number of bytes, whichever comes first.
+	 * @param delayMicros microseconds to wait, after the first unflushed message,
+	 * for more messages
+	 * @param maxBytes flush as soon as this many bytes are waiting
+	 * @return the policy
+	 */
+	public static FlushPolicy delayed(long delayMicros, int maxBytes) {
+		if(delayMicros<0 || maxBytes<0)
+			throw new IllegalArgumentException("delay and bytes must not be negative");
+		return new FlushPolicy(delayMicros,maxBytes);
+	}
+
+	/**
+	 *
+	 * @return microseconds to wait for more messages before flushing
+	 */
+	public long getDelayMicros() {
+		return delayMicros;
+	}
+
+	/**
+	 *
+	 * @return number of waiting bytes that causes a flush
+	 */
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	@Override
+	public String toString() {
+		if(this==immediate) return "immediate";
+		if(this==endOfBatch) return "endOfBatch";
+		return "delayed("+delayMicros+"us,"+maxBytes+"B)";
+	}
+}
@@ -0,0 +1,254 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import pb.protocols.InvalidMessage;
+
+/**
+ * Compresses the messages in long frames with DEFLATE, for an endpoint
+ * whose other endpoint said in the session handshake that it accepts
+ * compressed frames. Each frame is compressed on its own, so frames can be
+ * compressed by any thread in any order. A compressed message is:
+ * <ul>
+ * <li>the byte {@value #marker}, which neither a JSON message nor one in
+ * the {@link pb.protocols.BinaryCodec} starts with</li>
+ * <li>the length of the uncompressed message, four bytes</li>
+ * <li>the message, JSON or binary, in raw DEFLATE</li>
+ * </ul>
+ * Messages smaller than the threshold, such as keep alives, are not worth
+ * compressing and are sent as they are, as are messages that don't get
+ * smaller.
+ * <br/>
+ * The number of bytes before and after compression, both sent and
+ * received, are counted to show how much is being saved.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#setCompression(boolean)}
+ */
+public class FrameCompressor {
+
+	/**
+	 * First byte of every compressed message.
+	 */
+	public static final byte marker = 2;
+
+	/**
+	 * Default size of the smallest message that is compressed.
+	 */
+	public static final int defaultThreshold = 256;
+
+	/**
+	 * Bytes before the compressed data.
+	 */
+	private static final int headerSize = 5;
+
+	/**
+	 * The deflater, made when first needed, guarded by its lock.
+	 */
+	private final ReentrantLock deflaterLock=new ReentrantLock();
+	private Deflater deflater=null;
+	private boolean deflaterEnded=false;
+
+	/**
+	 * The inflater, made when first needed, guarded by its lock.
+	 */
+	private final ReentrantLock inflaterLock=new ReentrantLock();
+	private Inflater inflater=null;
+	private boolean inflaterEnded=false;
+	private final byte[] extra=new byte[1];
+
+	private volatile int threshold=defaultThreshold;
+
+	/**
+	 * Statistics.
+	 */
+	private final AtomicLong sentBefore=new AtomicLong();
+	private final AtomicLong sentAfter=new AtomicLong();
+	private final AtomicLong receivedBefore=new AtomicLong();
+	private final AtomicLong receivedAfter=new AtomicLong();
+
+	/**
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return true if the bytes hold a compressed message
+	 */
+	public static boolean isCompressed(byte[] bytes, int offset, int length) {
+		return length>0 && bytes[offset]==marker;
+	}
+
+	/**
+	 * Compress the message in a frame, if it is worth it.
+	 * @param frame a buffer from the pool with the message after the frame
+	 * header, positioned at the end of the message
+	 * @param frameHeaderSize bytes before the message
+	 * @param pool the pool the frame came from
+	 * @return the frame, if the message was not compressed, or a buffer
+	 * from the pool with the compressed message after the frame header,
+	 * positioned at its end, in which case the frame has been released
+	 */
+	ByteBuffer compress(ByteBuffer frame, int frameHeaderSize, BufferPool pool) {
+		int length=frame.position()-frameHeaderSize;
+		sentBefore.addAndGet(length);
+		if(length<threshold) {
+			sentAfter.addAndGet(length);
+			return frame;
+		}
+		// only worth it if it saves at least a byte
+		ByteBuffer compressed=pool.acquire(frameHeaderSize+length-1);
+		compressed.position(frameHeaderSize);
+		compressed.put(marker);
+		compressed.putInt(length);
+		boolean finished=false;
+		deflaterLock.lock();
+		try {
+			if(!deflaterEnded) {
+				if(deflater==null) deflater=new Deflater(Deflater.BEST_SPEED,true);
+				frame.flip().position(frameHeaderSize);
+				deflater.setInput(frame);
+				deflater.finish();
+				deflater.deflate(compressed);
+				finished=deflater.finished();
+				deflater.reset();
+			}
+		} finally {
+			deflaterLock.unlock();
+		}
+		if(!finished) {
+			pool.release(compressed);
+			frame.limit(frame.capacity()).position(frameHeaderSize+length);
+			sentAfter.addAndGet(length);
+			return frame;
+		}
+		pool.release(frame);
+		sentAfter.addAndGet(compressed.position()-frameHeaderSize);
+		return compressed;
+	}
+
+	/**
+	 * Decompress a message.
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @param maxSize largest uncompressed message accepted
+	 * @param pool the pool to borrow a buffer from
+	 * @return a buffer from the pool holding the uncompressed message, from
+	 * its position to its limit, to be released once it has been parsed
+	 * @throws InvalidMessage if the bytes are not a valid compressed message
+	 */
+	ByteBuffer decompress(byte[] bytes, int offset, int length, int maxSize,
+			BufferPool pool) throws InvalidMessage {
+		if(length<headerSize || bytes[offset]!=marker) throw new InvalidMessage();
+		int size=(bytes[offset+1]&0xff)<<24 | (bytes[offset+2]&0xff)<<16 |
+				(bytes[offset+3]&0xff)<<8 | (bytes[offset+4]&0xff);
+		if(size<0 || size>maxSize) throw new InvalidMessage();
+		ByteBuffer buffer=pool.acquire(size);
+		boolean ok=false;
+		inflaterLock.lock();
+		try {
+			if(!inflaterEnded) {
+				if(inflater==null) inflater=new Inflater(true);
+				inflater.setInput(bytes,offset+headerSize,length-headerSize);
+				int n=inflater.inflate(buffer.array(),buffer.arrayOffset(),size);
+				// the end of the data may only be seen once there is room for more
+				if(n==size && !inflater.finished()) n+=inflater.inflate(extra);
+				ok = n==size && inflater.finished();
+				inflater.reset();
+			}
+		} catch (DataFormatException e) {
+			inflater.reset();
+		} finally {
+			inflaterLock.unlock();
+			if(!ok) pool.release(buffer);
+		}
+		if(!ok) throw new InvalidMessage();
+		receivedBefore.addAndGet(length);
+		receivedAfter.addAndGet(size);
+		return buffer;
+	}
+
+	/**
+	 * Free the native memory of the deflater and inflater. Nothing is
+	 * compressed or decompressed after this.
+	 */
+	void end() {
+		deflaterLock.lock();
+		try {
+			deflaterEnded=true;
+			if(deflater!=null) deflater.end();
+		} finally {
+			deflaterLock.unlock();
+		}
+		inflaterLock.lock();
+		try {
+			inflaterEnded=true;
+			if(inflater!=null) inflater.end();
+		} finally {
+			inflaterLock.unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @return size of the smallest message that is compressed
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Set the size of the smallest message that is compressed.
+	 * @param threshold
+	 */
+	public void setThreshold(int threshold) {
+		if(threshold<0) throw new IllegalArgumentException("threshold must not be negative");
+		this.threshold=threshold;
+	}
+
+	/**
+	 *
+	 * @return number of bytes of messages sent, before compression
+	 */
+	public long getBytesSentBeforeCompression() {
+		return sentBefore.get();
+	}
+
+	/**
+	 *
+	 * @return number of bytes of messages sent, after compression
+	 */
+	public long getBytesSentAfterCompression() {
+		return sentAfter.get();
+	}
+
+	/**
+	 *
+	 * @return number of bytes of compressed messages received, before
+	 * decompression
+	 */
+	public long getBytesReceivedBeforeDecompression() {
+		return receivedBefore.get();
+	}
+
+	/**
+	 *
+	 * @return number of bytes of compressed messages received, after
+	 * decompression
+	 */
+	public long getBytesReceivedAfterDecompression() {
+		return receivedAfter.get();
+	}
+
+	@Override
+	public String toString() {
+		return "compression: sent "+getBytesSentBeforeCompression()+" -> "+
+				getBytesSentAfterCompression()+" bytes, received "+
+				getBytesReceivedBeforeDecompression()+" -> "+
+				getBytesReceivedAfterDecompression()+" bytes";
+	}
+}
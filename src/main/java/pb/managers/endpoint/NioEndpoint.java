@@ -0,0 +1,401 @@
+package pb.managers.endpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+import pb.utils.Utils;
+
+/**
+ * An endpoint that uses a non-blocking socket channel serviced by a
+ * {@link pb.managers.endpoint.NioEventLoop}, rather than a thread of its own.
+ * Messages are framed exactly as for {@link pb.managers.endpoint.Endpoint},
+ * so either kind of endpoint can talk to the other, and both short and long
+ * frames are read straight out of the read buffer. Frames to send are
+ * written to the channel straight from the pooled buffers they were encoded
+ * in, and given back as soon as they have been written. The endpoint is never run
+ * as a thread; calling {@link #start()} registers it with its event loop and
+ * messages are then dispatched to the protocols on the event loop thread.
+ * The event loop also acts as the writer for the outbound queue, and senders
+ * on the event loop thread are never blocked by a full queue.
+ *
+ * @see {@link pb.managers.endpoint.NioEventLoop}
+ * @see {@link pb.managers.endpoint.Endpoint}
+ */
+public class NioEndpoint extends Endpoint {
+	private static Logger log = Logger.getLogger(NioEndpoint.class.getName());
+
+	/**
+	 * Size of the endpoint's own read buffer. Frames that don't fit are
+	 * read into a larger buffer borrowed from the heap pool, which is given
+	 * back once the frames in it have been dispatched.
+	 */
+	private static final int initialBufferSize = 4*1024;
+
+	/**
+	 * How long to keep trying to write queued messages after closing, in ms.
+	 */
+	private static final int closeTimeout = 5000;
+
+	/**
+	 * The channel this endpoint is wrapped around.
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * The event loop servicing this endpoint.
+	 */
+	private final NioEventLoop loop;
+
+	/**
+	 * Our registration with the event loop's selector.
+	 */
+	private SelectionKey key;
+
+	/**
+	 * Bytes read but not yet formed into a message.
+	 */
+	private ByteBuffer inBuffer;
+	
+	/**
+	 * The endpoint's own read buffer, which is the read buffer unless
+	 * a larger one has been borrowed.
+	 */
+	private final ByteBuffer ownBuffer;
+
+	/**
+	 * Most frames to gather in one write.
+	 */
+	private static final int maxGather = 64;
+	
+	/**
+	 * Frames, or what remains of them, that the channel has not taken yet.
+	 * Only used on the event loop thread.
+	 */
+	private final ByteBuffer[] pendingWrites=new ByteBuffer[maxGather];
+	
+	/**
+	 * The first and one after the last of the pending writes.
+	 */
+	private int pendingStart=0, pendingEnd=0;
+	
+	/**
+	 * Whether a write has been handed to the event loop and not yet run.
+	 */
+	private final AtomicBoolean writeScheduled=new AtomicBoolean();
+	
+	/**
+	 * Set when the endpoint has been closed, so that the channel is closed
+	 * once the outbound queue is empty.
+	 */
+	private volatile boolean closing=false;
+
+	/**
+	 * Initialise the endpoint with a connected channel, a manager and
+	 * the event loop that will service it.
+	 * @param channel
+	 * @param manager
+	 * @param loop
+	 */
+	public NioEndpoint(SocketChannel channel, IEndpointHandler manager, NioEventLoop loop) {
+		super(channel.socket(),manager);
+		this.channel=channel;
+		this.loop=loop;
+		ownBuffer=ByteBuffer.allocate(initialBufferSize);
+		inBuffer=ownBuffer;
+		setName("NioEndpoint");
+	}
+
+	/**
+	 *
+	 * @return the channel for this endpoint
+	 */
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Register with the event loop instead of starting a thread.
+	 */
+	@Override
+	public synchronized void start() {
+		loop.register(this);
+	}
+
+	/**
+	 * Called by the event loop when the channel has been registered.
+	 * @param loop
+	 * @param key
+	 */
+	void registered(NioEventLoop loop, SelectionKey key) {
+		this.key=key;
+		signalReady();
+	}
+
+	/**
+	 * Queue a message to be written on the channel by the event loop. No
+	 * event loop is ever blocked.
+	 * @param msg
+	 * @param channelId the channel the message belongs to, 0 for the
+	 * connection itself
+	 * @param mayBlock whether the caller may be blocked while the outbound
+	 * queue is at capacity
+	 * @return true if the message was queued, false otherwise
+	 */
+	@Override
+	protected boolean send(Message msg, long channelId, boolean mayBlock) {
+		if(stopped) return false;
+		ByteBuffer frame;
+		try {
+			frame=frame(msg,channelId);
+		} catch (IOException e) {
+			// nothing has been queued, so the connection is still fine
+			log.severe("message not sent to "+getOtherEndpointId()+": "+e.getMessage());
+			return false;
+		}
+		log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
+		if(!outboundQueue.offer(frame,mayBlock && mayBlockSender())) return false;
+		sent();
+		scheduleWrite();
+		return true;
+	}
+	
+	/**
+	 * Ask the event loop to write, unless it has already been asked. With
+	 * a delayed flush policy the write is put off until the delay has passed
+	 * or enough bytes are waiting.
+	 */
+	private void scheduleWrite() {
+		if(writeScheduled.compareAndSet(false,true)) {
+			Runnable write=()->{
+				writeScheduled.set(false);
+				handleWrite();
+			};
+			FlushPolicy policy=flushPolicy;
+			if(policy.getDelayMicros()>0 && outboundQueue.getQueuedBytes()<policy.getMaxBytes()) {
+				loop.schedule(this,write,policy.getDelayMicros());
+			} else {
+				loop.execute(this,write);
+			}
+		} else if(outboundQueue.getQueuedBytes()>=flushPolicy.getMaxBytes()) {
+			// enough is waiting, don't wait for a delayed write
+			loop.execute(this,this::handleWrite);
+		}
+	}
+
+	/**
+	 * Write as much of the queued data as the channel will take, gathering
+	 * queued frames into one write unless the flush policy is to flush
+	 * immediately. If some remains then ask the event loop to tell us when
+	 * we can write again. Only called on the event loop thread.
+	 */
+	void handleWrite() {
+		if(key==null || !key.isValid()) return;
+		int gather = flushPolicy==FlushPolicy.immediate ? 1 : maxGather;
+		try {
+			while(true) {
+				if(pendingStart==pendingEnd) {
+					pendingStart=pendingEnd=0;
+				}
+				while(pendingEnd-pendingStart<gather && pendingEnd<maxGather) {
+					OutboundQueue.Frame frame=outboundQueue.poll();
+					if(frame==null) break;
+					pendingWrites[pendingEnd++]=frame.buffer;
+				}
+				if(pendingStart==pendingEnd) break;
+				channel.write(pendingWrites,pendingStart,pendingEnd-pendingStart);
+				flushes++;
+				while(pendingStart<pendingEnd && !pendingWrites[pendingStart].hasRemaining()) {
+					pool.release(pendingWrites[pendingStart]);
+					pendingWrites[pendingStart++]=null;
+				}
+				if(pendingStart<pendingEnd) break; // the channel is full
+			}
+			if(pendingStart==pendingEnd) {
+				if(closing) {
+					channel.close();
+					return;
+				}
+				key.interestOps(SelectionKey.OP_READ);
+			} else {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		} catch (IOException e) {
+			releasePendingWrites();
+			outboundQueue.abandon();
+			disconnected();
+		}
+	}
+	
+	/**
+	 * Give back the frames that were not completely written.
+	 */
+	private void releasePendingWrites() {
+		while(pendingStart<pendingEnd) {
+			pool.release(pendingWrites[pendingStart]);
+			pendingWrites[pendingStart++]=null;
+		}
+		pendingStart=pendingEnd=0;
+	}
+	
+	/**
+	 * Write whatever remains in the outbound queue on the event loop and
+	 * then close the channel. If the other side does not take the data
+	 * then the channel is closed anyway after a while.
+	 */
+	@Override
+	protected void closeConnection() {
+		outboundQueue.close();
+		closing=true;
+		if(key==null) {
+			closeChannel();
+			return;
+		}
+		loop.execute(this,this::handleWrite);
+		Utils.getInstance().setTimeout(()->{
+			if(channel.isOpen()) {
+				log.warning("closing with unsent messages to: "+getOtherEndpointId());
+				closeChannel();
+				outboundQueue.abandon();
+				loop.execute(this,this::releasePendingWrites);
+			}
+		}, closeTimeout);
+	}
+	
+	/**
+	 * Close the channel now.
+	 */
+	private void closeChannel() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warning("socket did not close properly: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Read whatever is available on the channel and dispatch all of
+	 * the complete messages. Only called on the event loop thread.
+	 */
+	void handleRead() {
+		try {
+			int read = channel.read(inBuffer);
+			if(read==-1) {
+				releaseReadBuffer();
+				disconnected();
+				return;
+			}
+		} catch (IOException e) {
+			releaseReadBuffer();
+			disconnected();
+			return;
+		}
+		inBuffer.flip();
+		while(inBuffer.remaining()>=2 && !stopped) {
+			int position = inBuffer.position();
+			int header = 2;
+			int length = inBuffer.getShort(position) & 0xffff;
+			if(length==0) {
+				// a long frame
+				header = longFrameHeaderSize;
+				if(inBuffer.remaining()<header) {
+					makeRoom(header);
+					break;
+				}
+				length = inBuffer.getInt(position+2);
+				if(length<0 || length>maxFrameSize) {
+					log.severe("frame of "+length+" bytes is larger than accepted from "+getOtherEndpointId());
+					// we can't find the next frame
+					inBuffer.clear();
+					manager.endpointSentInvalidMessage(this);
+					return;
+				}
+			}
+			if(inBuffer.remaining()<header+length) {
+				makeRoom(header+length);
+				break;
+			}
+			inBuffer.position(position+header+length);
+			int offset = inBuffer.arrayOffset()+position;
+			try {
+				Message msg;
+				if(header==2) {
+					msg = Message.toMessage(new DataInputStream(new ByteArrayInputStream(
+							inBuffer.array(),offset,header+length)).readUTF());
+				} else {
+					msg = parseLongFrame(inBuffer.array(),offset+header,length);
+				}
+				receive(msg);
+			} catch (IOException e) {
+				manager.endpointSentInvalidMessage(this);
+			} catch (InvalidMessage e) {
+				manager.endpointSentInvalidMessage(this);
+				// up to the client what to do
+			}
+		}
+		inBuffer.compact();
+		if(inBuffer.position()==0 || stopped) {
+			// any large frames have been dispatched
+			releaseReadBuffer();
+		}
+	}
+	
+	/**
+	 * Give back a borrowed read buffer and go back to our own, dropping
+	 * whatever is in the borrowed one.
+	 */
+	private void releaseReadBuffer() {
+		if(inBuffer!=ownBuffer) {
+			BufferPool.heap.release(inBuffer);
+			ownBuffer.clear();
+			inBuffer=ownBuffer;
+		}
+	}
+	
+	/**
+	 * Borrow a larger read buffer, if need be, so that it can hold a whole
+	 * frame. The buffer must be ready for reading from.
+	 * @param frameSize size of the frame including its header
+	 */
+	private void makeRoom(int frameSize) {
+		if(inBuffer.capacity()<frameSize) {
+			ByteBuffer bigger = BufferPool.heap.acquire(frameSize);
+			bigger.limit(bigger.capacity());
+			bigger.put(inBuffer);
+			bigger.flip();
+			if(inBuffer!=ownBuffer) BufferPool.heap.release(inBuffer);
+			inBuffer=bigger;
+		}
+	}
+
+	/**
+	 * Something on the event loop threw while serving this endpoint, e.g.
+	 * a protocol or an event callback, so drop the channel as though it
+	 * had failed. Only called on the event loop thread.
+	 */
+	void failed() {
+		releasePendingWrites();
+		releaseReadBuffer();
+		outboundQueue.abandon();
+		closeChannel();
+		disconnected();
+	}
+
+	/**
+	 * The channel failed or was closed by the other side.
+	 */
+	void disconnected() {
+		if(!stopped) {
+			manager.endpointDisconnectedAbruptly(this);
+		}
+		if(key!=null) key.cancel();
+		log.info("endpoint has terminated to: "+getOtherEndpointId());
+	}
+}
@@ -0,0 +1,274 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A single selector thread that services any number of
+ * {@link pb.managers.endpoint.NioEndpoint}s. All reads, writes and message
+ * dispatch for an endpoint happen on the event loop that it is registered
+ * with, so protocol and application callbacks for that endpoint must not
+ * block for long, else every other endpoint on the same loop is delayed.
+ * Other threads hand work to the loop using {@link #execute(Runnable)}.
+ * <br/>
+ * A task or a channel that throws a runtime exception does not stop the
+ * loop: the exception is logged and, if it came from an endpoint's channel
+ * or from a task handed over on behalf of an endpoint, only that endpoint
+ * is closed.
+ *
+ * @see {@link pb.managers.endpoint.NioEventLoopGroup}
+ * @see {@link pb.managers.endpoint.NioEndpoint}
+ */
+public class NioEventLoop extends Thread {
+	private static Logger log = Logger.getLogger(NioEventLoop.class.getName());
+
+	/**
+	 * The selector for all of the channels on this loop.
+	 */
+	private final Selector selector;
+
+	/**
+	 * Tasks handed to this loop by other threads.
+	 */
+	private final Queue<Runnable> tasks;
+
+	/**
+	 * A task to run at a later time.
+	 */
+	private static class DelayedTask implements Comparable<DelayedTask> {
+		final long runAt;
+		final Runnable task;
+		DelayedTask(long runAt, Runnable task) {
+			this.runAt=runAt;
+			this.task=task;
+		}
+		@Override
+		public int compareTo(DelayedTask o) {
+			return Long.compare(runAt,o.runAt);
+		}
+	}
+
+	/**
+	 * A task handed over on behalf of an endpoint, which is closed if the
+	 * task fails.
+	 */
+	private static class EndpointTask implements Runnable {
+		final NioEndpoint endpoint;
+		final Runnable task;
+		EndpointTask(NioEndpoint endpoint, Runnable task) {
+			this.endpoint=endpoint;
+			this.task=task;
+		}
+		@Override
+		public void run() {
+			task.run();
+		}
+	}
+
+	/**
+	 * Tasks waiting for their time to run, only used on the loop thread.
+	 */
+	private final PriorityQueue<DelayedTask> delayedTasks;
+
+	/**
+	 * Set false to terminate the loop.
+	 */
+	private volatile boolean running=true;
+
+	/**
+	 * Initialise the loop with a name for its thread. The loop
+	 * must be started before it is used.
+	 * @param name the thread name
+	 * @throws IOException if a selector can't be opened
+	 */
+	public NioEventLoop(String name) throws IOException {
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<>();
+		delayedTasks = new PriorityQueue<>();
+		setName(name);
+	}
+
+	/**
+	 * @return true if the calling thread is this loop's thread
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread()==this;
+	}
+	
+	/**
+	 * 
+	 * @return true if the calling thread is the thread of any event loop,
+	 * which must never be blocked, as all of its endpoints would wait
+	 */
+	public static boolean inAnyEventLoop() {
+		return Thread.currentThread() instanceof NioEventLoop;
+	}
+
+	/**
+	 * Run a task on this loop's thread. If the caller is the loop thread
+	 * then the task is run immediately.
+	 * @param task the task to run
+	 */
+	public void execute(Runnable task) {
+		if(inEventLoop()) {
+			task.run();
+		} else {
+			tasks.add(task);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Run a task for an endpoint on this loop's thread, closing the
+	 * endpoint if the task fails.
+	 * @param endpoint the endpoint the task is for
+	 * @param task the task to run
+	 */
+	void execute(NioEndpoint endpoint, Runnable task) {
+		EndpointTask endpointTask=new EndpointTask(endpoint,task);
+		if(inEventLoop()) {
+			// so that the caller, likely serving another endpoint, isn't blamed
+			runTask(endpointTask);
+		} else {
+			tasks.add(endpointTask);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Run a task on this loop's thread after a delay. The selector only
+	 * has millisecond resolution, so short delays are rounded up.
+	 * @param task the task to run
+	 * @param delay the delay in microseconds
+	 */
+	public void schedule(Runnable task, long delay) {
+		long runAt=System.nanoTime()+TimeUnit.MICROSECONDS.toNanos(delay);
+		execute(()->delayedTasks.add(new DelayedTask(runAt,task)));
+	}
+
+	/**
+	 * Run a task for an endpoint on this loop's thread after a delay,
+	 * closing the endpoint if the task fails.
+	 * @param endpoint the endpoint the task is for
+	 * @param task the task to run
+	 * @param delay the delay in microseconds
+	 */
+	void schedule(NioEndpoint endpoint, Runnable task, long delay) {
+		schedule(new EndpointTask(endpoint,task),delay);
+	}
+
+	/**
+	 * Register an endpoint with this loop. The endpoint will be told
+	 * it is ready once it has been registered.
+	 * @param endpoint
+	 */
+	void register(NioEndpoint endpoint) {
+		execute(endpoint,()->{
+			try {
+				SelectionKey key = endpoint.getChannel().register(selector,
+						SelectionKey.OP_READ, endpoint);
+				endpoint.registered(this,key);
+			} catch (ClosedChannelException e) {
+				endpoint.disconnected();
+			}
+		});
+	}
+
+	/**
+	 * Stop the loop. Channels that are still registered are not closed.
+	 */
+	public void shutDown() {
+		running=false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Select ready channels and run tasks until shut down.
+	 */
+	@Override
+	public void run() {
+		log.info("event loop started");
+		while(running) {
+			try {
+				DelayedTask next=delayedTasks.peek();
+				if(next==null) {
+					selector.select();
+				} else {
+					long wait=TimeUnit.NANOSECONDS.toMillis(
+							next.runAt-System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(1)-1);
+					if(wait>0) selector.select(wait);
+					else selector.selectNow();
+				}
+			} catch (IOException e) {
+				log.severe("selector failed: "+e.getMessage());
+				break;
+			}
+			Runnable task;
+			while((task=tasks.poll())!=null) {
+				runTask(task);
+			}
+			long now=System.nanoTime();
+			while(!delayedTasks.isEmpty() && delayedTasks.peek().runAt-now<=0) {
+				runTask(delayedTasks.poll().task);
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				NioEndpoint endpoint = (NioEndpoint) key.attachment();
+				if(!key.isValid()) continue;
+				try {
+					if(key.isWritable()) endpoint.handleWrite();
+					if(key.isValid() && key.isReadable()) endpoint.handleRead();
+				} catch (RuntimeException e) {
+					fail(endpoint,e);
+				}
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.warning("selector did not close properly: "+e.getMessage());
+		}
+		log.info("event loop terminated");
+	}
+
+	/**
+	 * Run a task, closing its endpoint if it has one and it fails.
+	 * @param task
+	 */
+	private void runTask(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			if(task instanceof EndpointTask) {
+				fail(((EndpointTask)task).endpoint,e);
+			} else {
+				log.severe("task failed on event loop: "+e);
+			}
+		}
+	}
+
+	/**
+	 * Close an endpoint that threw while being served, without letting
+	 * the closing stop the loop either.
+	 * @param endpoint
+	 * @param e what it threw
+	 */
+	private void fail(NioEndpoint endpoint, RuntimeException e) {
+		log.severe("endpoint to "+endpoint.getOtherEndpointId()+" failed on event loop: "+e);
+		try {
+			endpoint.failed();
+		} catch (RuntimeException e2) {
+			log.severe("endpoint to "+endpoint.getOtherEndpointId()+" did not close properly: "+e2);
+		}
+	}
+}
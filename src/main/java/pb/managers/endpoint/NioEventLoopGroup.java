@@ -0,0 +1,51 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed size pool of {@link pb.managers.endpoint.NioEventLoop}s. New
+ * endpoints are spread over the loops in round robin order.
+ *
+ * @see {@link pb.managers.endpoint.NioEventLoop}
+ */
+public class NioEventLoopGroup {
+
+	/**
+	 * The loops in this group.
+	 */
+	private final NioEventLoop[] loops;
+
+	/**
+	 * The next loop to hand out.
+	 */
+	private final AtomicInteger next=new AtomicInteger();
+
+	/**
+	 * Create and start the given number of loops.
+	 * @param numLoops number of selector threads, at least 1
+	 * @throws IOException if a selector can't be opened
+	 */
+	public NioEventLoopGroup(int numLoops) throws IOException {
+		loops = new NioEventLoop[Math.max(1,numLoops)];
+		for(int i=0;i<loops.length;i++) {
+			loops[i]=new NioEventLoop("NioEventLoop-"+i);
+			loops[i].start();
+		}
+	}
+
+	/**
+	 *
+	 * @return the loop that the next endpoint should use
+	 */
+	public NioEventLoop next() {
+		return loops[Math.floorMod(next.getAndIncrement(),loops.length)];
+	}
+
+	/**
+	 * Stop all of the loops.
+	 */
+	public void shutDown() {
+		for(NioEventLoop loop : loops) loop.shutDown();
+	}
+}
@@ -0,0 +1,388 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import pb.protocols.ICallback;
+
+/**
+ * A bounded queue of encoded frames waiting to be written by an endpoint.
+ * Producers add frames with {@link #offer(ByteBuffer, boolean)} and the
+ * endpoint's writer removes them. When the number of queued bytes rises to
+ * the high watermark the queue becomes unwritable, and it becomes writable
+ * again once the writer has brought it down to the low watermark; producers
+ * can watch for these transitions and pause rather than fill the queue.
+ * Only when the queue reaches its capacity will a producer be blocked.
+ * <br/>
+ * Frames are buffers borrowed from a {@link pb.managers.endpoint.BufferPool}.
+ * The queue owns a frame once it has been offered, and the writer owns it
+ * once it has been removed and must release it when it has been written.
+ * <br/>
+ * The queue also keeps track of how long frames have waited in it.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#writable}
+ * @see {@link pb.managers.endpoint.Endpoint#unwritable}
+ */
+public class OutboundQueue {
+	private static Logger log = Logger.getLogger(OutboundQueue.class.getName());
+
+	/**
+	 * Default number of queued bytes at which the queue becomes unwritable.
+	 */
+	public static final int defaultHighWatermark = 256*1024;
+
+	/**
+	 * Default number of queued bytes at which the queue becomes writable again.
+	 */
+	public static final int defaultLowWatermark = 64*1024;
+
+	/**
+	 * Default number of queued bytes at which producers are blocked.
+	 */
+	public static final int defaultCapacity = 4*1024*1024;
+
+	/**
+	 * A frame and the time it was queued.
+	 */
+	static class Frame {
+		final ByteBuffer buffer;
+		final int size;
+		final long queuedAt;
+		Frame(ByteBuffer buffer) {
+			this.buffer=buffer;
+			this.size=buffer.remaining();
+			this.queuedAt=System.nanoTime();
+		}
+	}
+	
+	/**
+	 * The pool that frames are released to when they are thrown away.
+	 */
+	private final BufferPool pool;
+
+	private final Deque<Frame> frames;
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+	private final Condition notFull;
+
+	private int capacity=defaultCapacity;
+	private int highWatermark=defaultHighWatermark;
+	private int lowWatermark=defaultLowWatermark;
+
+	/**
+	 * Called when the queue becomes writable/unwritable.
+	 */
+	private final ICallback onWritable;
+	private final ICallback onUnwritable;
+
+	/**
+	 * Transitions not yet delivered, and whether the last one delivered was
+	 * to writable, only used by the thread delivering them.
+	 */
+	private final AtomicInteger transitions=new AtomicInteger();
+	private boolean reportedWritable=true;
+
+	/**
+	 * State of the queue, guarded by the lock.
+	 */
+	private long queuedBytes=0;
+	private boolean writable=true;
+	private boolean closed=false;
+
+	/**
+	 * Statistics, guarded by the lock.
+	 */
+	private long framesDequeued=0;
+	private long totalQueueNanos=0;
+	private long maxQueueNanos=0;
+
+	/**
+	 * Initialise the queue with callbacks for when it becomes writable and
+	 * unwritable. The callbacks are not called while the queue is locked,
+	 * nor by more than one thread at a time, and they alternate, ending
+	 * with the queue's latest state.
+	 * @param pool the pool that frames are borrowed from
+	 * @param onWritable
+	 * @param onUnwritable
+	 */
+	public OutboundQueue(BufferPool pool, ICallback onWritable, ICallback onUnwritable) {
+		this.pool=pool;
+		this.onWritable=onWritable;
+		this.onUnwritable=onUnwritable;
+		frames=new ArrayDeque<>();
+		lock=new ReentrantLock();
+		notEmpty=lock.newCondition();
+		notFull=lock.newCondition();
+	}
+
+	/**
+	 * Set the watermarks and capacity, in bytes.
+	 * @param lowWatermark writable again at or below this
+	 * @param highWatermark unwritable at or above this
+	 * @param capacity producers are blocked at or above this
+	 */
+	public void setLimits(int lowWatermark, int highWatermark, int capacity) {
+		if(lowWatermark>highWatermark || highWatermark>capacity)
+			throw new IllegalArgumentException("need lowWatermark <= highWatermark <= capacity");
+		lock.lock();
+		try {
+			this.lowWatermark=lowWatermark;
+			this.highWatermark=highWatermark;
+			this.capacity=capacity;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Add a frame to the queue. If it is not queued then it is released.
+	 * @param buffer the encoded frame, from its position to its limit
+	 * @param mayBlock whether the caller may be blocked while the queue is
+	 * at capacity; if not then the frame is queued regardless
+	 * @return true if the frame was queued, false if the queue is closed
+	 * or the caller was interrupted while blocked
+	 */
+	public boolean offer(ByteBuffer buffer, boolean mayBlock) {
+		boolean becameUnwritable=false;
+		lock.lock();
+		try {
+			while(mayBlock && !closed && queuedBytes>=capacity) {
+				try {
+					notFull.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					pool.release(buffer);
+					return false;
+				}
+			}
+			if(closed) {
+				pool.release(buffer);
+				return false;
+			}
+			Frame frame=new Frame(buffer);
+			frames.add(frame);
+			queuedBytes+=frame.size;
+			if(writable && queuedBytes>=highWatermark) {
+				writable=false;
+				becameUnwritable=true;
+			}
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+		if(becameUnwritable) deliverTransitions();
+		return true;
+	}
+
+	/**
+	 * Wait while the queue is at capacity, so that a frame can then be
+	 * offered without blocking.
+	 * @return false if the queue is closed or the caller was interrupted
+	 */
+	boolean awaitRoom() {
+		lock.lock();
+		try {
+			while(!closed && queuedBytes>=capacity) {
+				try {
+					notFull.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return !closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove the next frame, waiting for one if need be.
+	 * @return the next frame, or null if the queue is closed and empty
+	 * @throws InterruptedException
+	 */
+	Frame take() throws InterruptedException {
+		lock.lock();
+		try {
+			while(frames.isEmpty() && !closed) notEmpty.await();
+		} finally {
+			lock.unlock();
+		}
+		return poll();
+	}
+
+	/**
+	 * Remove the next frame, waiting a while for one if need be.
+	 * @param timeout in ns
+	 * @return the next frame, or null if none arrived in time
+	 * @throws InterruptedException
+	 */
+	Frame poll(long timeout) throws InterruptedException {
+		long nanos=timeout;
+		lock.lock();
+		try {
+			while(frames.isEmpty() && !closed && nanos>0) nanos=notEmpty.awaitNanos(nanos);
+		} finally {
+			lock.unlock();
+		}
+		return poll();
+	}
+
+	/**
+	 * Remove the next frame without waiting.
+	 * @return the next frame, or null if there are none
+	 */
+	Frame poll() {
+		Frame frame;
+		boolean becameWritable=false;
+		lock.lock();
+		try {
+			frame=frames.poll();
+			if(frame==null) return null;
+			queuedBytes-=frame.size;
+			long waited=System.nanoTime()-frame.queuedAt;
+			framesDequeued++;
+			totalQueueNanos+=waited;
+			if(waited>maxQueueNanos) maxQueueNanos=waited;
+			if(!writable && queuedBytes<=lowWatermark) {
+				writable=true;
+				becameWritable=true;
+			}
+			if(queuedBytes<capacity) notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if(becameWritable) deliverTransitions();
+		return frame;
+	}
+
+	/**
+	 * Call back about the queue's change of state. Whichever thread finds
+	 * no delivery in progress delivers, until no transitions are left, and
+	 * others leave theirs to it rather than wait; each delivery is of the
+	 * state of the queue at the time, so a late transition can't be
+	 * delivered after a later one.
+	 */
+	private void deliverTransitions() {
+		if(transitions.getAndIncrement()!=0) return;
+		int missed=1;
+		do {
+			boolean now=isWritable();
+			if(now!=reportedWritable) {
+				reportedWritable=now;
+				try {
+					if(now) onWritable.callback();
+					else onUnwritable.callback();
+				} catch (RuntimeException e) {
+					log.severe("writability callback failed: "+e);
+				}
+			}
+			missed=transitions.addAndGet(-missed);
+		} while(missed!=0);
+	}
+
+	/**
+	 * Stop accepting frames. Frames already queued can still be removed.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed=true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Close the queue and throw away any frames in it.
+	 */
+	void abandon() {
+		lock.lock();
+		try {
+			closed=true;
+			for(Frame frame : frames) pool.release(frame.buffer);
+			frames.clear();
+			queuedBytes=0;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @return true if the queue is below its high watermark, or has come
+	 * back down to its low watermark
+	 */
+	public boolean isWritable() {
+		lock.lock();
+		try {
+			return writable;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @return number of frames in the queue
+	 */
+	public int getDepth() {
+		lock.lock();
+		try {
+			return frames.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @return number of bytes in the queue
+	 */
+	public long getQueuedBytes() {
+		lock.lock();
+		try {
+			return queuedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @return average time in microseconds that frames have waited in the queue
+	 */
+	public long getAverageQueueMicros() {
+		lock.lock();
+		try {
+			if(framesDequeued==0) return 0;
+			return TimeUnit.NANOSECONDS.toMicros(totalQueueNanos/framesDequeued);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @return longest time in microseconds that a frame has waited in the queue
+	 */
+	public long getMaxQueueMicros() {
+		lock.lock();
+		try {
+			return TimeUnit.NANOSECONDS.toMicros(maxQueueNanos);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package pb.managers.endpoint;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import pb.protocols.ICallback;
+import pb.utils.ConcurrentLongMap;
+import pb.utils.TimingWheel.Timeout;
+import pb.utils.Utils;
+
+/**
+ * The timeouts of the requests an endpoint has sent that are waiting for a
+ * reply, by timeout id. A reply removes its request, and a request that is
+ * not replied to in time has its callback called.
+ * <br/>
+ * Timeouts can either be set for each request, or coalesced. When
+ * coalesced, the requests sent with the same timeout interval are kept in
+ * a queue, which is in order of deadline, and a single timeout is set for
+ * the earliest deadline at the head of any queue. When it fires, the
+ * requests that are overdue have their callbacks called, answered requests
+ * are dropped from the heads of the queues, and the timeout is set again
+ * for the new earliest deadline. So an endpoint has one timeout at a time,
+ * however many requests it sends, rather than one per request. As replies
+ * usually come back in order, a reply also drops the answered requests at
+ * the head of its queue, so the queues stay about as long as the number of
+ * outstanding requests. Queues that empty are dropped, so that requests
+ * sent with many different intervals over time don't leave queues behind.
+ * <br/>
+ * A reply also tells how long its request waited, for the endpoint to
+ * estimate the round trip time.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#sendWithTimeout(pb.protocols.Message, ICallback, int)}
+ */
+class RequestTimeouts {
+
+	private static class Request {
+		private final long id;
+		private final boolean coalesced;
+		private final long sent;
+		private final long deadline;
+		private final long interval;
+		private final ICallback callback;
+
+		/**
+		 * The request's own timeout, if timeouts are not coalesced.
+		 */
+		private volatile Timeout timeout=null;
+
+		/**
+		 * Set once the request has been removed from the outstanding requests.
+		 */
+		private volatile boolean done=false;
+
+		Request(long id, boolean coalesced, long sent, long deadline, long interval,
+				ICallback callback) {
+			this.id=id;
+			this.coalesced=coalesced;
+			this.sent=sent;
+			this.deadline=deadline;
+			this.interval=interval;
+			this.callback=callback;
+		}
+	}
+
+	/**
+	 * Requests waiting for a reply, by timeout id.
+	 */
+	private final ConcurrentLongMap<Request> outstanding=new ConcurrentLongMap<>();
+
+	private volatile boolean coalesce;
+
+	/**
+	 * Coalesced requests, in queues by timeout interval, and the timeout
+	 * set for the earliest deadline, guarded by the lock.
+	 */
+	private final ReentrantLock lock=new ReentrantLock();
+	private final Map<Long,ArrayDeque<Request>> queues=new HashMap<>();
+	private Timeout timer=null;
+	private long timerDeadline;
+
+	/**
+	 * Counts the timeouts set, so that one that fired just as it was
+	 * replaced can be ignored.
+	 */
+	private long generation=0;
+
+	/**
+	 * Initialise the timeouts.
+	 * @param coalesce whether to coalesce timeouts
+	 */
+	RequestTimeouts(boolean coalesce) {
+		this.coalesce=coalesce;
+	}
+
+	/**
+	 * Add a request.
+	 * @param id the request's timeout id
+	 * @param callback the method to call if the request is not replied to in time
+	 * @param interval the time allowed for a reply, in ms
+	 */
+	void add(long id, ICallback callback, long interval) {
+		long now=System.nanoTime();
+		if(!coalesce) {
+			Request request=new Request(id,false,now,0,interval,callback);
+			outstanding.put(id,request);
+			request.timeout=Utils.getInstance().setTimeout(()->{
+				if(outstanding.remove(id)!=null) callback.callback();
+			}, interval);
+			return;
+		}
+		long deadline=now+TimeUnit.MILLISECONDS.toNanos(interval);
+		Request request=new Request(id,true,now,deadline,interval,callback);
+		lock.lock();
+		try {
+			outstanding.put(id,request);
+			queues.computeIfAbsent(interval,(k)->new ArrayDeque<>()).add(request);
+			if(timer==null || deadline-timerDeadline<0) arm(deadline);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove a request, because it has been replied to or could not be sent.
+	 * @param id the request's timeout id
+	 * @return how long the request waited, in ns, or -1 if it was not
+	 * waiting for a reply
+	 */
+	long remove(long id) {
+		Request request=outstanding.remove(id);
+		if(request==null) return -1;
+		long waited=System.nanoTime()-request.sent;
+		request.done=true;
+		if(!request.coalesced) {
+			Timeout timeout=request.timeout;
+			if(timeout!=null) timeout.cancel();
+		} else {
+			lock.lock();
+			try {
+				ArrayDeque<Request> queue=queues.get(request.interval);
+				while(queue!=null && !queue.isEmpty() && queue.peek().done) queue.poll();
+				if(queue!=null && queue.isEmpty()) queues.remove(request.interval);
+			} finally {
+				lock.unlock();
+			}
+		}
+		return Math.max(0,waited);
+	}
+
+	/**
+	 * Set the timeout for a deadline, in place of any already set.
+	 * Called with the lock held.
+	 * @param deadline
+	 */
+	private void arm(long deadline) {
+		if(timer!=null) timer.cancel();
+		timerDeadline=deadline;
+		long current=++generation;
+		long delay=TimeUnit.NANOSECONDS.toMillis(deadline-System.nanoTime()+999999);
+		timer=Utils.getInstance().setTimeout(()->expire(current), Math.max(0,delay));
+	}
+
+	/**
+	 * Call the callbacks of the overdue requests, and set the timeout for
+	 * the next deadline.
+	 * @param current the generation of the timeout that fired
+	 */
+	private void expire(long current) {
+		List<Request> overdue=new ArrayList<>();
+		lock.lock();
+		try {
+			if(current!=generation) return;
+			timer=null;
+			long now=System.nanoTime();
+			long next=0;
+			boolean more=false;
+			for(Iterator<ArrayDeque<Request>> queues=this.queues.values().iterator();queues.hasNext();) {
+				ArrayDeque<Request> queue=queues.next();
+				Request head;
+				while((head=queue.peek())!=null) {
+					if(head.done) {
+						queue.poll();
+					} else if(head.deadline-now<=0) {
+						queue.poll();
+						if(outstanding.remove(head.id)!=null) {
+							head.done=true;
+							overdue.add(head);
+						}
+					} else {
+						if(!more || head.deadline-next<0) next=head.deadline;
+						more=true;
+						break;
+					}
+				}
+				if(queue.isEmpty()) queues.remove();
+			}
+			if(more) arm(next);
+		} finally {
+			lock.unlock();
+		}
+		for(Request request : overdue) request.callback.callback();
+	}
+
+	/**
+	 *
+	 * @return true if timeouts are coalesced
+	 */
+	boolean getCoalesce() {
+		return coalesce;
+	}
+
+	/**
+	 * Set whether to coalesce the timeouts of requests added from now on.
+	 * @param coalesce
+	 */
+	void setCoalesce(boolean coalesce) {
+		this.coalesce=coalesce;
+	}
+
+	/**
+	 *
+	 * @return number of requests waiting for a reply
+	 */
+	int size() {
+		return outstanding.size();
+	}
+}
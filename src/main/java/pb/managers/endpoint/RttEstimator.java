@@ -0,0 +1,130 @@
+package pb.managers.endpoint;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import pb.utils.TimingWheel;
+
+/**
+ * Estimates the round trip time to the other endpoint from how long
+ * requests take to be replied to, the way TCP does for its retransmission
+ * timeout (RFC 6298). The first measurement R sets the smoothed round trip
+ * time SRTT to R and its variation RTTVAR to R/2; each later one sets
+ * RTTVAR to 3/4 RTTVAR + 1/4 |SRTT - R| and then SRTT to 7/8 SRTT + 1/8 R.
+ * A timeout derived from them is SRTT plus the larger of four times RTTVAR
+ * and a tick of the timing wheel, kept between a floor and a ceiling that
+ * the caller chooses.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#getRtt()}
+ */
+public class RttEstimator {
+
+	/**
+	 * Granularity of the clock that timeouts are set by, in ns.
+	 */
+	private static final long granularity=TimeUnit.MILLISECONDS.toNanos(TimingWheel.defaultTickMillis);
+
+	private final ReentrantLock lock=new ReentrantLock();
+
+	/**
+	 * Smoothed round trip time and its variation, in ns.
+	 */
+	private long smoothedRtt=0;
+	private long rttVariation=0;
+
+	/**
+	 * Number of measurements taken.
+	 */
+	private long samples=0;
+
+	/**
+	 * Take a measurement.
+	 * @param rtt how long a request took to be replied to, in ns
+	 */
+	public void sample(long rtt) {
+		if(rtt<0) return;
+		lock.lock();
+		try {
+			if(samples==0) {
+				smoothedRtt=rtt;
+				rttVariation=rtt/2;
+			} else {
+				rttVariation=(3*rttVariation+Math.abs(smoothedRtt-rtt))/4;
+				smoothedRtt=(7*smoothedRtt+rtt)/8;
+			}
+			samples++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @return number of measurements taken
+	 */
+	public long getSamples() {
+		lock.lock();
+		try {
+			return samples;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @return the smoothed round trip time, in ms, or 0 if there are no
+	 * measurements yet
+	 */
+	public double getRoundTripTime() {
+		lock.lock();
+		try {
+			return smoothedRtt/1e6;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @return the variation of the round trip time, in ms, or 0 if there
+	 * are no measurements yet
+	 */
+	public double getRttVariation() {
+		lock.lock();
+		try {
+			return rttVariation/1e6;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * How long to wait for a reply.
+	 * @param floor the shortest wait, in ms
+	 * @param ceiling the longest wait, in ms
+	 * @return the wait in ms, the ceiling if there are no measurements yet
+	 */
+	public long getTimeout(long floor, long ceiling) {
+		long timeout;
+		lock.lock();
+		try {
+			if(samples==0) return ceiling;
+			timeout=TimeUnit.NANOSECONDS.toMillis(smoothedRtt+Math.max(granularity,4*rttVariation));
+		} finally {
+			lock.unlock();
+		}
+		return Math.min(ceiling,Math.max(floor,timeout));
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			return String.format("rtt %.2f ms, variation %.2f ms, %d samples",
+					smoothedRtt/1e6,rttVariation/1e6,samples);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
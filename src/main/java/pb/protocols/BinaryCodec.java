@@ -0,0 +1,400 @@
+package pb.protocols;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import pb.protocols.event.EventAck;
+import pb.protocols.event.EventBatchRequest;
+import pb.protocols.event.EventReply;
+import pb.protocols.event.EventRequest;
+import pb.protocols.keepalive.KeepAliveReply;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.session.SessionStartReply;
+import pb.protocols.session.SessionStartRequest;
+import pb.protocols.session.SessionStopReply;
+import pb.protocols.session.SessionStopRequest;
+import pb.utils.Utf8;
+
+/**
+ * A compact binary encoding of messages, an alternative to JSON that
+ * an endpoint uses once both endpoints have asked for it in the session
+ * handshake. An encoded message is:
+ * <ul>
+ * <li>the byte {@value #marker}, which a JSON message never starts with, or
+ * for a message on a logical channel the byte {@value #channelMarker}
+ * followed by the channel id, a varint</li>
+ * <li>the message id, a varint, see the constants below</li>
+ * <li>the timeout id, a varint, 0 if there is none</li>
+ * <li>the parameters of the message, in an order fixed for each message</li>
+ * </ul>
+ * Varints are unsigned, seven bits per byte, least significant first, with
+ * the top bit set on all but the last byte. Strings are a varint of their
+ * length in UTF-8 bytes plus one, 0 for null, followed by the bytes.
+ * Parameters added to a message later go after the existing ones, and
+ * any bytes after the parameters that a decoder knows about are ignored.
+ * <br/>
+ * Decoding makes the message object directly, without a JSON document.
+ *
+ * @see {@link pb.protocols.Message}
+ * @see {@link pb.managers.endpoint.Endpoint}
+ */
+public class BinaryCodec {
+	/**
+	 * First byte of every message in this encoding.
+	 */
+	public static final byte marker = 1;
+	
+	/**
+	 * First byte of every message on a logical channel in this encoding.
+	 */
+	public static final byte channelMarker = 3;
+
+	/*
+	 * Message ids. These go on the wire, so must never be reused.
+	 */
+	private static final int keepAliveRequestId = 1;
+	private static final int keepAliveReplyId = 2;
+	private static final int sessionStartRequestId = 3;
+	private static final int sessionStartReplyId = 4;
+	private static final int sessionStopRequestId = 5;
+	private static final int sessionStopReplyId = 6;
+	private static final int eventRequestId = 7;
+	private static final int eventReplyId = 8;
+	private static final int sequencedEventRequestId = 9;
+	private static final int eventAckId = 10;
+	private static final int eventBatchRequestId = 11;
+
+	/**
+	 * Flags in the session start messages for wanting the binary codec,
+	 * for accepting compressed frames, for accepting logical channels, for
+	 * acknowledging events cumulatively, for accepting batches of events,
+	 * for counting any message as a sign of life and, in requests only,
+	 * for a connection that only carries logical channels.
+	 */
+	private static final int binaryCodecFlag = 1;
+	private static final int compressionFlag = 2;
+	private static final int channelsFlag = 4;
+	private static final int eventAcksFlag = 8;
+	private static final int eventBatchesFlag = 16;
+	private static final int quietKeepAliveFlag = 32;
+	private static final int carrierFlag = 64;
+
+	/**
+	 *
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return true if the bytes hold a message in this encoding rather than JSON
+	 */
+	public static boolean isBinary(byte[] bytes, int offset, int length) {
+		return length>0 && (bytes[offset]==marker || bytes[offset]==channelMarker);
+	}
+
+	/**
+	 *
+	 * @param msg
+	 * @return the id of the message in this encoding, or 0 if it has none
+	 */
+	private static int idOf(Message msg) {
+		switch(msg.getName()) {
+		case KeepAliveRequest.name: return keepAliveRequestId;
+		case KeepAliveReply.name: return keepAliveReplyId;
+		case SessionStartRequest.name:
+			// resuming a session is rare enough to go as JSON
+			return ((SessionStartRequest)msg).getResumeToken()==null ? sessionStartRequestId : 0;
+		case SessionStartReply.name: {
+			// as are refusals and session tokens
+			SessionStartReply reply = (SessionStartReply) msg;
+			return reply.getRetryAfter()==0 && reply.getToken()==null ? sessionStartReplyId : 0;
+		}
+		case SessionStopRequest.name: return sessionStopRequestId;
+		case SessionStopReply.name: return sessionStopReplyId;
+		case EventRequest.name:
+			return ((EventRequest)msg).getSeq()==0 ? eventRequestId : sequencedEventRequestId;
+		case EventReply.name: return eventReplyId;
+		case EventAck.name: return eventAckId;
+		case EventBatchRequest.name: return eventBatchRequestId;
+		// put more message cases here
+
+		default: return 0;
+		}
+	}
+
+	/**
+	 * Encode a message into a buffer, leaving room in front of it for a
+	 * frame header.
+	 * @param msg
+	 * @param channelId the channel the message is sent on, 0 for the
+	 * connection itself
+	 * @param headerSize number of bytes to leave before the message
+	 * @param allocator gives a buffer with room for at least the number of
+	 * bytes asked for, the header and the message
+	 * @return the buffer from the allocator, with the message after the
+	 * header and positioned at the end of the message, or null if the message
+	 * has no id in this encoding, in which case it has to be sent as JSON
+	 */
+	public static ByteBuffer encode(Message msg, long channelId, int headerSize,
+			IntFunction<ByteBuffer> allocator) {
+		int id = idOf(msg);
+		if(id==0) return null;
+		int size = headerSize+1+varintSize(id)+varintSize(msg.getTimeoutId());
+		if(channelId!=0) size += varintSize(channelId);
+		ByteBuffer buffer;
+		switch(id) {
+		case sessionStartRequestId: {
+			SessionStartRequest request = (SessionStartRequest) msg;
+			long maxFrameSize = request.getMaxFrameSize();
+			int flags = flags(request.getBinaryCodec(),request.getCompression(),
+					request.getChannels(),request.getEventAcks(),request.getEventBatches(),
+					request.getQuietKeepAlive()) | (request.getCarrier() ? carrierFlag : 0);
+			size += varintSize(maxFrameSize)+varintSize(flags);
+			buffer = start(allocator,size,headerSize,id,channelId,msg);
+			putVarint(buffer,maxFrameSize);
+			putVarint(buffer,flags);
+			break;
+		}
+		case sessionStartReplyId: {
+			SessionStartReply reply = (SessionStartReply) msg;
+			long maxFrameSize = reply.getMaxFrameSize();
+			int flags = flags(reply.getBinaryCodec(),reply.getCompression(),
+					reply.getChannels(),reply.getEventAcks(),reply.getEventBatches(),
+					reply.getQuietKeepAlive());
+			size += varintSize(maxFrameSize)+varintSize(flags);
+			buffer = start(allocator,size,headerSize,id,channelId,msg);
+			putVarint(buffer,maxFrameSize);
+			putVarint(buffer,flags);
+			break;
+		}
+		case eventRequestId:
+		case sequencedEventRequestId: {
+			EventRequest request = (EventRequest) msg;
+			String eventName = request.getEventName();
+			String eventData = request.getEventData();
+			int nameLength = eventName==null ? -1 : Utf8.length(eventName);
+			int dataLength = eventData==null ? -1 : Utf8.length(eventData);
+			size += stringSize(nameLength)+stringSize(dataLength);
+			if(id==sequencedEventRequestId) size += varintSize(request.getSeq());
+			buffer = start(allocator,size,headerSize,id,channelId,msg);
+			putString(buffer,eventName,nameLength);
+			putString(buffer,eventData,dataLength);
+			if(id==sequencedEventRequestId) putVarint(buffer,request.getSeq());
+			break;
+		}
+		case eventBatchRequestId: {
+			// the number of events, then each event's name, data and number
+			List<EventRequest> events = ((EventBatchRequest) msg).getEvents();
+			int[] lengths = new int[2*events.size()];
+			size += varintSize(events.size());
+			for(int i=0;i<events.size();i++) {
+				EventRequest event = events.get(i);
+				lengths[2*i] = event.getEventName()==null ? -1 : Utf8.length(event.getEventName());
+				lengths[2*i+1] = event.getEventData()==null ? -1 : Utf8.length(event.getEventData());
+				size += stringSize(lengths[2*i])+stringSize(lengths[2*i+1])+varintSize(event.getSeq());
+			}
+			buffer = start(allocator,size,headerSize,id,channelId,msg);
+			putVarint(buffer,events.size());
+			for(int i=0;i<events.size();i++) {
+				EventRequest event = events.get(i);
+				putString(buffer,event.getEventName(),lengths[2*i]);
+				putString(buffer,event.getEventData(),lengths[2*i+1]);
+				putVarint(buffer,event.getSeq());
+			}
+			break;
+		}
+		default:
+			buffer = start(allocator,size,headerSize,id,channelId,msg);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Get a buffer and put the parts common to all messages in it.
+	 */
+	private static ByteBuffer start(IntFunction<ByteBuffer> allocator, int size,
+			int headerSize, int id, long channelId, Message msg) {
+		ByteBuffer buffer = allocator.apply(size);
+		buffer.position(buffer.position()+headerSize);
+		if(channelId==0) {
+			buffer.put(marker);
+		} else {
+			buffer.put(channelMarker);
+			putVarint(buffer,channelId);
+		}
+		putVarint(buffer,id);
+		putVarint(buffer,msg.getTimeoutId());
+		return buffer;
+	}
+
+	private static int flags(boolean binaryCodec, boolean compression, boolean channels,
+			boolean eventAcks, boolean eventBatches, boolean quietKeepAlive) {
+		return (binaryCodec ? binaryCodecFlag : 0) | (compression ? compressionFlag : 0) |
+				(channels ? channelsFlag : 0) | (eventAcks ? eventAcksFlag : 0) |
+				(eventBatches ? eventBatchesFlag : 0) | (quietKeepAlive ? quietKeepAliveFlag : 0);
+	}
+
+	private static int varintSize(long v) {
+		int size = 1;
+		while((v & ~0x7fL)!=0) {
+			v >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private static void putVarint(ByteBuffer buffer, long v) {
+		while((v & ~0x7fL)!=0) {
+			buffer.put((byte) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		buffer.put((byte) v);
+	}
+
+	/**
+	 * @param length UTF-8 length of the string, -1 for null
+	 */
+	private static int stringSize(int length) {
+		return varintSize(length+1)+Math.max(length,0);
+	}
+
+	/**
+	 * @param length UTF-8 length of the string, -1 for null
+	 */
+	private static void putString(ByteBuffer buffer, String s, int length) {
+		putVarint(buffer,length+1);
+		if(s!=null) Utf8.put(buffer,s,length);
+	}
+
+	/**
+	 * Decode a message.
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return the message
+	 * @throws InvalidMessage if the bytes are not a valid message in this encoding
+	 */
+	public static Message decode(byte[] bytes, int offset, int length) throws InvalidMessage {
+		Input in = new Input(bytes,offset,length);
+		int first = in.readByte();
+		long channelId = 0;
+		if(first==channelMarker) {
+			channelId = in.readVarint();
+		} else if(first!=marker) {
+			throw new InvalidMessage();
+		}
+		long id = in.readVarint();
+		long timeoutId = in.readVarint();
+		Message msg;
+		switch((int)id) {
+		case keepAliveRequestId: msg = new KeepAliveRequest(); break;
+		case keepAliveReplyId: msg = new KeepAliveReply(); break;
+		case sessionStartRequestId: {
+			long maxFrameSize = in.readVarint();
+			long flags = in.readVarint();
+			msg = new SessionStartRequest()
+					.setMaxFrameSize(maxFrameSize)
+					.setBinaryCodec((flags & binaryCodecFlag)!=0)
+					.setCompression((flags & compressionFlag)!=0)
+					.setChannels((flags & channelsFlag)!=0)
+					.setEventAcks((flags & eventAcksFlag)!=0)
+					.setEventBatches((flags & eventBatchesFlag)!=0)
+					.setQuietKeepAlive((flags & quietKeepAliveFlag)!=0)
+					.setCarrier((flags & carrierFlag)!=0);
+			break;
+		}
+		case sessionStartReplyId: {
+			long maxFrameSize = in.readVarint();
+			long flags = in.readVarint();
+			msg = new SessionStartReply()
+					.setMaxFrameSize(maxFrameSize)
+					.setBinaryCodec((flags & binaryCodecFlag)!=0)
+					.setCompression((flags & compressionFlag)!=0)
+					.setChannels((flags & channelsFlag)!=0)
+					.setEventAcks((flags & eventAcksFlag)!=0)
+					.setEventBatches((flags & eventBatchesFlag)!=0)
+					.setQuietKeepAlive((flags & quietKeepAliveFlag)!=0);
+			break;
+		}
+		case sessionStopRequestId: msg = new SessionStopRequest(); break;
+		case sessionStopReplyId: msg = new SessionStopReply(); break;
+		case eventRequestId: {
+			String eventName = in.readString();
+			String eventData = in.readString();
+			if(eventName==null || eventData==null) throw new InvalidMessage();
+			msg = new EventRequest(eventName,eventData);
+			break;
+		}
+		case sequencedEventRequestId: {
+			String eventName = in.readString();
+			String eventData = in.readString();
+			if(eventName==null || eventData==null) throw new InvalidMessage();
+			msg = new EventRequest(eventName,eventData,in.readVarint());
+			break;
+		}
+		case eventReplyId: msg = new EventReply(); break;
+		case eventAckId: msg = new EventAck(); break;
+		case eventBatchRequestId: {
+			long count = in.readVarint();
+			// each event takes at least three bytes
+			if(count>length/3) throw new InvalidMessage();
+			List<EventRequest> events = new ArrayList<>((int)count);
+			for(long i=0;i<count;i++) {
+				String eventName = in.readString();
+				String eventData = in.readString();
+				if(eventName==null || eventData==null) throw new InvalidMessage();
+				events.add(new EventRequest(eventName,eventData,in.readVarint()));
+			}
+			msg = new EventBatchRequest(events);
+			break;
+		}
+		// put more message cases here
+
+		// if nothing matches, its invalid
+		default: throw new InvalidMessage();
+		}
+		msg.setTimeoutId(timeoutId);
+		msg.setChannelId(channelId);
+		return msg;
+	}
+
+	/**
+	 * A part of a byte array to decode from.
+	 */
+	private static class Input {
+		private final byte[] buf;
+		private int pos;
+		private final int limit;
+
+		Input(byte[] buf, int offset, int length) {
+			this.buf = buf;
+			this.pos = offset;
+			this.limit = offset+length;
+		}
+
+		int readByte() throws InvalidMessage {
+			if(pos>=limit) throw new InvalidMessage();
+			return buf[pos++];
+		}
+
+		long readVarint() throws InvalidMessage {
+			long v = 0;
+			for(int shift=0;shift<64;shift+=7) {
+				int b = readByte();
+				v |= (long) (b & 0x7f) << shift;
+				if((b & 0x80)==0) return v;
+			}
+			throw new InvalidMessage();
+		}
+
+		String readString() throws InvalidMessage {
+			long length = readVarint()-1;
+			if(length==-1) return null;
+			if(length<0 || length>limit-pos) throw new InvalidMessage();
+			String s = new String(buf,pos,(int)length,StandardCharsets.UTF_8);
+			pos += (int) length;
+			return s;
+		}
+	}
+}
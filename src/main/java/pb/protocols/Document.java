@@ -1,5 +1,7 @@
 package pb.protocols;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 
 import org.json.simple.JSONArray;
@@ -100,6 +102,20 @@ public class Document {
 		}
 	}
 	
+	public static Document parse(Reader json) {
+		JSONParser parser = new JSONParser();
+		try {
+			JSONObject obj  = (JSONObject) parser.parse(json);
+			return new Document(obj);
+		} catch (ParseException e) {
+			return new Document();
+		} catch (IOException e) {
+			return new Document();
+		} catch (ClassCastException e){
+			return new Document();
+		}
+	}
+	
 	public boolean containsKey(String key){
 		return obj.containsKey(key);
 	}
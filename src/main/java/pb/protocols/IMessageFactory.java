@@ -0,0 +1,12 @@
+package pb.protocols;
+
+@FunctionalInterface
+public interface IMessageFactory {
+	/**
+	 * Make a message from a parsed document.
+	 * @param doc the parsed document
+	 * @return the message
+	 * @throws InvalidMessage if the document is not a valid message of this kind
+	 */
+	public Message newMessage(Document doc) throws InvalidMessage;
+}
@@ -0,0 +1,17 @@
+package pb.protocols;
+
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.IEndpointHandler;
+
+@FunctionalInterface
+public interface IProtocolFactory {
+	/**
+	 * Make an instance of a protocol, when an endpoint receives a message
+	 * for a protocol it is not yet handling.
+	 * @param endpoint the endpoint that will handle the protocol
+	 * @param manager the endpoint's manager, which must also be the kind of
+	 * handler the protocol reports to
+	 * @return the protocol
+	 */
+	public Protocol newProtocol(Endpoint endpoint, IEndpointHandler manager);
+}
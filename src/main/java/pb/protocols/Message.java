@@ -1,20 +1,17 @@
 package pb.protocols;
 
-import pb.protocols.event.EventReply;
-import pb.protocols.event.EventRequest;
-import pb.protocols.keepalive.KeepAliveReply;
-import pb.protocols.keepalive.KeepAliveRequest;
-import pb.protocols.session.SessionStartReply;
-import pb.protocols.session.SessionStartRequest;
-import pb.protocols.session.SessionStopReply;
-import pb.protocols.session.SessionStopRequest;
+import java.io.Reader;
 
 /**
  * Message super class and factory for all protocol messages, to parse a
  * received UTF-8 line of text in JSON format, as an object that represents the
- * message.
+ * message. The message parameters are held in fields, and a JSON document
+ * is only made when the message is converted for transmission, so that
+ * messages can equally be encoded by the {@link pb.protocols.BinaryCodec}.
+ * Messages are parsed by the factories in the {@link pb.protocols.ProtocolRegistry}.
  * 
  * @see {@link pb.protocols.Protocol}
+ * @see {@link pb.protocols.BinaryCodec}
  * @author aaron
  *
  */
@@ -28,9 +25,36 @@ public class Message {
 	}
 	
 	/**
-	 * All of the message parameters are wrapped up in a Document class.
+	 * The name of the message.
 	 */
-	protected Document doc;
+	private final String name;
+	
+	/**
+	 * The name of the protocol the message belongs to.
+	 */
+	private final String protocolName;
+	
+	/**
+	 * Whether the message is a request or a reply.
+	 */
+	private final Message.Type type;
+	
+	/**
+	 * The id of the protocol in the {@link pb.protocols.ProtocolRegistry},
+	 * looked up when first needed.
+	 */
+	private int protocolId=-1;
+	
+	/**
+	 * The timeout id, 0 if there is none.
+	 */
+	private long timeoutId=0;
+	
+	/**
+	 * The logical channel the message belongs to, 0 if it belongs to the
+	 * connection itself.
+	 */
+	private long channelId=0;
 	
 	/**
 	 * Initialiser when given parameters explicitly.
@@ -39,10 +63,9 @@ public class Message {
 	 * @param type whether its a Request or a Reply message
 	 */
 	public Message(String name, String protocolName, Message.Type type) {
-		doc = new Document();
-		doc.append("name", name);
-		doc.append("protocolName", protocolName);
-		doc.append("type", type.toString());
+		this.name=name;
+		this.protocolName=protocolName;
+		this.type=type;
 	}
 	
 	static public void validateStringValue(String key,String val,Document doc) throws InvalidMessage {
@@ -62,6 +85,11 @@ public class Message {
 		if(!(doc.get(key) instanceof String)) throw new InvalidMessage();
 	}
 	
+	static public void validateBooleanType(String key,Document doc) throws InvalidMessage {
+		if(!doc.containsKey(key)) throw new InvalidMessage();
+		if(!(doc.get(key) instanceof Boolean)) throw new InvalidMessage();
+	}
+	
 	/**
 	 * Initialiser when given parameters in a doc.
 	 * @param name the name of the message that is being initialised
@@ -73,7 +101,17 @@ public class Message {
 		validateStringValue("name",name,doc);
 		validateStringValue("protocolName",protocolName,doc);
 		validateStringValue("type",type.toString(),doc);
-		if(doc.containsKey("timeoutId")) validateLongType("timeoutId",doc);
+		if(doc.containsKey("timeoutId")) {
+			validateLongType("timeoutId",doc);
+			timeoutId=doc.getLong("timeoutId");
+		}
+		if(doc.containsKey("channelId")) {
+			validateLongType("channelId",doc);
+			channelId=doc.getLong("channelId");
+		}
+		this.name=name;
+		this.protocolName=protocolName;
+		this.type=type;
 	}
 	
 	/**
@@ -83,27 +121,37 @@ public class Message {
 	 * @throws InvalidMessage if no message object matches the message
 	 */
 	static public Message toMessage(String json) throws InvalidMessage {
-		Document doc = Document.parse(json);
-		// the following test is somewhat repetitive, but it avoids having
-		// to test each message type, handling exceptions for those that are
-		// not the matching message type
-		if(!doc.containsKey("name")) throw new InvalidMessage();
-		if(!(doc.get("name") instanceof String)) throw new InvalidMessage();
-		String msg = doc.getString("name");
-		switch(msg) {
-			case KeepAliveRequest.name: return new KeepAliveRequest(doc);
-			case KeepAliveReply.name: return new KeepAliveReply(doc);
-			case SessionStartRequest.name: return new SessionStartRequest(doc);
-			case SessionStartReply.name: return new SessionStartReply(doc);
-			case SessionStopRequest.name: return new SessionStopRequest(doc);
-			case SessionStopReply.name: return new SessionStopReply(doc);
-			case EventRequest.name: return new EventRequest(doc);
-			case EventReply.name: return new EventReply(doc);
-			// put more message cases here
-			
-			// if nothing matches, its invalid
-			default: throw new InvalidMessage();
-		}
+		return toMessage(Document.parse(json));
+	}
+	
+	/**
+	 * Read JSON from a reader and turn it into an appropriate message object,
+	 * for messages too large to be conveniently held in a single string.
+	 * @param json the reader to parse from, must give JSON format
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if no message object matches the message
+	 */
+	static public Message toMessage(Reader json) throws InvalidMessage {
+		return toMessage(Document.parse(json));
+	}
+	
+	/**
+	 * Turn a parsed document into an appropriate message object.
+	 * @param doc the parsed document
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if no message object matches the message
+	 */
+	static private Message toMessage(Document doc) throws InvalidMessage {
+		// more messages are registered with the ProtocolRegistry
+		return ProtocolRegistry.newMessage(doc);
+	}
+	
+	/**
+	 * Add the message parameters, other than those common to all messages,
+	 * to a doc. Messages with parameters must override this.
+	 * @param doc
+	 */
+	protected void appendParameters(Document doc) {
 	}
 	
 	/**
@@ -111,6 +159,23 @@ public class Message {
 	 * @return
 	 */
 	public String toJsonString() {
+		return toJsonString(channelId);
+	}
+	
+	/**
+	 * Convert the message to a string for transmission on a logical
+	 * channel, whatever channel id the message itself has.
+	 * @param channelId 0 for the connection itself
+	 * @return
+	 */
+	public String toJsonString(long channelId) {
+		Document doc = new Document();
+		doc.append("name", name);
+		doc.append("protocolName", protocolName);
+		doc.append("type", type.toString());
+		if(timeoutId!=0) doc.append("timeoutId", timeoutId);
+		if(channelId!=0) doc.append("channelId", channelId);
+		appendParameters(doc);
 		return doc.toJson();
 	}
 	
@@ -119,7 +184,17 @@ public class Message {
 	 * @return
 	 */
 	public String getProtocolName() {
-		return doc.getString("protocolName");
+		return protocolName;
+	}
+	
+	/**
+	 * Return the id of the protocol in the {@link pb.protocols.ProtocolRegistry}
+	 * @return id, or -1 if the protocol is not registered
+	 */
+	public final int getProtocolId() {
+		int id=protocolId;
+		if(id<0) protocolId=id=ProtocolRegistry.getProtocolId(protocolName);
+		return id;
 	}
 	
 	/**
@@ -127,7 +202,7 @@ public class Message {
 	 * @return
 	 */
 	public String getName() {
-		return doc.getString("name");
+		return name;
 	}
 	
 	/**
@@ -135,7 +210,7 @@ public class Message {
 	 * @return
 	 */
 	public final Message.Type getType() {
-		return Message.Type.valueOf(doc.getString("type"));
+		return type;
 	}
 	
 	/**
@@ -143,7 +218,7 @@ public class Message {
 	 * @param id
 	 */
 	public final void setTimeoutId(long id) {
-		doc.append("timeoutId", id);
+		timeoutId=id;
 	}
 	
 	/**
@@ -151,8 +226,22 @@ public class Message {
 	 * @return id
 	 */
 	public final long getTimeoutId() {
-		if(doc.containsKey("timeoutId"))
-			return doc.getLong("timeoutId");
-		else return 0;
+		return timeoutId;
+	}
+	
+	/**
+	 * Set the channel id
+	 * @param id
+	 */
+	public final void setChannelId(long id) {
+		channelId=id;
+	}
+	
+	/**
+	 * Get channel id
+	 * @return id, 0 if the message belongs to the connection itself
+	 */
+	public final long getChannelId() {
+		return channelId;
 	}
 }
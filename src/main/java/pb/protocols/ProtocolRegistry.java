@@ -0,0 +1,188 @@
+package pb.protocols;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.IEndpointHandler;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventAck;
+import pb.protocols.event.EventBatchRequest;
+import pb.protocols.event.EventReply;
+import pb.protocols.event.EventRequest;
+import pb.protocols.event.IEventProtocolHandler;
+import pb.protocols.keepalive.IKeepAliveProtocolHandler;
+import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.keepalive.KeepAliveReply;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.session.ISessionProtocolHandler;
+import pb.protocols.session.SessionProtocol;
+import pb.protocols.session.SessionStartReply;
+import pb.protocols.session.SessionStartRequest;
+import pb.protocols.session.SessionStopReply;
+import pb.protocols.session.SessionStopRequest;
+
+/**
+ * The protocols and messages known to the system. Each protocol is given a
+ * small integer id when it is registered, so that an endpoint can keep the
+ * protocols it handles in an array indexed by id, and each message name is
+ * mapped to a factory that parses it. The ids are only used locally, they
+ * are never sent to the other endpoint.
+ * <br/>
+ * The session, keep alive and event protocols are always registered; more
+ * can be registered, before any endpoint receives their messages, with
+ * {@link #registerProtocol(String, IProtocolFactory)} and
+ * {@link #registerMessage(String, IMessageFactory)}. Lookups take no lock.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @see {@link pb.protocols.Message#toMessage(String)}
+ */
+public class ProtocolRegistry {
+
+	/**
+	 * Guards registration.
+	 */
+	private static final ReentrantLock lock=new ReentrantLock();
+
+	/**
+	 * Protocol ids by protocol name.
+	 */
+	private static final Map<String,Integer> protocolIds=new ConcurrentHashMap<>();
+
+	/**
+	 * Protocol factories indexed by protocol id, replaced whenever a
+	 * protocol is registered.
+	 */
+	private static volatile IProtocolFactory[] protocolFactories=new IProtocolFactory[0];
+
+	/**
+	 * Message factories by message name.
+	 */
+	private static final Map<String,IMessageFactory> messageFactories=new ConcurrentHashMap<>();
+
+	static {
+		registerProtocol(SessionProtocol.protocolName,(endpoint,manager)->
+			new SessionProtocol(endpoint,(ISessionProtocolHandler)manager));
+		registerProtocol(KeepAliveProtocol.protocolName,(endpoint,manager)->
+			new KeepAliveProtocol(endpoint,(IKeepAliveProtocolHandler)manager));
+		registerProtocol(EventProtocol.protocolName,(endpoint,manager)->
+			new EventProtocol(endpoint,(IEventProtocolHandler)manager));
+		registerMessage(KeepAliveRequest.name,KeepAliveRequest::new);
+		registerMessage(KeepAliveReply.name,KeepAliveReply::new);
+		registerMessage(SessionStartRequest.name,SessionStartRequest::new);
+		registerMessage(SessionStartReply.name,SessionStartReply::new);
+		registerMessage(SessionStopRequest.name,SessionStopRequest::new);
+		registerMessage(SessionStopReply.name,SessionStopReply::new);
+		registerMessage(EventRequest.name,EventRequest::new);
+		registerMessage(EventReply.name,EventReply::new);
+		registerMessage(EventAck.name,EventAck::new);
+		registerMessage(EventBatchRequest.name,EventBatchRequest::new);
+	}
+
+	/**
+	 * Register a protocol, or replace the factory of one already registered.
+	 * @param protocolName the name of the protocol
+	 * @param factory makes an instance of the protocol for an endpoint
+	 * @return the protocol's id
+	 */
+	public static int registerProtocol(String protocolName, IProtocolFactory factory) {
+		lock.lock();
+		try {
+			Integer id=protocolIds.get(protocolName);
+			IProtocolFactory[] factories=protocolFactories;
+			if(id==null) {
+				id=factories.length;
+				factories=Arrays.copyOf(factories,id+1);
+			} else {
+				factories=factories.clone();
+			}
+			factories[id]=factory;
+			protocolFactories=factories;
+			protocolIds.put(protocolName,id);
+			return id;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Give a protocol an id, if it doesn't already have one, without a
+	 * factory, for a protocol that is only ever started locally.
+	 * @param protocolName the name of the protocol
+	 * @return the protocol's id
+	 */
+	public static int registerProtocol(String protocolName) {
+		Integer id=protocolIds.get(protocolName);
+		if(id!=null) return id;
+		lock.lock();
+		try {
+			id=protocolIds.get(protocolName);
+			if(id!=null) return id;
+			IProtocolFactory[] factories=protocolFactories;
+			id=factories.length;
+			protocolFactories=Arrays.copyOf(factories,id+1);
+			protocolIds.put(protocolName,id);
+			return id;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Register a message, or replace the factory of one already registered.
+	 * @param name the name of the message
+	 * @param factory parses the message
+	 */
+	public static void registerMessage(String name, IMessageFactory factory) {
+		messageFactories.put(name,factory);
+	}
+
+	/**
+	 *
+	 * @param protocolName
+	 * @return the id of the protocol, or -1 if it is not registered
+	 */
+	public static int getProtocolId(String protocolName) {
+		Integer id=protocolIds.get(protocolName);
+		return id==null ? -1 : id;
+	}
+
+	/**
+	 *
+	 * @return number of protocols registered, which is one more than the
+	 * largest protocol id
+	 */
+	public static int getNumProtocols() {
+		return protocolFactories.length;
+	}
+
+	/**
+	 * Make an instance of a protocol.
+	 * @param protocolId
+	 * @param endpoint the endpoint that will handle the protocol
+	 * @param manager the endpoint's manager
+	 * @return the protocol, or null if no protocol with a factory has the id
+	 */
+	public static Protocol newProtocol(int protocolId, Endpoint endpoint, IEndpointHandler manager) {
+		IProtocolFactory[] factories=protocolFactories;
+		if(protocolId<0 || protocolId>=factories.length || factories[protocolId]==null)
+			return null;
+		return factories[protocolId].newProtocol(endpoint,manager);
+	}
+
+	/**
+	 * Make a message from a parsed document.
+	 * @param doc
+	 * @return the message
+	 * @throws InvalidMessage if the document is not a valid registered message
+	 */
+	public static Message newMessage(Document doc) throws InvalidMessage {
+		if(!doc.containsKey("name")) throw new InvalidMessage();
+		if(!(doc.get("name") instanceof String)) throw new InvalidMessage();
+		IMessageFactory factory=messageFactories.get(doc.getString("name"));
+		if(factory==null) throw new InvalidMessage();
+		return factory.newMessage(doc);
+	}
+}
@@ -0,0 +1,32 @@
+package pb.protocols.event;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Reply that acknowledges the event request with its timeout id, and all
+ * of the event requests sent before it on the connection, when both
+ * endpoints acknowledge events cumulatively.
+ * @see {@link pb.protocols.event.EventProtocol}
+ */
+public class EventAck extends Message {
+	static final public String name = "EventAck";
+
+	public EventAck() {
+		super(name, EventProtocol.protocolName, Message.Type.Reply);
+	}
+
+	/**
+	 *
+	 * @param upTo timeout id of the last event request acknowledged
+	 */
+	public EventAck(long upTo) {
+		this();
+		setTimeoutId(upTo);
+	}
+
+	public EventAck(Document doc) throws InvalidMessage {
+		super(name,EventProtocol.protocolName,Message.Type.Reply,doc); // the timeout id is all there is
+	}
+}
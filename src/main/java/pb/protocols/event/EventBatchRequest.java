@@ -0,0 +1,71 @@
+package pb.protocols.event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import pb.protocols.Document;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Request that carries several events, in the order they were emitted, sent
+ * in place of an event request each when both endpoints accept batches. It
+ * is replied to, or acknowledged, as one request.
+ * @see {@link pb.protocols.event.EventProtocol}
+ */
+public class EventBatchRequest extends Message {
+	static final public String name = "EventBatchRequest";
+
+	/**
+	 * The events, each with its name, data and number in a resumable
+	 * session, or 0 if it has none.
+	 */
+	private final List<EventRequest> events;
+
+	public EventBatchRequest(List<EventRequest> events) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		this.events=Collections.unmodifiableList(events);
+	}
+
+	public EventBatchRequest(Document doc) throws InvalidMessage {
+		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
+		if(!(doc.get("events") instanceof ArrayList)) throw new InvalidMessage();
+		List<EventRequest> events=new ArrayList<>();
+		for(Object event : (ArrayList<?>)doc.get("events")) {
+			if(!(event instanceof Document)) throw new InvalidMessage();
+			Document eventDoc=(Document)event;
+			Message.validateStringType("eventName", eventDoc);
+			Message.validateStringType("eventData", eventDoc);
+			long seq=0;
+			if(eventDoc.containsKey("seq")) {
+				validateLongType("seq",eventDoc);
+				seq=eventDoc.getLong("seq");
+			}
+			events.add(new EventRequest(eventDoc.getString("eventName"),
+					eventDoc.getString("eventData"),seq));
+		}
+		this.events=Collections.unmodifiableList(events);
+	}
+
+	@Override
+	protected void appendParameters(Document doc) {
+		ArrayList<Document> list=new ArrayList<>();
+		for(EventRequest event : events) {
+			Document eventDoc=new Document();
+			eventDoc.append("eventName", event.getEventName());
+			eventDoc.append("eventData", event.getEventData());
+			if(event.getSeq()!=0) eventDoc.append("seq", event.getSeq());
+			list.add(eventDoc);
+		}
+		doc.append("events", list);
+	}
+
+	/**
+	 *
+	 * @return the events, in the order they were emitted
+	 */
+	public List<EventRequest> getEvents() {
+		return events;
+	}
+}
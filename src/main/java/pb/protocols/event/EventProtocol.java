@@ -1,5 +1,11 @@
 package pb.protocols.event;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
@@ -7,11 +13,48 @@ import pb.managers.endpoint.Endpoint;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.protocols.session.ResumableSession;
+import pb.utils.Utils;
+import pb.utils.TimingWheel.Timeout;
 
 /**
  * An event protocol for applications communicate using an asynchronous
  * event system. Each event can include a simple parameter that must
  * be a String. Complex data should be marshaled into a String.
+ * <br/>
+ * If the endpoint carries a resumable session, events are numbered and
+ * sent through the session, which keeps them to send again should the
+ * session be resumed on a new connection, and events received again are
+ * dropped, see {@link pb.protocols.session.ResumableSession}.
+ * <br/>
+ * Each event is replied to, unless both endpoints said in the session
+ * handshake that they acknowledge events cumulatively, see
+ * {@link pb.managers.endpoint.Endpoint#setEventAcks(boolean)}. Then the
+ * receiver sends an {@link EventAck} for the last event it has received
+ * once every {@link #ackEvery} events, or {@link #ackDelay} ms after an
+ * event when fewer arrive, which acknowledges all of the events before it,
+ * as requests are sent and received in the order of their timeout ids.
+ * The sender has no timeout for each event, but a single one that times
+ * out if events are waiting to be acknowledged and no acknowledgement has
+ * come for the event timeout.
+ * <br/>
+ * The event timeout follows the endpoint's estimate of the round trip
+ * time, see {@link pb.managers.endpoint.RttEstimator}, which the replies
+ * and acknowledgements to events feed, kept between
+ * {@link #minEventTimeout} and {@link #eventTimeout} ms and rounded up
+ * to whole seconds. Until the round trip has been timed it is
+ * {@link #eventTimeout} ms.
+ * <br/>
+ * If both endpoints accept them, see
+ * {@link pb.managers.endpoint.Endpoint#setEventBatches(boolean)}, events
+ * emitted in quick succession are sent together in an
+ * {@link EventBatchRequest}. The first event after a quiet spell is sent
+ * straight away; the events emitted in the {@link #batchDelay} ms after it
+ * wait and go as one batch, as do those in each following {@link #batchDelay}
+ * ms while events keep coming. A batch goes early once it has
+ * {@link #batchMax} events or {@link #batchChars} characters of event names
+ * and data. The other endpoint emits the events of a batch in order, and
+ * replies to or acknowledges the batch as a single request.
  * @author aaron
  *
  */
@@ -20,10 +63,119 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	public static final String protocolName = "EventProtocol";
 	
-	public int eventTimeout = 40000;
+	/**
+	 * System properties that set the longest and shortest event timeout,
+	 * in ms.
+	 */
+	public static final String eventTimeoutProperty="pb.eventTimeout";
+	public static final String minEventTimeoutProperty="pb.minEventTimeout";
+	
+	public int eventTimeout = Integer.getInteger(eventTimeoutProperty,40000);
+	
+	public int minEventTimeout = Integer.getInteger(minEventTimeoutProperty,5000);
+	
+	/**
+	 * Default number of events received before they are acknowledged, and
+	 * longest an event waits to be acknowledged, in ms, when events are
+	 * acknowledged cumulatively. Can be set with the system properties
+	 * {@value #ackEveryProperty} and {@value #ackDelayProperty}.
+	 */
+	public static final String ackEveryProperty="pb.eventAckEvery";
+	public static final String ackDelayProperty="pb.eventAckDelay";
+	public static final int defaultAckEvery=Integer.getInteger(ackEveryProperty,32);
+	public static final int defaultAckDelay=Integer.getInteger(ackDelayProperty,50);
+	
+	public int ackEvery = defaultAckEvery;
+	
+	public int ackDelay = defaultAckDelay;
+	
+	/**
+	 * Default time events wait to be batched, in ms, and most events and
+	 * characters in a batch. Can be set with the system properties
+	 * {@value #batchDelayProperty}, {@value #batchMaxProperty} and
+	 * {@value #batchCharsProperty}.
+	 */
+	public static final String batchDelayProperty="pb.eventBatchDelay";
+	public static final String batchMaxProperty="pb.eventBatchMax";
+	public static final String batchCharsProperty="pb.eventBatchChars";
+	public static final int defaultBatchDelay=Integer.getInteger(batchDelayProperty,10);
+	public static final int defaultBatchMax=Integer.getInteger(batchMaxProperty,64);
+	public static final int defaultBatchChars=Integer.getInteger(batchCharsProperty,8192);
+	
+	public int batchDelay = defaultBatchDelay;
+	
+	public int batchMax = defaultBatchMax;
+	
+	public int batchChars = defaultBatchChars;
 	
 	public volatile boolean stopped=false;
 	
+	/**
+	 * Guards the acknowledgements below.
+	 */
+	private final ReentrantLock ackLock=new ReentrantLock();
+	
+	/**
+	 * Receiving: the timeout id of the last event received and of the last
+	 * acknowledged, the number received since then, and the timeout for
+	 * acknowledging them if no more arrive.
+	 */
+	private long lastReceived=0;
+	private long lastAcked=0;
+	private int unacked=0;
+	private Timeout ackTimer=null;
+	
+	/**
+	 * Sending: the timeout id of the last event sent and of the last the
+	 * other endpoint acknowledged, when that last changed, and the timeout
+	 * for events waiting to be acknowledged.
+	 */
+	private long lastSent=0;
+	private long acked=0;
+	private long lastProgress=0;
+	private Timeout ackTimeout=null;
+	
+	/**
+	 * Sending: the timeout id of the event being timed until it is
+	 * acknowledged, or 0 if none is, and when it was sent.
+	 */
+	private long timedId=0;
+	private long timedSince=0;
+	
+	/**
+	 * Number of events received, and of replies and acknowledgements sent
+	 * for them.
+	 */
+	private final AtomicLong eventsReceived=new AtomicLong();
+	private final AtomicLong repliesSent=new AtomicLong();
+	
+	/**
+	 * Number of requests received, each an event or a batch of them.
+	 */
+	private final AtomicLong requestsReceived=new AtomicLong();
+	
+	/**
+	 * Keeps events and batches going out in the order they were emitted.
+	 * Held while sending, but never while the lock below is held, since
+	 * closing an endpoint stops this protocol while holding the endpoint's
+	 * own send lock.
+	 */
+	private final ReentrantLock batchOrder=new ReentrantLock();
+	
+	/**
+	 * Guards the batch below.
+	 */
+	private final ReentrantLock batchLock=new ReentrantLock();
+	
+	/**
+	 * The events waiting to go in a batch, the number of characters in
+	 * them, and the timeout for sending them, which is set for as long
+	 * as events keep coming.
+	 */
+	private ArrayList<EventRequest> batch=new ArrayList<>();
+	private int batchLength=0;
+	private Timeout batchTimer=null;
+	
 	/**
 	 * Event protocol will listen to all events emitted on the endpoint and
 	 * transmit them over the endpoint.
@@ -39,7 +191,13 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 			String eventName = (String) args[0];
 			if(args.length==2 && args[1] instanceof String) {
 				String eventData = (String) args[1];
-				sendEvent(eventName,eventData);
+				ResumableSession session=endpoint.getResumableSession();
+				if(session!=null) {
+					// kept even if the connection is gone, until resumed
+					session.send(eventName,eventData);
+				} else {
+					sendEvent(eventName,eventData);
+				}
 			} else {
 				log.warning("emitted event must have only a single String data argument: "+eventName);
 			}			
@@ -53,47 +211,346 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public void sendEvent(String eventName, String eventData) {
 		if(stopped)return;
-		sendRequest(new EventRequest(eventName,eventData));
+		queueEvent(new EventRequest(eventName,eventData));
+	}
+	
+	/**
+	 * Send a numbered event of a resumable session.
+	 * @param eventName
+	 * @param eventData
+	 * @param seq
+	 */
+	public void sendEvent(String eventName, String eventData, long seq) {
+		if(stopped)return;
+		queueEvent(new EventRequest(eventName,eventData,seq));
+	}
+	
+	/**
+	 * Send an event straight away, or put it in the batch if events have
+	 * been sent in the last little while.
+	 * @param event
+	 */
+	private void queueEvent(EventRequest event) {
+		if(!endpoint.usesEventBatches()) {
+			sendRequest(event);
+			return;
+		}
+		batchOrder.lock();
+		try {
+			List<EventRequest> full=null;
+			boolean alone=false;
+			int length=event.getEventName().length()+event.getEventData().length();
+			batchLock.lock();
+			try {
+				if(stopped) return;
+				if(batchTimer==null) {
+					// nothing to wait for
+					alone=true;
+					batchTimer=Utils.getInstance().setTimeout(this::flushBatch, batchDelay);
+				} else if(length>=batchChars) {
+					// too big to share a batch, but must go after the batch
+					full=takeBatch();
+					alone=true;
+				} else {
+					batch.add(event);
+					batchLength+=length;
+					if(batch.size()>=batchMax || batchLength>=batchChars) full=takeBatch();
+				}
+			} finally {
+				batchLock.unlock();
+			}
+			if(full!=null) sendBatch(full);
+			if(alone) sendRequest(event);
+		} finally {
+			batchOrder.unlock();
+		}
+	}
+	
+	/**
+	 * Send the batch when its time is up, and keep batching for as long as
+	 * events keep coming.
+	 */
+	private void flushBatch() {
+		batchOrder.lock();
+		try {
+			List<EventRequest> events;
+			batchLock.lock();
+			try {
+				batchTimer=null;
+				if(stopped) return;
+				events=takeBatch();
+				if(events!=null) {
+					batchTimer=Utils.getInstance().setTimeout(this::flushBatch, batchDelay);
+				}
+			} finally {
+				batchLock.unlock();
+			}
+			if(events!=null) sendBatch(events);
+		} finally {
+			batchOrder.unlock();
+		}
+	}
+	
+	/**
+	 * Send the events waiting to go in a batch now, e.g. before the session
+	 * stops.
+	 */
+	public void flush() {
+		batchOrder.lock();
+		try {
+			List<EventRequest> events;
+			batchLock.lock();
+			try {
+				if(stopped) return;
+				events=takeBatch();
+			} finally {
+				batchLock.unlock();
+			}
+			if(events!=null) sendBatch(events);
+		} finally {
+			batchOrder.unlock();
+		}
+	}
+	
+	/**
+	 * Called with the batch lock held.
+	 * @return the events waiting to go in a batch, or null if there are none
+	 */
+	private List<EventRequest> takeBatch() {
+		if(batch.isEmpty()) return null;
+		List<EventRequest> events=batch;
+		batch=new ArrayList<>();
+		batchLength=0;
+		return events;
+	}
+	
+	private void sendBatch(List<EventRequest> events) {
+		if(events.size()==1) {
+			sendRequest(events.get(0));
+		} else {
+			sendRequest(new EventBatchRequest(events));
+		}
 	}
 	
 	@Override
 	public void stopProtocol() {
 		stopped=true;
+		ResumableSession session=endpoint.getResumableSession();
+		if(session!=null) session.detach(this);
+		ackLock.lock();
+		try {
+			if(ackTimer!=null) ackTimer.cancel();
+			if(ackTimeout!=null) ackTimeout.cancel();
+			ackTimer=null;
+			ackTimeout=null;
+		} finally {
+			ackLock.unlock();
+		}
+		batchLock.lock();
+		try {
+			if(batchTimer!=null) batchTimer.cancel();
+			batchTimer=null;
+			batch.clear();
+		} finally {
+			batchLock.unlock();
+		}
+	}
+
+	/**
+	 * Send the events of a resumable session over this endpoint from now
+	 * on, after any the other side missed.
+	 */
+	private void attachSession() {
+		if(stopped) return;
+		ResumableSession session=endpoint.getResumableSession();
+		if(session!=null) session.attach(this);
 	}
 
 	@Override
 	public void startAsClient() {
-		
-		
+		attachSession();
 	}
 
 	@Override
 	public void startAsServer() {
-		
-		
+		attachSession();
 	}
 
 	@Override
 	public void sendRequest(Message msg) {
 		if(stopped)return;
+		if(endpoint.usesEventAcks()) {
+			sendToAcknowledge(msg);
+			return;
+		}
 		endpoint.sendWithTimeout(msg, ()->{
 			if(!stopped) manager.endpointTimedOut(endpoint, this);
-		}, eventTimeout);
+		}, (int)getEventTimeout());
 		
 	}
+	
+	/**
+	 * 
+	 * @return how long to wait for an event to be replied to or
+	 * acknowledged, in ms
+	 */
+	public long getEventTimeout() {
+		long timeout=endpoint.getRtt().getTimeout(minEventTimeout,eventTimeout);
+		// so that events share the queues of coalesced timeouts
+		return Math.min(eventTimeout,(timeout+999)/1000*1000);
+	}
+	
+	/**
+	 * Send an event that will be acknowledged cumulatively, and time out
+	 * if it is not.
+	 * @param msg
+	 */
+	private void sendToAcknowledge(Message msg) {
+		long id=endpoint.sendNumbered(msg);
+		if(id==0) return;
+		long timeout=getEventTimeout();
+		ackLock.lock();
+		try {
+			if(id>lastSent) lastSent=id;
+			if(timedId==0) {
+				timedId=id;
+				timedSince=System.nanoTime();
+			}
+			if(ackTimeout==null && lastSent>acked && !stopped) {
+				lastProgress=System.nanoTime();
+				ackTimeout=Utils.getInstance().setTimeout(this::checkAcknowledged, timeout);
+			}
+		} finally {
+			ackLock.unlock();
+		}
+	}
+	
+	/**
+	 * Time out if events have been waiting to be acknowledged, and no
+	 * acknowledgement has come, for the event timeout.
+	 */
+	private void checkAcknowledged() {
+		long timeout=getEventTimeout();
+		ackLock.lock();
+		try {
+			ackTimeout=null;
+			if(stopped || lastSent<=acked) return;
+			long waited=TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-lastProgress);
+			if(waited<timeout) {
+				ackTimeout=Utils.getInstance().setTimeout(this::checkAcknowledged,
+						timeout-waited);
+				return;
+			}
+		} finally {
+			ackLock.unlock();
+		}
+		manager.endpointTimedOut(endpoint, this);
+	}
 
 	@Override
 	public void receiveReply(Message msg) {
-		
-		
+		if(!(msg instanceof EventAck)) return;
+		// the acknowledgement covers every event up to this one
+		long upTo=msg.getTimeoutId();
+		long rtt=-1;
+		ackLock.lock();
+		try {
+			if(upTo>acked) {
+				acked=upTo;
+				lastProgress=System.nanoTime();
+			}
+			if(timedId!=0 && upTo>=timedId) {
+				rtt=System.nanoTime()-timedSince;
+				timedId=0;
+			}
+			if(acked>=lastSent && ackTimeout!=null) {
+				ackTimeout.cancel();
+				ackTimeout=null;
+			}
+		} finally {
+			ackLock.unlock();
+		}
+		if(rtt>=0) endpoint.getRtt().sample(rtt);
+	}
+	
+	/**
+	 * Acknowledge an event received, now if enough have been received
+	 * since the last acknowledgement, otherwise shortly.
+	 * @param id the timeout id of the event, or batch of them
+	 * @param events number of events received
+	 */
+	private void acknowledge(long id, int events) {
+		long upTo=0;
+		ackLock.lock();
+		try {
+			if(id>lastReceived) lastReceived=id;
+			unacked+=events;
+			if(unacked>=ackEvery) {
+				upTo=takeAcknowledgement();
+			} else if(ackTimer==null && !stopped) {
+				ackTimer=Utils.getInstance().setTimeout(this::flushAcknowledgement, ackDelay);
+			}
+		} finally {
+			ackLock.unlock();
+		}
+		if(upTo>0) sendAcknowledgement(upTo);
+	}
+	
+	/**
+	 * Acknowledge the events received since the last acknowledgement.
+	 */
+	private void flushAcknowledgement() {
+		long upTo;
+		ackLock.lock();
+		try {
+			ackTimer=null;
+			upTo=takeAcknowledgement();
+		} finally {
+			ackLock.unlock();
+		}
+		if(upTo>0) sendAcknowledgement(upTo);
+	}
+	
+	/**
+	 * Called with the ack lock held.
+	 * @return the timeout id of the last event received, if it has yet
+	 * to be acknowledged, else 0
+	 */
+	private long takeAcknowledgement() {
+		unacked=0;
+		if(ackTimer!=null) {
+			ackTimer.cancel();
+			ackTimer=null;
+		}
+		if(lastReceived<=lastAcked) return 0;
+		lastAcked=lastReceived;
+		return lastAcked;
+	}
+	
+	private void sendAcknowledgement(long upTo) {
+		if(stopped) return;
+		if(endpoint.send(new EventAck(upTo))) repliesSent.incrementAndGet();
 	}
 
 	@Override
 	public void receiveRequest(Message msg) {
 		if(stopped)return;
-		EventRequest eventRequest = (EventRequest)msg;
-		endpoint.sendAndCancelTimeout(new EventReply(), msg);
-		endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());	
+		List<EventRequest> events = msg instanceof EventBatchRequest ?
+				((EventBatchRequest)msg).getEvents() : Collections.singletonList((EventRequest)msg);
+		requestsReceived.incrementAndGet();
+		eventsReceived.addAndGet(events.size());
+		if(endpoint.usesEventAcks()) {
+			acknowledge(msg.getTimeoutId(),events.size());
+		} else if(endpoint.sendAndCancelTimeout(new EventReply(), msg)) {
+			repliesSent.incrementAndGet();
+		}
+		ResumableSession session=endpoint.getResumableSession();
+		for(EventRequest eventRequest : events) {
+			if(eventRequest.getSeq()!=0 && session!=null && !session.received(eventRequest.getSeq(),this)) {
+				continue; // already received, or the session has moved to a new connection
+			}
+			endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());
+		}
 	}
 
 	@Override
@@ -106,5 +563,30 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	public String getProtocolName() {
 		return protocolName;
 	}
+	
+	/**
+	 * 
+	 * @return number of events received
+	 */
+	public long getEventsReceived() {
+		return eventsReceived.get();
+	}
+	
+	/**
+	 * 
+	 * @return number of requests received, each an event or a batch of them
+	 */
+	public long getRequestsReceived() {
+		return requestsReceived.get();
+	}
+	
+	/**
+	 * 
+	 * @return number of replies and acknowledgements sent for the events
+	 * received
+	 */
+	public long getRepliesSent() {
+		return repliesSent.get();
+	}
 
 }
@@ -13,6 +13,5 @@ public class EventReply extends Message {
 
 	public EventReply(Document doc) throws InvalidMessage {
 		super(name,EventProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
 	}
 }
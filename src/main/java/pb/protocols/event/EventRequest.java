@@ -7,24 +7,60 @@ import pb.protocols.Message;
 public class EventRequest extends Message {
 	static final public String name = "EventRequest";
 	
+	private final String eventName;
+	
+	private final String eventData;
+	
+	/**
+	 * Number of the event in a resumable session, or 0 if it has none.
+	 */
+	private final long seq;
+	
 	public EventRequest(String eventName, String eventData) {
+		this(eventName,eventData,0);
+	}
+	
+	public EventRequest(String eventName, String eventData, long seq) {
 		super(name, EventProtocol.protocolName, Message.Type.Request);
-		doc.append("eventName", eventName);
-		doc.append("eventData", eventData);
+		this.eventName=eventName;
+		this.eventData=eventData;
+		this.seq=seq;
 	}
 
 	public EventRequest(Document doc) throws InvalidMessage {
 		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
 		Message.validateStringType("eventName", doc);
 		Message.validateStringType("eventData", doc);
-		this.doc=doc;
+		eventName=doc.getString("eventName");
+		eventData=doc.getString("eventData");
+		if(doc.containsKey("seq")) {
+			validateLongType("seq",doc);
+			seq=doc.getLong("seq");
+		} else {
+			seq=0;
+		}
+	}
+	
+	@Override
+	protected void appendParameters(Document doc) {
+		doc.append("eventName", eventName);
+		doc.append("eventData", eventData);
+		if(seq!=0) doc.append("seq", seq);
 	}
 	
 	public String getEventName() {
-		return doc.getString("eventName");
+		return eventName;
 	}
 	
 	public String getEventData() {
-		return doc.getString("eventData");
+		return eventData;
+	}
+	
+	/**
+	 * 
+	 * @return number of the event in a resumable session, or 0 if it has none
+	 */
+	public long getSeq() {
+		return seq;
 	}
 }
@@ -1,5 +1,10 @@
 package pb.protocols.keepalive;
 
 public interface IKeepAliveProtocolHandler {
-
+	
+	/**
+	 * 
+	 * @return the sweeper that checks the keep alive protocols of this manager
+	 */
+	public KeepAliveSweeper getKeepAliveSweeper();
 }
@@ -1,31 +1,49 @@
 package pb.protocols.keepalive;
 
-import java.time.Instant;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
-import pb.utils.Utils;
 import pb.protocols.IRequestReplyProtocol;
+import pb.utils.Utils;
 
 /**
  * Provides all of the protocol logic for both client and server to undertake
  * the KeepAlive protocol. In the KeepAlive protocol, the client sends a
- * KeepAlive request to the server every {@link #keepAliveInterval} seconds using
- * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}. The server must
- * send a KeepAlive response to the client upon receiving the request. If the
- * client does not receive the response within {@link #keepAliveTimeout} seconds
- * it will assume the server is dead
- * and signal its manager using
- * {@link pb.managers.Manager#endpointTimedOut(Endpoint,Protocol)}. If the server does
- * not receive a KeepAlive request at least every {@link #keepAliveTimeout} seconds (again using
- * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}), it will assume
- * the client is dead and signal its manager. Upon initialisation, the client
- * should send the KeepAlive request immediately, whereas the server will wait
- * up to {@link #keepAliveTimeout} seconds before it assumes the client is dead. The protocol stops
- * when a timeout occurs.
+ * KeepAlive request to the server when the connection has been quiet, and
+ * the server must send a KeepAlive response to the client upon receiving
+ * the request. Any message received counts as a sign of life. If the
+ * client has heard nothing from the server since its request within the
+ * request timeout, it will assume the server is dead and signal its
+ * manager using
+ * {@link pb.managers.Manager#endpointTimedOut(Endpoint,Protocol)}. If the
+ * server has heard nothing from the client for {@link #keepAliveTimeout} ms,
+ * it will assume the client is dead and signal its manager. Upon
+ * initialisation, the client should send the KeepAlive request immediately,
+ * whereas the server will wait up to {@link #keepAliveTimeout} ms before it
+ * assumes the client is dead. The protocol stops when a timeout occurs.
+ * <br/>
+ * The client sends a request once nothing has been sent or nothing has
+ * been received for the request interval, so that both endpoints hear
+ * from each other; if the server did not say in the session handshake
+ * that it counts any message as a sign of life, see
+ * {@link pb.managers.endpoint.Endpoint#setQuietKeepAlive(boolean)}, the
+ * client sends a request every request interval instead. The client times
+ * the replies to its requests for the endpoint's estimate of the round
+ * trip time, see {@link pb.managers.endpoint.RttEstimator}, and waits for
+ * a reply for the timeout derived from it, but for at least
+ * {@link #minRequestTimeout} ms and at most three quarters of
+ * {@link #keepAliveTimeout}; until the round trip has been timed it waits
+ * half of {@link #keepAliveTimeout}. The request interval is
+ * {@link #keepAliveRequestInterval} ms, less if need be so that the
+ * interval and the request timeout together fit within the server's
+ * {@link #keepAliveTimeout}.
+ * <br/>
+ * The checks are made by the manager's
+ * {@link pb.protocols.keepalive.KeepAliveSweeper}.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -46,29 +64,52 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	 */
 	public static final String protocolName="KeepAliveProtocol";
 	
+	/**
+	 * System properties that set the keep alive request interval and
+	 * timeout, in ms.
+	 */
+	public static final String intervalProperty="pb.keepAliveInterval";
+	public static final String timeoutProperty="pb.keepAliveTimeout";
+	public static final String minRequestTimeoutProperty="pb.minKeepAliveRequestTimeout";
+	
 	/**
 	 * Default keep alive request interval
 	 */
-	private int keepAliveRequestInterval = 20000;
+	private int keepAliveRequestInterval = Integer.getInteger(intervalProperty,20000);
 	
 	/**
 	 * Default keep alive timeout
 	 */
-	private int keepAliveTimeout = 40000;
+	private int keepAliveTimeout = Integer.getInteger(timeoutProperty,40000);
 	
-	// Use of volatile is because the timer thread is different to the endpoint thread
+	/**
+	 * Shortest time to wait for a reply to a request.
+	 */
+	private int minRequestTimeout = Integer.getInteger(minRequestTimeoutProperty,5000);
+	
+	// Use of volatile is because the sweeper thread is different to the endpoint thread
 	// and they make use of the same flags/variables.
 	
 	/**
-	 * Time that a request was last sent.
+	 * Whether we are the server.
 	 */
-	private volatile long timeReplySeen;
+	private volatile boolean server=false;
 	
 	/**
-	 * Time that a request was last seen.
+	 * Time that a request was last sent, by {@link System#nanoTime()}.
 	 */
-	private volatile long timeRequestSeen;
+	private volatile long timeRequestSent;
 	
+	/**
+	 * Time that the request we are waiting to hear back about was sent, or
+	 * 0 if we are not waiting.
+	 */
+	private volatile long timeWaitingSince=0;
+	
+	/**
+	 * Time that the request we are timing was sent, or 0 if its reply came.
+	 */
+	private volatile long timeRequestTimed=0;
 	
 	/**
 	 * Set to true to avoid any further timeouts. 
@@ -76,9 +117,11 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	private volatile boolean stopped=false;
 	
 	/**
-	 * Whether we should timeout or not.
+	 * Makes the checks, and the slot this protocol has in it, or -1 if
+	 * not being checked. The slot is guarded by the sweeper.
 	 */
-	private volatile boolean timeout=false; 
+	private final KeepAliveSweeper sweeper;
+	int slot=-1;
 	
 	/**
 	 * Initialise the protocol with an endopint and a manager.
@@ -87,6 +130,7 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	 */
 	public KeepAliveProtocol(Endpoint endpoint, IKeepAliveProtocolHandler manager) {
 		super(endpoint,(Manager)manager);
+		sweeper=manager.getKeepAliveSweeper();
 	}
 	
 	/**
@@ -98,11 +142,12 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	}
 
 	/**
-	 * Just set a flag to avoid any further timeout callbacks.
+	 * Set a flag to avoid any further timeouts, and stop being checked.
 	 */
 	@Override
 	public void stopProtocol() {
 		stopped=true;
+		sweeper.remove(this);
 	}
 	
 	/*
@@ -111,79 +156,114 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	
 	/**
 	 * Called by the manager that is acting as the server. Basically
-	 * just wait for {@link #keepAliveTimeout} seconds and if no (new) request has been seen
+	 * just wait for {@link #keepAliveTimeout} ms and if nothing has been heard
 	 * then timeout. Keep doing this until cancelled.
 	 */
 	public void startAsServer() {
-		timeRequestSeen = Instant.now().toEpochMilli();
-		// set a timeout callback
-		Utils.getInstance().setTimeout(()->{
-			checkClientTimeout();
-		}, keepAliveTimeout);
+		server=true;
+		sweeper.add(this);
 	}
 	
 	/**
-	 * callback to check for client timeout
+	 * Called by the manager that is acting as the client. Basically
+	 * send a keep alive immediately, and another whenever the connection
+	 * is quiet, and timeout if nothing is heard in reply. Keep doing this
+	 * until cancelled.
 	 */
-	public void checkClientTimeout() {
-		if(stopped)return;
-		long now = Instant.now().toEpochMilli();
-		if(now-timeRequestSeen > keepAliveTimeout) {
-			// timeout :-(
-			manager.endpointTimedOut(endpoint,this);
-			stopProtocol();
+	public void startAsClient() {
+		// send a request straight away
+		sendRequest(new KeepAliveRequest());
+		sweeper.add(this);
+	}
+	
+	/**
+	 * Check for a timeout, and send a request if it is time to. Called by
+	 * the sweeper.
+	 * @param now by {@link System#nanoTime()}
+	 * @return true if a request was sent
+	 */
+	boolean sweep(long now) {
+		if(stopped) return false;
+		long heard=endpoint.getLastHeard();
+		if(server) {
+			if(now-heard > TimeUnit.MILLISECONDS.toNanos(keepAliveTimeout)) {
+				// timeout :-(
+				timedOut();
+			}
+			return false;
+		}
+		long waitingSince=timeWaitingSince;
+		if(waitingSince!=0) {
+			if(heard-waitingSince>0) {
+				// heard from the server since the request
+				timeWaitingSince=0;
+			} else {
+				if(now-waitingSince >= TimeUnit.MILLISECONDS.toNanos(getRequestTimeout())) {
+					//we timed out :-(
+					timedOut();
+				}
+				return false;
+			}
+		}
+		long quietSince;
+		if(endpoint.usesQuietKeepAlive()) {
+			long sent=endpoint.getLastSent();
+			quietSince=heard-sent<0 ? heard : sent;
 		} else {
-			// set a timeout callback
-			Utils.getInstance().setTimeout(()->{
-				checkClientTimeout();
-			}, keepAliveTimeout);
+			quietSince=timeRequestSent;
 		}
+		if(now-quietSince < TimeUnit.MILLISECONDS.toNanos(getRequestInterval())) return false;
+		sendRequest(new KeepAliveRequest());
+		return true;
 	}
 	
 	/**
-	 * Called by the manager that is acting as the client. Basically
-	 * send a keep alive immediately and timeout if no response within
-	 * {@link #keepAliveTimeout} seconds.
-	 * Keep doing this every {@link #keepAliveRequestInterval} seconds until cancelled.
+	 * 
+	 * @return the id of the other endpoint
 	 */
-	public void startAsClient() {
-		// assume we saw a reply already
-		timeReplySeen = Instant.now().toEpochMilli();
-		// send a request straight away
-		sendAnotherRequest();	
+	String getEndpointId() {
+		return endpoint.getOtherEndpointId();
 	}
 	
 	/**
-	 * callback to send new request
+	 * 
+	 * @return when the endpoint last received a message, by {@link System#nanoTime()}
 	 */
-	public void sendAnotherRequest() {
-		if(stopped)return;
-		sendRequest(new KeepAliveRequest());
-		final long timeSent = Instant.now().toEpochMilli();
-		Utils.getInstance().setTimeout(()->{
-			sendAnotherRequest();
-		}, keepAliveRequestInterval);
-		Utils.getInstance().setTimeout(()->{
-			checkServerTimeout(timeSent);
-		}, keepAliveTimeout);
+	long getLastHeard() {
+		return endpoint.getLastHeard();
 	}
 	
 	/**
-	 * callback to check for server timeout
+	 * Stop checking and tell the manager, on a timer thread rather than the
+	 * sweeper's, as the manager's callbacks and closing the endpoint may
+	 * take a while, and the sweep covers every other endpoint too.
 	 */
-	public void checkServerTimeout(long timeSent) {
-		if(stopped)return;
-		if(timeout) {
+	private void timedOut() {
+		stopProtocol();
+		try {
+			Utils.getInstance().setTimeout(()->manager.endpointTimedOut(endpoint,this),0);
+		} catch (IllegalStateException e) {
+			// the system is exiting
 			manager.endpointTimedOut(endpoint,this);
-			stopProtocol();
-		} else {
-			if(timeReplySeen-timeSent > keepAliveTimeout) {
-				//we timed out :-(
-				timeout=true;
-				manager.endpointDisconnectedAbruptly(endpoint);				
-			} 
 		}
 	}
+	
+	/**
+	 * 
+	 * @return how long to wait for a reply to a request, in ms
+	 */
+	public long getRequestTimeout() {
+		if(endpoint.getRtt().getSamples()==0) return keepAliveTimeout/2;
+		return endpoint.getRtt().getTimeout(minRequestTimeout,keepAliveTimeout*3/4);
+	}
+	
+	/**
+	 * 
+	 * @return how long the connection is quiet before a request is sent, in ms
+	 */
+	public long getRequestInterval() {
+		return Math.min(keepAliveRequestInterval,keepAliveTimeout-getRequestTimeout());
+	}
 
 	/**
 	 * Send a keep alive request.
@@ -192,29 +272,37 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	@Override
 	public void sendRequest(Message msg) {
 		KeepAliveRequest keepAliveRequest = (KeepAliveRequest) msg;
-		endpoint.send(keepAliveRequest);
+		long now=System.nanoTime();
+		timeRequestSent=now;
+		if(timeWaitingSince==0) timeWaitingSince=now;
+		if(timeRequestTimed==0) timeRequestTimed=now;
+		// the sweeper checks every connection, so don't wait on this one
+		endpoint.sendWithoutBlocking(keepAliveRequest);
 	}
 
 	/**
-	 * If we receive a keep alive reply, make a note of the time.
+	 * If we receive a keep alive reply, time the round trip.
 	 * @param msg
 	 */
 	@Override
 	public void receiveReply(Message msg) {
 		@SuppressWarnings("unused")
 		KeepAliveReply keepAliveResponse = (KeepAliveReply) msg;
-		timeReplySeen = Instant.now().toEpochMilli();
+		long timed=timeRequestTimed;
+		if(timed==0) return;
+		timeRequestTimed=0;
+		endpoint.getRtt().sample(System.nanoTime()-timed);
 	}
 
 	/**
-	 * Received a keep alive request so make a note of when that was.
+	 * Received a keep alive request, which the endpoint has made a note
+	 * of, so reply.
 	 * @param msg
 	 */
 	@Override
 	public void receiveRequest(Message msg) {
 		@SuppressWarnings("unused")
 		KeepAliveRequest keepAliveRequest = (KeepAliveRequest) msg;
-		timeRequestSeen = Instant.now().toEpochMilli();
 		sendReply(new KeepAliveReply());
 	}
 
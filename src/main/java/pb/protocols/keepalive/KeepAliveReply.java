@@ -30,7 +30,6 @@ public class KeepAliveReply extends Message {
 	 */
 	public KeepAliveReply(Document doc) throws InvalidMessage {
 		super(name,KeepAliveProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
 	}
 
 }
@@ -0,0 +1,244 @@
+package pb.protocols.keepalive;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import pb.utils.Utils;
+import pb.utils.TimingWheel.Timeout;
+
+/**
+ * Checks every running keep alive protocol from a single timeout, rather
+ * than each protocol keeping timeouts of its own, so that the cost of
+ * keeping many connections alive is one pass over them every
+ * {@link #sweepInterval} ms. The timeout is only set while there are
+ * protocols to check.
+ * <br/>
+ * The protocols are kept packed at the front of an array, each knowing its
+ * slot, so that adding and removing one is constant time and a check is a
+ * scan of a copy of the array. The times that the endpoints last heard
+ * from the other side stay on the endpoints, which write them on every
+ * message received, so that endpoints on different threads don't write to
+ * the same cache lines.
+ * <br/>
+ * A server manager has a sweeper of its own, as does a peer manager for its
+ * server and clients; other client managers share {@link #getInstance()}.
+ *
+ * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
+ * @see {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}
+ */
+public class KeepAliveSweeper {
+	private static Logger log = Logger.getLogger(KeepAliveSweeper.class.getName());
+
+	/**
+	 * Default time between checks, in ms. Can be set with the system
+	 * property {@value #sweepIntervalProperty}.
+	 */
+	public static final String sweepIntervalProperty="pb.keepAliveSweep";
+	public static final int defaultSweepInterval=Integer.getInteger(sweepIntervalProperty,1000);
+
+	private static final KeepAliveSweeper instance=new KeepAliveSweeper(defaultSweepInterval);
+
+	/**
+	 * Time between checks, in ms.
+	 */
+	private final int sweepInterval;
+
+	/**
+	 * Guards the protocols and the timeout.
+	 */
+	private final ReentrantLock lock=new ReentrantLock();
+
+	/**
+	 * The protocols to check, in the first {@link #count} slots.
+	 */
+	private KeepAliveProtocol[] protocols=new KeepAliveProtocol[16];
+	private int count=0;
+
+	/**
+	 * The protocols being checked, copied from above. Only used by a
+	 * check, and checks never overlap.
+	 */
+	private KeepAliveProtocol[] checking=new KeepAliveProtocol[0];
+
+	/**
+	 * The timeout for the next check, or null if there is nothing to check.
+	 */
+	private Timeout timeout=null;
+
+	/**
+	 * Number of checks made, and of keep alive requests sent by them.
+	 */
+	private final AtomicLong sweeps=new AtomicLong();
+	private final AtomicLong requestsSent=new AtomicLong();
+
+	/**
+	 * Initialise a sweeper with the default time between checks.
+	 */
+	public KeepAliveSweeper() {
+		this(defaultSweepInterval);
+	}
+
+	/**
+	 * Initialise a sweeper.
+	 * @param sweepInterval time between checks, in ms
+	 */
+	public KeepAliveSweeper(int sweepInterval) {
+		if(sweepInterval<=0) throw new IllegalArgumentException("sweep interval must be positive");
+		this.sweepInterval=sweepInterval;
+	}
+
+	/**
+	 *
+	 * @return the sweeper shared by client managers not given one of their own
+	 */
+	public static KeepAliveSweeper getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Start checking a protocol.
+	 * @param protocol
+	 */
+	void add(KeepAliveProtocol protocol) {
+		lock.lock();
+		try {
+			if(protocol.slot>=0) return;
+			if(count==protocols.length) protocols=Arrays.copyOf(protocols,2*count);
+			protocol.slot=count;
+			protocols[count++]=protocol;
+			if(timeout==null) schedule();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop checking a protocol.
+	 * @param protocol
+	 */
+	void remove(KeepAliveProtocol protocol) {
+		lock.lock();
+		try {
+			int slot=protocol.slot;
+			if(slot<0 || protocols[slot]!=protocol) return;
+			// move the last one into the gap
+			KeepAliveProtocol last=protocols[--count];
+			protocols[slot]=last;
+			last.slot=slot;
+			protocols[count]=null;
+			protocol.slot=-1;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the timeout for the next check. Called with the lock held.
+	 */
+	private void schedule() {
+		try {
+			timeout=Utils.getInstance().setTimeout(this::sweep,sweepInterval);
+		} catch (IllegalStateException e) {
+			// the system is exiting
+			log.warning("keep alive checks stopped: "+e.getMessage());
+			for(int i=0;i<count;i++) {
+				protocols[i].slot=-1;
+				protocols[i]=null;
+			}
+			count=0;
+		}
+	}
+
+	/**
+	 * Check every protocol, and set the timeout for the next check if
+	 * there are any left to check. One protocol failing does not stop the
+	 * others being checked, now or later.
+	 */
+	private void sweep() {
+		try {
+			int n;
+			lock.lock();
+			try {
+				n=count;
+				if(checking.length<n) checking=new KeepAliveProtocol[protocols.length];
+				System.arraycopy(protocols,0,checking,0,n);
+			} finally {
+				lock.unlock();
+			}
+			// a protocol that times out removes itself, so not while locked
+			long now=System.nanoTime();
+			for(int i=0;i<n;i++) {
+				try {
+					if(checking[i].sweep(now)) requestsSent.incrementAndGet();
+				} catch (RuntimeException e) {
+					log.severe("keep alive check failed for "+checking[i].getEndpointId()+": "+e);
+				}
+				checking[i]=null;
+			}
+			sweeps.incrementAndGet();
+		} finally {
+			lock.lock();
+			try {
+				timeout=null;
+				if(count>0) schedule();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return number of protocols being checked
+	 */
+	public int getProtocols() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * How long since each endpoint being checked heard from the other
+	 * side, for diagnostics.
+	 * @return ms since the endpoint last received a message, by the id of
+	 * the other endpoint, in no particular order
+	 */
+	public Map<String,Long> getIdleTimes() {
+		Map<String,Long> idleTimes=new LinkedHashMap<>();
+		long now=System.nanoTime();
+		lock.lock();
+		try {
+			for(int i=0;i<count;i++) {
+				idleTimes.put(protocols[i].getEndpointId(),
+						TimeUnit.NANOSECONDS.toMillis(now-protocols[i].getLastHeard()));
+			}
+		} finally {
+			lock.unlock();
+		}
+		return idleTimes;
+	}
+
+	/**
+	 *
+	 * @return number of checks made
+	 */
+	public long getSweeps() {
+		return sweeps.get();
+	}
+
+	/**
+	 *
+	 * @return number of keep alive requests sent by the checks
+	 */
+	public long getRequestsSent() {
+		return requestsSent.get();
+	}
+}
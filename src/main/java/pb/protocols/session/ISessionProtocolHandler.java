@@ -14,4 +14,53 @@ public interface ISessionProtocolHandler {
 	 * @param endpoint
 	 */
 	public void sessionStopped(Endpoint endpoint);
+	
+	/**
+	 * The other endpoint has asked for the session to start; decide whether
+	 * to accept it.
+	 * @param endpoint
+	 * @return 0 to accept the session, otherwise how long the other endpoint
+	 * should wait before trying again, in ms
+	 */
+	public long sessionRequested(Endpoint endpoint);
+	
+	/**
+	 * The session was refused, either by us or by the other endpoint,
+	 * because of load. The endpoint should be closed.
+	 * @param endpoint
+	 * @param retryAfter how long to wait before trying again, in ms
+	 */
+	public void sessionRefused(Endpoint endpoint, long retryAfter);
+	
+	/**
+	 * Called by the side asking for the session to start.
+	 * @param endpoint
+	 * @return the session of a lost connection to ask to resume, or null
+	 * to start a new session
+	 */
+	public ResumableSession sessionToResume(Endpoint endpoint);
+	
+	/**
+	 * Called by the side accepting the session. Resume the session with the
+	 * token if it is still held and the other side has not missed more
+	 * events than were kept, see {@link ResumableSession#resume(long, long)},
+	 * otherwise start a new one.
+	 * @param endpoint
+	 * @param token of the session to resume, or null if none was asked for
+	 * @param lastReceived number of the last event the other side received
+	 * @param oldestKept number of the oldest event the other side keeps
+	 * @return the session, or null if sessions can't be resumed
+	 */
+	public ResumableSession resumeSession(Endpoint endpoint, String token, long lastReceived,
+			long oldestKept);
+	
+	/**
+	 * Called by the side asking for the session to start, when the other
+	 * side has started a new session that can be resumed.
+	 * @param endpoint
+	 * @param token the other side gave the session
+	 * @return the session, or null to not resume it should the connection
+	 * be lost
+	 */
+	public ResumableSession sessionGiven(Endpoint endpoint, String token);
 }
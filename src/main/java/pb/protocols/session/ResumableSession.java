@@ -0,0 +1,320 @@
+package pb.protocols.session;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+import pb.protocols.event.EventProtocol;
+
+/**
+ * The part of a session that outlives a connection, so that the session can
+ * be resumed on a new connection after the old one was lost. The server
+ * gives each session a token. Each side numbers the events it sends, and
+ * keeps the most recent of them in a bounded replay buffer; each side also
+ * remembers the number of the last event it received. A client that
+ * reconnects asks to resume the session with the token, the number of
+ * the last event it received and the number of the oldest event it still
+ * keeps; the server replies with the number of the last event it received,
+ * after which each side sends again only the events the other missed. If
+ * the events either side missed are no longer all kept, the session can't
+ * be resumed and a new one is started instead. The client keeps every
+ * event from when it asks until the server replies, so that what it told
+ * the server still holds.
+ * <br/>
+ * Events emitted while there is no connection, e.g. on the endpoint of the
+ * lost connection, are kept and sent once the session is resumed. Events
+ * are only taken from the connection the session is sending over, so
+ * that events still arriving on a lost connection don't overtake the ones
+ * sent again on the new one.
+ *
+ * @see {@link pb.protocols.session.SessionProtocol}
+ * @see {@link pb.protocols.event.EventProtocol}
+ */
+public class ResumableSession {
+
+	/**
+	 * Default number of sent events kept to send again. Can be set with the
+	 * system property {@value #replayCapacityProperty}.
+	 */
+	public static final String replayCapacityProperty="pb.replayCapacity";
+	public static final int defaultReplayCapacity=
+			Integer.getInteger(replayCapacityProperty,1024);
+
+	/**
+	 * An event that was sent.
+	 */
+	private static class SentEvent {
+		private final long seq;
+		private final String eventName;
+		private final String eventData;
+
+		SentEvent(long seq, String eventName, String eventData) {
+			this.seq=seq;
+			this.eventName=eventName;
+			this.eventData=eventData;
+		}
+	}
+
+	private final String token;
+	private final int capacity;
+
+	/**
+	 * Keeps events going out in the order they are numbered. Held while
+	 * sending, but never while the lock below is held, since closing an
+	 * endpoint detaches it while holding the endpoint's own send lock.
+	 */
+	private final ReentrantLock sendOrder=new ReentrantLock();
+
+	/**
+	 * Guards everything below.
+	 */
+	private final ReentrantLock lock=new ReentrantLock();
+
+	/**
+	 * The most recent events sent, oldest first.
+	 */
+	private final ArrayDeque<SentEvent> sent=new ArrayDeque<>();
+
+	/**
+	 * Number of the last event sent, and of the last event received.
+	 */
+	private long lastSent=0;
+	private long lastReceived=0;
+
+	/**
+	 * Sends the events, or null while there is no connection.
+	 */
+	private EventProtocol sender=null;
+
+	/**
+	 * Whether the session was resumed on the current connection, and if so
+	 * the number of the last event the other side received.
+	 */
+	private boolean resumed=false;
+	private long replayAfter=0;
+
+	/**
+	 * Whether the events the other side missed have yet to be sent again.
+	 */
+	private boolean replayPending=false;
+
+	/**
+	 * Number of requests to resume waiting for a reply, while which events
+	 * are kept beyond the capacity.
+	 */
+	private int pins=0;
+
+	/**
+	 * Initialise a session the other side has given a token.
+	 * @param token
+	 * @param capacity number of sent events to keep
+	 */
+	public ResumableSession(String token, int capacity) {
+		if(capacity<=0) throw new IllegalArgumentException("capacity must be positive");
+		this.token=token;
+		this.capacity=capacity;
+	}
+
+	/**
+	 * Start a new session with a token of its own.
+	 * @param capacity number of sent events to keep
+	 * @return the session
+	 */
+	public static ResumableSession create(int capacity) {
+		return new ResumableSession(UUID.randomUUID().toString(),capacity);
+	}
+
+	/**
+	 *
+	 * @return the token that names the session
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 *
+	 * @return number of the last event received
+	 */
+	public long getLastReceived() {
+		lock.lock();
+		try {
+			return lastReceived;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Keep every event sent from now on, until {@link #unpin()} is called
+	 * once the other side has replied to the request to resume.
+	 * @return number of the oldest event kept
+	 */
+	public long pin() {
+		lock.lock();
+		try {
+			pins++;
+			return oldestKept();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Go back to keeping only as many events as the capacity, once the
+	 * other side has replied or the connection was lost again.
+	 */
+	public void unpin() {
+		lock.lock();
+		try {
+			if(pins>0) pins--;
+			trim();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Resume the session on a new connection, if neither side has missed
+	 * events that are no longer kept. The events the other side missed are
+	 * kept until sent again, and nothing is sent or taken from the old
+	 * connection from now on.
+	 * @param peerLastReceived number of the last event the other side received
+	 * @param peerOldestKept number of the oldest event the other side keeps,
+	 * or 0 if the other side has already checked it can send what we missed
+	 * @return true if the session was resumed
+	 */
+	public boolean resume(long peerLastReceived, long peerOldestKept) {
+		lock.lock();
+		try {
+			resumed=peerLastReceived>=0 && peerLastReceived<=lastSent
+					&& peerLastReceived+1>=oldestKept() && lastReceived+1>=peerOldestKept;
+			replayAfter=peerLastReceived;
+			replayPending=resumed;
+			sender=null;
+			return resumed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called with the lock held.
+	 * @return number of the oldest event kept
+	 */
+	private long oldestKept() {
+		return sent.isEmpty() ? lastSent+1 : sent.peekFirst().seq;
+	}
+
+	/**
+	 * Drop the oldest events beyond the capacity, unless pinned or yet to
+	 * be sent again. Called with the lock held.
+	 */
+	private void trim() {
+		if(pins>0) return;
+		while(sent.size()>capacity) {
+			if(replayPending && sent.peekFirst().seq>replayAfter) return;
+			sent.removeFirst();
+		}
+	}
+
+	/**
+	 *
+	 * @return true if the session was resumed on the current connection
+	 */
+	public boolean isResumed() {
+		lock.lock();
+		try {
+			return resumed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Send an event, if there is a connection, and keep it to send again
+	 * if the connection is lost.
+	 * @param eventName
+	 * @param eventData
+	 */
+	public void send(String eventName, String eventData) {
+		sendOrder.lock();
+		try {
+			SentEvent event;
+			EventProtocol to;
+			lock.lock();
+			try {
+				event=new SentEvent(++lastSent,eventName,eventData);
+				sent.addLast(event);
+				trim();
+				to=sender;
+			} finally {
+				lock.unlock();
+			}
+			if(to!=null) to.sendEvent(event.eventName,event.eventData,event.seq);
+		} finally {
+			sendOrder.unlock();
+		}
+	}
+
+	/**
+	 * Record an event received.
+	 * @param seq number of the event
+	 * @param receiver the protocol it was received by
+	 * @return true if the event is new, false if it was already received
+	 * or was received on a connection the session is no longer on
+	 */
+	public boolean received(long seq, EventProtocol receiver) {
+		lock.lock();
+		try {
+			if(receiver!=sender || seq<=lastReceived) return false;
+			lastReceived=seq;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Send events over a new connection from now on, first sending the
+	 * events the other side missed if the session was resumed.
+	 * @param sender
+	 */
+	public void attach(EventProtocol sender) {
+		sendOrder.lock();
+		try {
+			ArrayDeque<SentEvent> replay=new ArrayDeque<>();
+			lock.lock();
+			try {
+				this.sender=sender;
+				if(replayPending) {
+					for(SentEvent event : sent) {
+						if(event.seq>replayAfter) replay.addLast(event);
+					}
+					replayPending=false;
+					trim();
+				}
+			} finally {
+				lock.unlock();
+			}
+			for(SentEvent event : replay) {
+				sender.sendEvent(event.eventName,event.eventData,event.seq);
+			}
+		} finally {
+			sendOrder.unlock();
+		}
+	}
+
+	/**
+	 * Stop sending events over a connection that has gone.
+	 * @param sender
+	 */
+	public void detach(EventProtocol sender) {
+		lock.lock();
+		try {
+			if(this.sender==sender) this.sender=null;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -1,11 +1,13 @@
 package pb.protocols.session;
 
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.protocols.event.EventProtocol;
 import pb.utils.Utils;
 import pb.protocols.IRequestReplyProtocol;
 
@@ -18,6 +20,17 @@ import pb.protocols.IRequestReplyProtocol;
  * session stop request to the client if it wants (needs) to stop the session,
  * e.g. perhaps the server is becoming overloaded and needs to shed some
  * clients.
+ * <br/>
+ * The session start request and reply also tell each endpoint how large a
+ * frame the other accepts and which codec it wants messages in, see
+ * {@link pb.managers.endpoint.Endpoint}. The server may instead refuse the
+ * session when it is too busy, with a start reply that says how long to
+ * wait before trying again, and then close the connection.
+ * <br/>
+ * The server may give the session a token, in which case the client can
+ * ask to resume the session with it if the connection is lost, and the
+ * events each side missed are sent again, see
+ * {@link pb.protocols.session.ResumableSession}.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -57,6 +70,11 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	private volatile boolean stopped=false;
 	
+	/**
+	 * The session we asked to resume, until the reply comes.
+	 */
+	private final AtomicReference<ResumableSession> resuming=new AtomicReference<>();
+	
 	/**
 	 * Initialise the protocol with an endpoint and manager.
 	 * @param endpoint
@@ -84,6 +102,8 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 			log.severe("protocol stopped while it is still underway");
 		}
 		stopped=true;
+		ResumableSession session=resuming.getAndSet(null);
+		if(session!=null) session.unpin(); // no reply is coming
 	}
 	
 	/*
@@ -98,7 +118,25 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void startAsClient() {
 		//  send the server a start session request
-		sendRequest(new SessionStartRequest());
+		ResumableSession session=((ISessionProtocolHandler)manager).sessionToResume(endpoint);
+		long oldest=0;
+		if(session!=null) {
+			// keep what we tell the server we have until it replies
+			oldest=session.pin();
+			resuming.set(session);
+			if(stopped && resuming.compareAndSet(session,null)) session.unpin();
+		}
+		SessionStartRequest request=new SessionStartRequest()
+				.setMaxFrameSize(endpoint.getMaxFrameSize())
+				.setBinaryCodec(endpoint.getCodec()==Endpoint.Codec.Binary)
+				.setCompression(endpoint.getCompression())
+				.setChannels(endpoint.getChannels())
+				.setEventAcks(endpoint.getEventAcks())
+				.setEventBatches(endpoint.getEventBatches())
+				.setQuietKeepAlive(endpoint.getQuietKeepAlive())
+				.setCarrier(endpoint.isCarrier());
+		if(session!=null) request.setResume(session.getToken(),session.getLastReceived(),oldest);
+		sendRequest(request);
 	}
 
 	/**
@@ -118,9 +156,19 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 * Generic stop session call, for either client or server.
 	 */
 	public void stopSession() {
+		flushEvents();
 		sendRequest(new SessionStopRequest());
 	}
 	
+	/**
+	 * Send any events waiting to go in a batch, so that they go before the
+	 * session stops.
+	 */
+	private void flushEvents() {
+		Protocol protocol=endpoint.getProtocol(EventProtocol.protocolName);
+		if(protocol instanceof EventProtocol) ((EventProtocol)protocol).flush();
+	}
+	
 	/**
 	 * Just send a request, nothing special.
 	 * @param msg
@@ -149,7 +197,21 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				manager.protocolViolation(endpoint,this);
 				return;
 			}
+			SessionStartReply reply=(SessionStartReply)msg;
+			if(reply.getRetryAfter()>0) {
+				// the other endpoint is too busy
+				((ISessionProtocolHandler)manager).sessionRefused(endpoint,reply.getRetryAfter());
+				return;
+			}
 			protocolRunning=true;
+			endpoint.setPeerMaxFrameSize(reply.getMaxFrameSize());
+			endpoint.setPeerBinaryCodec(reply.getBinaryCodec());
+			endpoint.setPeerCompression(reply.getCompression());
+			endpoint.setPeerChannels(reply.getChannels());
+			endpoint.setPeerEventAcks(reply.getEventAcks());
+			endpoint.setPeerEventBatches(reply.getEventBatches());
+			endpoint.setPeerQuietKeepAlive(reply.getQuietKeepAlive());
+			endpoint.setResumableSession(resumedSession(reply));
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopReply) {
 			if(!protocolRunning) {
@@ -177,8 +239,40 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				manager.protocolViolation(endpoint,this);
 				return;
 			}
+			// the manager neither limits nor reports a connection that only carries channels
+			endpoint.setCarrier(((SessionStartRequest)msg).getCarrier() && !endpoint.isChannel());
+			long retryAfter=((ISessionProtocolHandler)manager).sessionRequested(endpoint);
+			if(retryAfter>0) {
+				// too busy, sent as plainly as possible since nothing is negotiated
+				endpoint.sendAndCancelTimeout(new SessionStartReply().setRetryAfter(retryAfter),msg);
+				((ISessionProtocolHandler)manager).sessionRefused(endpoint,retryAfter);
+				return;
+			}
 			protocolRunning=true;
-			endpoint.sendAndCancelTimeout(new SessionStartReply(),msg);
+			// the reply may already go in a long frame, in the binary codec
+			// and compressed, the other endpoint accepts them from now on
+			SessionStartRequest request=(SessionStartRequest)msg;
+			endpoint.setPeerMaxFrameSize(request.getMaxFrameSize());
+			endpoint.setPeerBinaryCodec(request.getBinaryCodec());
+			endpoint.setPeerCompression(request.getCompression());
+			endpoint.setPeerChannels(request.getChannels());
+			endpoint.setPeerEventAcks(request.getEventAcks());
+			endpoint.setPeerEventBatches(request.getEventBatches());
+			endpoint.setPeerQuietKeepAlive(request.getQuietKeepAlive());
+			ResumableSession session=((ISessionProtocolHandler)manager).resumeSession(endpoint,
+					request.getResumeToken(),request.getResumeSeq(),request.getResumeOldest());
+			endpoint.setResumableSession(session);
+			SessionStartReply reply=new SessionStartReply()
+					.setMaxFrameSize(endpoint.getMaxFrameSize())
+					.setBinaryCodec(endpoint.getCodec()==Endpoint.Codec.Binary)
+					.setCompression(endpoint.getCompression())
+					.setChannels(endpoint.getChannels())
+					.setEventAcks(endpoint.getEventAcks())
+					.setEventBatches(endpoint.getEventBatches())
+					.setQuietKeepAlive(endpoint.getQuietKeepAlive());
+			if(session!=null) reply.setSession(session.getToken(),session.isResumed(),
+					session.getLastReceived());
+			endpoint.sendAndCancelTimeout(reply,msg);
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopRequest) {
 			if(!protocolRunning) {
@@ -187,12 +281,34 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=false;
+			flushEvents();
 			endpoint.sendAndCancelTimeout(new SessionStopReply(),msg);
 			((ISessionProtocolHandler)manager).sessionStopped(endpoint);
 		}
 		
 	}
 
+	/**
+	 * The session given by the other side in its start reply: the one we
+	 * asked to resume, if it was resumed, otherwise a new one.
+	 * @param reply
+	 * @return the session, or null if the other side can't resume sessions
+	 */
+	private ResumableSession resumedSession(SessionStartReply reply) {
+		ResumableSession session=resuming.getAndSet(null);
+		if(session!=null && reply.getResumed() && session.getToken().equals(reply.getToken())) {
+			// the other side checked that we kept what it missed
+			if(!session.resume(reply.getResumeSeq(),0)) {
+				log.warning("events sent before the connection was lost can't all be sent again");
+			}
+			session.unpin();
+			return session;
+		}
+		if(session!=null) session.unpin();
+		if(reply.getToken()==null) return null;
+		return ((ISessionProtocolHandler)manager).sessionGiven(endpoint,reply.getToken());
+	}
+	
 	/**
 	 * Just send a reply, nothing special to do.
 	 * @param msg
@@ -14,13 +14,178 @@ public class SessionStartReply extends Message {
 	static final public String name = "SessionStartReply";
 	
 	/**
-	 * Initialiser when given message parameters explicitly. Note that
-	 * in this message there are no additional parameters.
+	 * Size of the largest long frame the sender accepts, 0 if it did not say.
+	 */
+	private long maxFrameSize=0;
+	
+	/**
+	 * Whether the sender wants messages in the binary codec.
+	 */
+	private boolean binaryCodec=false;
+	
+	/**
+	 * Whether the sender accepts compressed frames.
+	 */
+	private boolean compression=false;
+	
+	/**
+	 * Whether the sender accepts logical channels on the connection.
+	 */
+	private boolean channels=false;
+	
+	/**
+	 * If the sender refused the session because it is too busy, how long
+	 * to wait before trying again, in ms, otherwise 0.
+	 */
+	private long retryAfter=0;
+	
+	/**
+	 * The token of the session, if it can be resumed, else null, whether
+	 * it was resumed, and if so the number of the last event received in it.
+	 */
+	private String token=null;
+	private boolean resumed=false;
+	private long resumeSeq=0;
+	
+	/**
+	 * Whether the sender acknowledges events cumulatively.
+	 */
+	private boolean eventAcks=false;
+	
+	/**
+	 * Whether the sender accepts batches of events.
+	 */
+	private boolean eventBatches=false;
+	
+	/**
+	 * Whether the sender counts any message as a sign of life.
+	 */
+	private boolean quietKeepAlive=false;
+	
+	/**
+	 * Initialiser when given message parameters explicitly, for an endpoint
+	 * that only accepts short frames and knows about nothing else. The
+	 * setters below, which can be chained, say what else it accepts.
 	 */
 	public SessionStartReply() {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply);
 	}
 	
+	/**
+	 * Tell the other endpoint the size of the largest long frame that we
+	 * accept, which allows it to send long frames. Endpoints that don't
+	 * know about long frames ignore it.
+	 * @param maxFrameSize
+	 * @return this message
+	 */
+	public SessionStartReply setMaxFrameSize(long maxFrameSize) {
+		this.maxFrameSize=maxFrameSize;
+		return this;
+	}
+	
+	/**
+	 * Tell the other endpoint whether we want messages in the binary codec,
+	 * which is only used if both endpoints want it. Endpoints that don't
+	 * know about the binary codec ignore it.
+	 * @param binaryCodec
+	 * @return this message
+	 */
+	public SessionStartReply setBinaryCodec(boolean binaryCodec) {
+		this.binaryCodec=binaryCodec;
+		return this;
+	}
+	
+	/**
+	 * Tell the other endpoint whether we accept compressed frames, which
+	 * are only sent if both endpoints accept them. Endpoints that don't
+	 * know about compression ignore it.
+	 * @param compression
+	 * @return this message
+	 */
+	public SessionStartReply setCompression(boolean compression) {
+		this.compression=compression;
+		return this;
+	}
+	
+	/**
+	 * Tell the other endpoint whether we accept logical channels on this
+	 * connection. Endpoints that don't know about channels ignore it, and
+	 * are never sent messages on a channel.
+	 * @param channels
+	 * @return this message
+	 */
+	public SessionStartReply setChannels(boolean channels) {
+		this.channels=channels;
+		return this;
+	}
+	
+	/**
+	 * Tell the other endpoint that the session is refused, because we are
+	 * too busy, and how long to wait before trying again. Endpoints that
+	 * don't know about refusals ignore it, and see the connection close
+	 * instead.
+	 * @param retryAfter in ms, or 0 if the session is not refused
+	 * @return this message
+	 */
+	public SessionStartReply setRetryAfter(long retryAfter) {
+		this.retryAfter=retryAfter;
+		return this;
+	}
+	
+	/**
+	 * Give the other endpoint the token of a session it can resume, and if
+	 * it asked to resume one that was resumed, the number of the last event
+	 * we received in it. Endpoints that don't know about resuming sessions
+	 * ignore it.
+	 * @param token the token of the session
+	 * @param resumed whether the session was resumed
+	 * @param resumeSeq number of the last event received in the session
+	 * @return this message
+	 */
+	public SessionStartReply setSession(String token, boolean resumed, long resumeSeq) {
+		this.token=token;
+		this.resumed=resumed;
+		this.resumeSeq=resumeSeq;
+		return this;
+	}
+	
+	/**
+	 * Tell the other endpoint whether we acknowledge events cumulatively,
+	 * which is only done if both endpoints do. Endpoints that don't know
+	 * about it reply to each event.
+	 * @param eventAcks
+	 * @return this message
+	 */
+	public SessionStartReply setEventAcks(boolean eventAcks) {
+		this.eventAcks=eventAcks;
+		return this;
+	}
+	
+	/**
+	 * Tell the other endpoint whether we accept batches of events, which
+	 * are only sent if both endpoints accept them. Endpoints that don't
+	 * know about batches are sent each event alone.
+	 * @param eventBatches
+	 * @return this message
+	 */
+	public SessionStartReply setEventBatches(boolean eventBatches) {
+		this.eventBatches=eventBatches;
+		return this;
+	}
+	
+	/**
+	 * Tell the other endpoint whether we count any message as a sign of
+	 * life, so that it need only send keep alive requests when the
+	 * connection is quiet. Endpoints that don't know about it are sent
+	 * them regularly.
+	 * @param quietKeepAlive
+	 * @return this message
+	 */
+	public SessionStartReply setQuietKeepAlive(boolean quietKeepAlive) {
+		this.quietKeepAlive=quietKeepAlive;
+		return this;
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -30,6 +195,154 @@ public class SessionStartReply extends Message {
 	 */
 	public SessionStartReply(Document doc) throws InvalidMessage {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+		if(doc.containsKey("maxFrameSize")) {
+			validateLongType("maxFrameSize",doc);
+			maxFrameSize=doc.getLong("maxFrameSize");
+		}
+		if(doc.containsKey("binaryCodec")) {
+			validateBooleanType("binaryCodec",doc);
+			binaryCodec=doc.getBoolean("binaryCodec");
+		}
+		if(doc.containsKey("compression")) {
+			validateBooleanType("compression",doc);
+			compression=doc.getBoolean("compression");
+		}
+		if(doc.containsKey("channels")) {
+			validateBooleanType("channels",doc);
+			channels=doc.getBoolean("channels");
+		}
+		if(doc.containsKey("retryAfter")) {
+			validateLongType("retryAfter",doc);
+			retryAfter=doc.getLong("retryAfter");
+		}
+		if(doc.containsKey("token")) {
+			validateStringType("token",doc);
+			token=doc.getString("token");
+			if(doc.containsKey("resumeSeq")) {
+				validateLongType("resumeSeq",doc);
+				resumed=true;
+				resumeSeq=doc.getLong("resumeSeq");
+			}
+		}
+		if(doc.containsKey("eventAcks")) {
+			validateBooleanType("eventAcks",doc);
+			eventAcks=doc.getBoolean("eventAcks");
+		}
+		if(doc.containsKey("eventBatches")) {
+			validateBooleanType("eventBatches",doc);
+			eventBatches=doc.getBoolean("eventBatches");
+		}
+		if(doc.containsKey("quietKeepAlive")) {
+			validateBooleanType("quietKeepAlive",doc);
+			quietKeepAlive=doc.getBoolean("quietKeepAlive");
+		}
+	}
+	
+	@Override
+	protected void appendParameters(Document doc) {
+		if(maxFrameSize!=0) doc.append("maxFrameSize", maxFrameSize);
+		if(binaryCodec) doc.append("binaryCodec", binaryCodec);
+		if(compression) doc.append("compression", compression);
+		if(channels) doc.append("channels", channels);
+		if(retryAfter!=0) doc.append("retryAfter", retryAfter);
+		if(token!=null) {
+			doc.append("token", token);
+			if(resumed) doc.append("resumeSeq", resumeSeq);
+		}
+		if(eventAcks) doc.append("eventAcks", eventAcks);
+		if(eventBatches) doc.append("eventBatches", eventBatches);
+		if(quietKeepAlive) doc.append("quietKeepAlive", quietKeepAlive);
+	}
+	
+	/**
+	 * 
+	 * @return size of the largest long frame the other endpoint accepts,
+	 * or 0 if it does not accept long frames
+	 */
+	public long getMaxFrameSize() {
+		return maxFrameSize;
+	}
+	
+	/**
+	 * 
+	 * @return true if the other endpoint wants messages in the binary codec
+	 */
+	public boolean getBinaryCodec() {
+		return binaryCodec;
+	}
+	
+	/**
+	 * 
+	 * @return true if the other endpoint accepts compressed frames
+	 */
+	public boolean getCompression() {
+		return compression;
+	}
+	
+	/**
+	 * 
+	 * @return true if the other endpoint accepts logical channels
+	 */
+	public boolean getChannels() {
+		return channels;
+	}
+	
+	/**
+	 * 
+	 * @return how long the other endpoint asks us to wait before trying
+	 * again, in ms, or 0 if it did not refuse the session
+	 */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+	
+	/**
+	 * 
+	 * @return the token of the session, if the other endpoint lets it be
+	 * resumed, else null
+	 */
+	public String getToken() {
+		return token;
+	}
+	
+	/**
+	 * 
+	 * @return true if the other endpoint resumed the session we asked for
+	 */
+	public boolean getResumed() {
+		return resumed;
+	}
+	
+	/**
+	 * 
+	 * @return number of the last event the other endpoint received in the
+	 * resumed session
+	 */
+	public long getResumeSeq() {
+		return resumeSeq;
+	}
+	
+	/**
+	 * 
+	 * @return true if the other endpoint acknowledges events cumulatively
+	 */
+	public boolean getEventAcks() {
+		return eventAcks;
+	}
+	
+	/**
+	 * 
+	 * @return true if the other endpoint accepts batches of events
+	 */
+	public boolean getEventBatches() {
+		return eventBatches;
+	}
+	
+	/**
+	 * 
+	 * @return true if the other endpoint counts any message as a sign of life
+	 */
+	public boolean getQuietKeepAlive() {
+		return quietKeepAlive;
 	}
 }
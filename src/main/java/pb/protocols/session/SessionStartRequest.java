@@ -14,13 +14,179 @@ public class SessionStartRequest extends Message {
 	static final public String name = "SessionStartRequest";
 	
 	/**
-	 * Initialiser when given message parameters explicitly. Note that
-	 * in this message there are no additional parameters.
+	 * Size of the largest long frame the sender accepts, 0 if it did not say.
+	 */
+	private long maxFrameSize=0;
+	
+	/**
+	 * Whether the sender wants messages in the binary codec.
+	 */
+	private boolean binaryCodec=false;
+	
+	/**
+	 * Whether the sender accepts compressed frames.
+	 */
+	private boolean compression=false;
+	
+	/**
+	 * Whether the sender accepts logical channels on the connection.
+	 */
+	private boolean channels=false;
+	
+	/**
+	 * The token of a session to resume, or null to start a new one, and
+	 * the number of the last event received in it.
+	 */
+	private String resumeToken=null;
+	private long resumeSeq=0;
+	
+	/**
+	 * Number of the oldest event the sender keeps of the session to resume.
+	 */
+	private long resumeOldest=0;
+	
+	/**
+	 * Whether the sender acknowledges events cumulatively.
+	 */
+	private boolean eventAcks=false;
+	
+	/**
+	 * Whether the sender accepts batches of events.
+	 */
+	private boolean eventBatches=false;
+	
+	/**
+	 * Whether the sender counts any message as a sign of life.
+	 */
+	private boolean quietKeepAlive=false;
+	
+	/**
+	 * Whether the sender's connection only carries logical channels.
+	 */
+	private boolean carrier=false;
+	
+	/**
+	 * Initialiser when given message parameters explicitly, for an endpoint
+	 * that only accepts short frames and knows about nothing else. The
+	 * setters below, which can be chained, say what else it accepts.
 	 */
 	public SessionStartRequest() {
 		super(name,SessionProtocol.protocolName,Message.Type.Request);
 	}
 	
+	/**
+	 * Tell the other endpoint the size of the largest long frame that we
+	 * accept, which allows it to send long frames. Endpoints that don't
+	 * know about long frames ignore it.
+	 * @param maxFrameSize
+	 * @return this message
+	 */
+	public SessionStartRequest setMaxFrameSize(long maxFrameSize) {
+		this.maxFrameSize=maxFrameSize;
+		return this;
+	}
+	
+	/**
+	 * Tell the other endpoint whether we want messages in the binary codec,
+	 * which is only used if both endpoints want it. Endpoints that don't
+	 * know about the binary codec ignore it.
+	 * @param binaryCodec
+	 * @return this message
+	 */
+	public SessionStartRequest setBinaryCodec(boolean binaryCodec) {
+		this.binaryCodec=binaryCodec;
+		return this;
+	}
+	
+	/**
+	 * Tell the other endpoint whether we accept compressed frames, which
+	 * are only sent if both endpoints accept them. Endpoints that don't
+	 * know about compression ignore it.
+	 * @param compression
+	 * @return this message
+	 */
+	public SessionStartRequest setCompression(boolean compression) {
+		this.compression=compression;
+		return this;
+	}
+	
+	/**
+	 * Tell the other endpoint whether we accept logical channels on this
+	 * connection. Endpoints that don't know about channels ignore it, and
+	 * are never sent messages on a channel.
+	 * @param channels
+	 * @return this message
+	 */
+	public SessionStartRequest setChannels(boolean channels) {
+		this.channels=channels;
+		return this;
+	}
+	
+	/**
+	 * Ask to resume a session that was on a lost connection. Endpoints that
+	 * don't know about resuming sessions ignore it, and start a new session.
+	 * @param resumeToken the token of the session, or null to start a new one
+	 * @param resumeSeq number of the last event received in the session
+	 * @param resumeOldest number of the oldest event kept of the session
+	 * @return this message
+	 */
+	public SessionStartRequest setResume(String resumeToken, long resumeSeq, long resumeOldest) {
+		this.resumeToken=resumeToken;
+		this.resumeSeq=resumeSeq;
+		this.resumeOldest=resumeOldest;
+		return this;
+	}
+	
+	/**
+	 * Tell the other endpoint whether we acknowledge events cumulatively,
+	 * which is only done if both endpoints do. Endpoints that don't know
+	 * about it reply to each event.
+	 * @param eventAcks
+	 * @return this message
+	 */
+	public SessionStartRequest setEventAcks(boolean eventAcks) {
+		this.eventAcks=eventAcks;
+		return this;
+	}
+	
+	/**
+	 * Tell the other endpoint whether we accept batches of events, which
+	 * are only sent if both endpoints accept them. Endpoints that don't
+	 * know about batches are sent each event alone.
+	 * @param eventBatches
+	 * @return this message
+	 */
+	public SessionStartRequest setEventBatches(boolean eventBatches) {
+		this.eventBatches=eventBatches;
+		return this;
+	}
+	
+	/**
+	 * Tell the other endpoint whether we count any message as a sign of
+	 * life, so that it need only send keep alive requests when the
+	 * connection is quiet. Endpoints that don't know about it are sent
+	 * them regularly.
+	 * @param quietKeepAlive
+	 * @return this message
+	 */
+	public SessionStartRequest setQuietKeepAlive(boolean quietKeepAlive) {
+		this.quietKeepAlive=quietKeepAlive;
+		return this;
+	}
+	
+	/**
+	 * Tell the other endpoint whether this connection only carries logical
+	 * channels, so that its session is not one that the application sees
+	 * and is not counted against the other endpoint's limits. Endpoints
+	 * that don't know about it treat it as any other session.
+	 * @param carrier
+	 * @return this message
+	 */
+	public SessionStartRequest setCarrier(boolean carrier) {
+		this.carrier=carrier;
+		return this;
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -30,6 +196,155 @@ public class SessionStartRequest extends Message {
 	 */
 	public SessionStartRequest(Document doc) throws InvalidMessage {
 		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+		if(doc.containsKey("maxFrameSize")) {
+			validateLongType("maxFrameSize",doc);
+			maxFrameSize=doc.getLong("maxFrameSize");
+		}
+		if(doc.containsKey("binaryCodec")) {
+			validateBooleanType("binaryCodec",doc);
+			binaryCodec=doc.getBoolean("binaryCodec");
+		}
+		if(doc.containsKey("compression")) {
+			validateBooleanType("compression",doc);
+			compression=doc.getBoolean("compression");
+		}
+		if(doc.containsKey("channels")) {
+			validateBooleanType("channels",doc);
+			channels=doc.getBoolean("channels");
+		}
+		if(doc.containsKey("resumeToken")) {
+			validateStringType("resumeToken",doc);
+			resumeToken=doc.getString("resumeToken");
+			validateLongType("resumeSeq",doc);
+			resumeSeq=doc.getLong("resumeSeq");
+			validateLongType("resumeOldest",doc);
+			resumeOldest=doc.getLong("resumeOldest");
+		}
+		if(doc.containsKey("eventAcks")) {
+			validateBooleanType("eventAcks",doc);
+			eventAcks=doc.getBoolean("eventAcks");
+		}
+		if(doc.containsKey("eventBatches")) {
+			validateBooleanType("eventBatches",doc);
+			eventBatches=doc.getBoolean("eventBatches");
+		}
+		if(doc.containsKey("quietKeepAlive")) {
+			validateBooleanType("quietKeepAlive",doc);
+			quietKeepAlive=doc.getBoolean("quietKeepAlive");
+		}
+		if(doc.containsKey("carrier")) {
+			validateBooleanType("carrier",doc);
+			carrier=doc.getBoolean("carrier");
+		}
+	}
+	
+	@Override
+	protected void appendParameters(Document doc) {
+		if(maxFrameSize!=0) doc.append("maxFrameSize", maxFrameSize);
+		if(binaryCodec) doc.append("binaryCodec", binaryCodec);
+		if(compression) doc.append("compression", compression);
+		if(channels) doc.append("channels", channels);
+		if(resumeToken!=null) {
+			doc.append("resumeToken", resumeToken);
+			doc.append("resumeSeq", resumeSeq);
+			doc.append("resumeOldest", resumeOldest);
+		}
+		if(eventAcks) doc.append("eventAcks", eventAcks);
+		if(eventBatches) doc.append("eventBatches", eventBatches);
+		if(quietKeepAlive) doc.append("quietKeepAlive", quietKeepAlive);
+		if(carrier) doc.append("carrier", carrier);
+	}
+	
+	/**
+	 * 
+	 * @return size of the largest long frame the other endpoint accepts,
+	 * or 0 if it does not accept long frames
+	 */
+	public long getMaxFrameSize() {
+		return maxFrameSize;
+	}
+	
+	/**
+	 * 
+	 * @return true if the other endpoint wants messages in the binary codec
+	 */
+	public boolean getBinaryCodec() {
+		return binaryCodec;
+	}
+	
+	/**
+	 * 
+	 * @return true if the other endpoint accepts compressed frames
+	 */
+	public boolean getCompression() {
+		return compression;
+	}
+	
+	/**
+	 * 
+	 * @return true if the other endpoint accepts logical channels
+	 */
+	public boolean getChannels() {
+		return channels;
+	}
+	
+	/**
+	 * 
+	 * @return the token of the session the other endpoint wants to resume,
+	 * or null if it wants a new one
+	 */
+	public String getResumeToken() {
+		return resumeToken;
+	}
+	
+	/**
+	 * 
+	 * @return number of the last event the other endpoint received in the
+	 * session it wants to resume
+	 */
+	public long getResumeSeq() {
+		return resumeSeq;
+	}
+	
+	/**
+	 * 
+	 * @return number of the oldest event the other endpoint keeps of the
+	 * session it wants to resume
+	 */
+	public long getResumeOldest() {
+		return resumeOldest;
+	}
+	
+	/**
+	 * 
+	 * @return true if the other endpoint acknowledges events cumulatively
+	 */
+	public boolean getEventAcks() {
+		return eventAcks;
+	}
+	
+	/**
+	 * 
+	 * @return true if the other endpoint accepts batches of events
+	 */
+	public boolean getEventBatches() {
+		return eventBatches;
+	}
+	
+	/**
+	 * 
+	 * @return true if the other endpoint counts any message as a sign of life
+	 */
+	public boolean getQuietKeepAlive() {
+		return quietKeepAlive;
+	}
+	
+	/**
+	 * 
+	 * @return true if the other endpoint's connection only carries logical
+	 * channels
+	 */
+	public boolean getCarrier() {
+		return carrier;
 	}
 }
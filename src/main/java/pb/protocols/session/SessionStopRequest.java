@@ -30,6 +30,5 @@ public class SessionStopRequest extends Message {
 	 */
 	public SessionStopRequest(Document doc) throws InvalidMessage {
 		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
 	}
 }
@@ -0,0 +1,209 @@
+package pb.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread safe map from long keys to values, that doesn't box its keys or
+ * allocate an entry per mapping. The keys are spread over a fixed number of
+ * stripes, each an open addressing hash table with its own lock, so
+ * threads using different keys rarely contend, and the lock is only held
+ * to probe a few slots. A table grows when it is half full and shrinks
+ * when it is mostly empty, so the memory used follows the number of
+ * mappings rather than the most there have ever been.
+ * <br/>
+ * The key 0 is reserved to mark empty slots and can't be used, and values
+ * can't be null.
+ */
+public class ConcurrentLongMap<V> {
+
+	/**
+	 * Number of stripes, a power of two.
+	 */
+	private static final int numStripes = 16;
+
+	/**
+	 * Smallest number of slots in a stripe, a power of two.
+	 */
+	private static final int minCapacity = 8;
+
+	private static class Stripe {
+		private final ReentrantLock lock=new ReentrantLock();
+		private long[] keys=new long[minCapacity];
+		private Object[] values=new Object[minCapacity];
+		private int count=0;
+	}
+
+	private final Stripe[] stripes;
+	private final AtomicInteger size=new AtomicInteger();
+
+	public ConcurrentLongMap() {
+		stripes=new Stripe[numStripes];
+		for(int i=0;i<numStripes;i++) stripes[i]=new Stripe();
+	}
+
+	/**
+	 * Mixes the bits of the key, so that sequential keys spread over the
+	 * stripes and slots.
+	 */
+	private static int hash(long key) {
+		long h=key*0x9E3779B97F4A7C15L;
+		return (int)(h^(h>>>32));
+	}
+
+	private Stripe stripe(int hash) {
+		return stripes[hash & (numStripes-1)];
+	}
+
+	/**
+	 * The slot a key would be in if there were no collisions.
+	 */
+	private static int home(int hash, int mask) {
+		return (hash>>>4) & mask;
+	}
+
+	/**
+	 *
+	 * @param keys
+	 * @param key
+	 * @param hash
+	 * @return the slot holding the key, or the empty slot where it would go
+	 */
+	private static int find(long[] keys, long key, int hash) {
+		int mask=keys.length-1;
+		int i=home(hash,mask);
+		while(keys[i]!=0 && keys[i]!=key) i=(i+1) & mask;
+		return i;
+	}
+
+	private static void checkKey(long key) {
+		if(key==0) throw new IllegalArgumentException("key must not be 0");
+	}
+
+	/**
+	 * Map a key to a value.
+	 * @param key
+	 * @param value
+	 * @return the value the key was mapped to, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		checkKey(key);
+		if(value==null) throw new IllegalArgumentException("value must not be null");
+		int hash=hash(key);
+		Stripe stripe=stripe(hash);
+		stripe.lock.lock();
+		try {
+			int i=find(stripe.keys,key,hash);
+			if(stripe.keys[i]==key) {
+				Object previous=stripe.values[i];
+				stripe.values[i]=value;
+				return (V) previous;
+			}
+			if(2*(stripe.count+1)>stripe.keys.length) {
+				resize(stripe,stripe.keys.length*2);
+				i=find(stripe.keys,key,hash);
+			}
+			stripe.keys[i]=key;
+			stripe.values[i]=value;
+			stripe.count++;
+			size.incrementAndGet();
+			return null;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return the value the key is mapped to, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		if(key==0) return null;
+		int hash=hash(key);
+		Stripe stripe=stripe(hash);
+		stripe.lock.lock();
+		try {
+			int i=find(stripe.keys,key,hash);
+			return (V) stripe.values[i];
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove the mapping of a key.
+	 * @param key
+	 * @return the value the key was mapped to, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		if(key==0) return null;
+		int hash=hash(key);
+		Stripe stripe=stripe(hash);
+		stripe.lock.lock();
+		try {
+			long[] keys=stripe.keys;
+			Object[] values=stripe.values;
+			int i=find(keys,key,hash);
+			if(keys[i]==0) return null;
+			Object previous=values[i];
+			// shift back later keys in the run, so none is cut off from its home
+			int mask=keys.length-1;
+			int j=i;
+			while(true) {
+				j=(j+1) & mask;
+				if(keys[j]==0) break;
+				int k=home(hash(keys[j]),mask);
+				boolean movable = i<=j ? (k<=i || k>j) : (k<=i && k>j);
+				if(movable) {
+					keys[i]=keys[j];
+					values[i]=values[j];
+					i=j;
+				}
+			}
+			keys[i]=0;
+			values[i]=null;
+			stripe.count--;
+			size.decrementAndGet();
+			if(keys.length>minCapacity && 8*stripe.count<keys.length)
+				resize(stripe,keys.length/2);
+			return (V) previous;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	private static void resize(Stripe stripe, int capacity) {
+		long[] oldKeys=stripe.keys;
+		Object[] oldValues=stripe.values;
+		long[] keys=new long[capacity];
+		Object[] values=new Object[capacity];
+		for(int j=0;j<oldKeys.length;j++) {
+			if(oldKeys[j]==0) continue;
+			int i=find(keys,oldKeys[j],hash(oldKeys[j]));
+			keys[i]=oldKeys[j];
+			values[i]=oldValues[j];
+		}
+		stripe.keys=keys;
+		stripe.values=values;
+	}
+
+	/**
+	 *
+	 * @return number of mappings
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 *
+	 * @return true if there are no mappings
+	 */
+	public boolean isEmpty() {
+		return size.get()==0;
+	}
+}
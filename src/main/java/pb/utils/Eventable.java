@@ -1,34 +1,47 @@
 package pb.utils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import pb.protocols.event.IEventCallback;
 
 /**
- * Simple eventable object. Does not provide for
- * canceling event callbacks.
+ * Simple eventable object. A callback can be removed with
+ * {@link #off(String, IEventCallback)}.
+ * <br/>
+ * The callbacks for each event are kept in an array that is copied when a
+ * callback is added or removed, so that emitting takes no lock and
+ * allocates nothing beyond the arguments: events emitted on different
+ * threads are delivered concurrently, and a callback may emit on this or
+ * any other object without waiting for other emits to finish. A callback
+ * added while an event is being emitted receives the next event, not
+ * that one.
+ * <br/>
+ * Callbacks are therefore not run one at a time: the same callback, or
+ * different callbacks on this object, may run concurrently on the threads
+ * that emit, e.g. a manager's session events on each endpoint's thread.
+ * Callbacks that share state must make it thread safe themselves.
+ * @see {@link pb.utils.ManagedThread}
  * @author aaron
  *
  */
-public class Eventable extends Thread {
+public class Eventable extends ManagedThread {
 	private static Logger log = Logger.getLogger(Eventable.class.getName());
-	
+
 	/**
-	 * Event callbacks
+	 * Event callbacks, each array replaced rather than changed.
 	 */
-	private Map<String,List<IEventCallback>> callbacks;
-	
+	private final Map<String,IEventCallback[]> callbacks;
+
 	/**
 	 * Initializer
 	 */
 	public Eventable() {
-		callbacks=new HashMap<>();
+		callbacks=new ConcurrentHashMap<>();
 	}
-	
+
 	/**
 	 * Send event args to all of the callbacks registered
 	 * for event name, and to all callbacks registered for special
@@ -37,23 +50,21 @@ public class Eventable extends Thread {
 	 * @param args event arguments
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean emit(String eventName, Object... args) {
+	public boolean emit(String eventName, Object... args) {
 		boolean hit=false;
-		if(callbacks.containsKey("*")) {
-			callbacks.get("*").forEach((callback)->{
-				// TODO: make this little bit of code more efficient
-				Object[] newargs=new Object[args.length+1];
-				newargs[0]=eventName;
-				for(int i=0;i<args.length;i++) newargs[i+1]=args[i];
-				callback.callback(newargs);
-			});
+		IEventCallback[] all=callbacks.get("*");
+		if(all!=null) {
+			Object[] newargs=new Object[args.length+1];
+			newargs[0]=eventName;
+			System.arraycopy(args,0,newargs,1,args.length);
+			for(IEventCallback callback : all) callback.callback(newargs);
 			hit=true;
 		}
 		if(localEmit(eventName,args)) hit=true;
 		if(!hit)log.warning("no callbacks for event: "+eventName);
 		return hit;
 	}
-	
+
 	/**
 	 * Send event args to all of the callbacks registered
 	 * for event name.
@@ -61,17 +72,13 @@ public class Eventable extends Thread {
 	 * @param args
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean localEmit(String eventName, Object... args) {
-		boolean hit=false;
-		if(callbacks.containsKey(eventName)) {
-			callbacks.get(eventName).forEach((callback)->{
-				callback.callback(args);
-			});
-			hit=true;
-		}
-		return hit;
+	public boolean localEmit(String eventName, Object... args) {
+		IEventCallback[] registered=callbacks.get(eventName);
+		if(registered==null) return false;
+		for(IEventCallback callback : registered) callback.callback(args);
+		return true;
 	}
-	
+
 	/**
 	 * Add a new callback for an event. The special event name "*" is used
 	 * for callbacks that want to receive all events.
@@ -79,11 +86,36 @@ public class Eventable extends Thread {
 	 * @param callback callback to handle event
 	 * @return this event handler for chaining
 	 */
-	public synchronized Eventable on(String eventName, IEventCallback callback) {
-		if(!callbacks.containsKey(eventName)) {
-			callbacks.put(eventName,new ArrayList<IEventCallback>());
-		}
-		callbacks.get(eventName).add(callback);
+	public Eventable on(String eventName, IEventCallback callback) {
+		callbacks.compute(eventName,(name,registered)->{
+			if(registered==null) return new IEventCallback[] {callback};
+			IEventCallback[] added=Arrays.copyOf(registered,registered.length+1);
+			added[registered.length]=callback;
+			return added;
+		});
+		return this;
+	}
+
+	/**
+	 * Remove a callback for an event, e.g. one added for a task that has
+	 * finished, so that a long lived object does not collect them. An event
+	 * being emitted may still reach the callback.
+	 * @param eventName event name
+	 * @param callback the callback as it was added
+	 * @return this event handler for chaining
+	 */
+	public Eventable off(String eventName, IEventCallback callback) {
+		callbacks.computeIfPresent(eventName,(name,registered)->{
+			for(int i=0;i<registered.length;i++) {
+				if(registered[i]!=callback) continue;
+				if(registered.length==1) return null;
+				IEventCallback[] removed=new IEventCallback[registered.length-1];
+				System.arraycopy(registered,0,removed,0,i);
+				System.arraycopy(registered,i+1,removed,i,registered.length-i-1);
+				return removed;
+			}
+			return registered;
+		});
 		return this;
 	}
 }
@@ -0,0 +1,84 @@
+package pb.utils;
+
+/**
+ * A thread that can be asked to run on a virtual thread instead of a platform
+ * thread, see {@link #setUseVirtualThread(boolean)}. Callers must use
+ * {@link #joinThread()} rather than {@link Thread#join()} to wait for it to
+ * finish, since in the virtual case this object itself is never started.
+ *
+ * @see {@link pb.utils.Threads}
+ */
+public class ManagedThread extends Thread {
+
+	/**
+	 * Whether to run on a virtual thread when started.
+	 */
+	private volatile boolean useVirtualThread=Threads.virtualThreadsByDefault();
+
+	/**
+	 * The virtual thread running this object, if any. This is a platform
+	 * thread if virtual threads are not available.
+	 */
+	private volatile Thread virtualThread;
+
+	/**
+	 * Run on a virtual thread rather than a platform thread when
+	 * started. Must be called before {@link #start()}.
+	 * @param useVirtualThread
+	 */
+	public void setUseVirtualThread(boolean useVirtualThread) {
+		this.useVirtualThread=useVirtualThread;
+	}
+
+	/**
+	 *
+	 * @return true if this object runs on a virtual thread when started
+	 */
+	public boolean usesVirtualThread() {
+		return useVirtualThread;
+	}
+
+	/**
+	 * Start running, on a virtual thread if asked to.
+	 */
+	@Override
+	public synchronized void start() {
+		if(useVirtualThread) {
+			virtualThread=Threads.startVirtualThread(getName(),this::run);
+		} else {
+			super.start();
+		}
+	}
+
+	@Override
+	public void interrupt() {
+		Thread thread=virtualThread;
+		if(thread!=null) thread.interrupt();
+		else super.interrupt();
+	}
+
+	@Override
+	public boolean isInterrupted() {
+		Thread thread=virtualThread;
+		if(thread!=null) return thread.isInterrupted();
+		return super.isInterrupted();
+	}
+
+	@Override
+	public State getState() {
+		Thread thread=virtualThread;
+		if(thread!=null) return thread.getState();
+		return super.getState();
+	}
+
+	/**
+	 * Wait for this object to finish running, whether it runs on
+	 * a platform thread or a virtual thread.
+	 * @throws InterruptedException
+	 */
+	public void joinThread() throws InterruptedException {
+		Thread thread=virtualThread;
+		if(thread!=null) thread.join();
+		else join();
+	}
+}
@@ -0,0 +1,114 @@
+package pb.utils;
+
+import java.lang.reflect.Method;
+import java.util.logging.Logger;
+
+/**
+ * Helpers for choosing between platform threads and virtual threads. Virtual
+ * threads need Java 21 or later; they are looked up reflectively so that the
+ * system still builds and runs on older JVMs, where platform threads are used
+ * instead.
+ * <br/>
+ * Virtual threads are used by default when the system property
+ * {@value #virtualThreadsProperty} is set to "true", e.g.
+ * <code>java -Dpb.virtualThreads=true ...</code>
+ *
+ * @see {@link pb.utils.Eventable#setUseVirtualThread(boolean)}
+ */
+public class Threads {
+	private static Logger log = Logger.getLogger(Threads.class.getName());
+
+	/**
+	 * System property that turns on virtual threads by default.
+	 */
+	public static final String virtualThreadsProperty = "pb.virtualThreads";
+
+	/**
+	 * Thread.ofVirtual(), or null if not available.
+	 */
+	private static final Method ofVirtual;
+
+	/**
+	 * Thread.Builder.name(String), or null if not available.
+	 */
+	private static final Method builderName;
+
+	/**
+	 * Thread.Builder.start(Runnable), or null if not available.
+	 */
+	private static final Method builderStart;
+
+	/**
+	 * Whether we have already warned about the lack of virtual threads.
+	 */
+	private static volatile boolean warned=false;
+
+	static {
+		Method of=null, name=null, start=null;
+		try {
+			of=Thread.class.getMethod("ofVirtual");
+			Class<?> builder=Class.forName("java.lang.Thread$Builder");
+			name=builder.getMethod("name",String.class);
+			start=builder.getMethod("start",Runnable.class);
+		} catch (ReflectiveOperationException e) {
+			of=null;
+		}
+		ofVirtual=of;
+		builderName=name;
+		builderStart=start;
+	}
+
+	/**
+	 *
+	 * @return true if the JVM supports virtual threads
+	 */
+	public static boolean virtualThreadsAvailable() {
+		return ofVirtual!=null;
+	}
+
+	/**
+	 *
+	 * @return true if the system property asks for virtual threads
+	 */
+	public static boolean virtualThreadsByDefault() {
+		return Boolean.getBoolean(virtualThreadsProperty);
+	}
+
+	/**
+	 * Start a task on a new thread.
+	 * @param name name of the thread
+	 * @param task the task to run
+	 * @param virtual whether to use a virtual thread
+	 * @return the started thread
+	 */
+	public static Thread startThread(String name, Runnable task, boolean virtual) {
+		if(virtual) return startVirtualThread(name,task);
+		Thread thread=new Thread(task,name);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Start a task on a new virtual thread, or on a new platform thread if
+	 * virtual threads are not available.
+	 * @param name name of the thread
+	 * @param task the task to run
+	 * @return the started thread
+	 */
+	public static Thread startVirtualThread(String name, Runnable task) {
+		if(ofVirtual!=null) {
+			try {
+				Object builder=builderName.invoke(ofVirtual.invoke(null),name);
+				return (Thread) builderStart.invoke(builder,task);
+			} catch (ReflectiveOperationException e) {
+				log.warning("could not start a virtual thread: "+e.getMessage());
+			}
+		} else if(!warned) {
+			warned=true;
+			log.warning("virtual threads need Java 21 or later, using platform threads");
+		}
+		Thread thread=new Thread(task,name);
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,342 @@
+package pb.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import pb.protocols.ICallback;
+
+/**
+ * A hashed timing wheel for scheduling callbacks after a delay. Time is cut
+ * into ticks, and the wheel has a bucket for each tick of one revolution; a
+ * timeout goes in the bucket of the tick it is due in, along with the number
+ * of whole revolutions still to go. Scheduling and cancelling a timeout
+ * only add it to a queue, so both take constant time whatever the number
+ * of timeouts, and the wheel's thread moves timeouts between the queues
+ * and the buckets once per tick. Timeouts fire up to a tick late.
+ * <br/>
+ * The wheel's thread does not run the callbacks itself, it hands them to
+ * an executor, so that a slow callback does not hold up other timeouts.
+ * By default callbacks run on daemon threads of a pool, or on virtual
+ * threads if {@link pb.utils.Threads#virtualThreadsByDefault()}.
+ *
+ * @see {@link pb.utils.Utils#setTimeout(ICallback, long)}
+ */
+public class TimingWheel {
+	private static Logger log = Logger.getLogger(TimingWheel.class.getName());
+
+	/**
+	 * Default length of a tick in ms.
+	 */
+	public static final long defaultTickMillis = 10;
+
+	/**
+	 * Default number of ticks in a revolution, a power of two.
+	 */
+	public static final int defaultWheelSize = 512;
+
+	/**
+	 * Most new timeouts to move into the wheel in one tick, so that a
+	 * flood of them can't hold up expiring the ones already in it.
+	 */
+	private static final int maxTransfersPerTick = 100000;
+
+	/**
+	 * A scheduled callback, which can be cancelled until it has fired.
+	 */
+	public static class Timeout {
+		private static final int pending=0;
+		private static final int cancelled=1;
+		private static final int expired=2;
+
+		private final TimingWheel wheel;
+		private final ICallback callback;
+
+		/**
+		 * When the timeout is due, in ns since the wheel started.
+		 */
+		private final long deadline;
+
+		private final AtomicInteger state=new AtomicInteger(pending);
+
+		/**
+		 * Where the timeout is in the wheel, only used by the wheel's thread.
+		 */
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(TimingWheel wheel, ICallback callback, long deadline) {
+			this.wheel=wheel;
+			this.callback=callback;
+			this.deadline=deadline;
+		}
+
+		/**
+		 * Cancel the timeout, so that its callback is not called.
+		 * @return true if it was cancelled, false if it had already fired
+		 * or been cancelled
+		 */
+		public boolean cancel() {
+			if(!state.compareAndSet(pending,cancelled)) return false;
+			wheel.pending.decrementAndGet();
+			wheel.cancelledTimeouts.add(this);
+			return true;
+		}
+
+		/**
+		 *
+		 * @return true if the timeout was cancelled
+		 */
+		public boolean isCancelled() {
+			return state.get()==cancelled;
+		}
+
+		/**
+		 *
+		 * @return true if the timeout has fired
+		 */
+		public boolean isExpired() {
+			return state.get()==expired;
+		}
+	}
+
+	/**
+	 * The timeouts due in one tick of a revolution, in a doubly linked list
+	 * so that a cancelled timeout can be taken out directly. Only used by
+	 * the wheel's thread.
+	 */
+	private static class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket=this;
+			if(head==null) {
+				head=tail=timeout;
+			} else {
+				tail.next=timeout;
+				timeout.prev=tail;
+				tail=timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if(timeout.prev!=null) timeout.prev.next=timeout.next;
+			else head=timeout.next;
+			if(timeout.next!=null) timeout.next.prev=timeout.prev;
+			else tail=timeout.prev;
+			timeout.next=timeout.prev=null;
+			timeout.bucket=null;
+		}
+	}
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+
+	/**
+	 * Timeouts waiting to go into the wheel, and cancelled timeouts waiting
+	 * to come out of it.
+	 */
+	private final Queue<Timeout> newTimeouts=new ConcurrentLinkedQueue<>();
+	private final Queue<Timeout> cancelledTimeouts=new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Number of timeouts that have neither fired nor been cancelled.
+	 */
+	private final AtomicLong pending=new AtomicLong();
+
+	/**
+	 * When the wheel started, in ns.
+	 */
+	private final long startTime;
+
+	/**
+	 * Runs the callbacks.
+	 */
+	private volatile Executor executor;
+
+	/**
+	 * The default executor, which is shut down with the wheel.
+	 */
+	private final ExecutorService defaultExecutor;
+
+	private volatile boolean stopped=false;
+	private final Thread worker;
+
+	/**
+	 * Initialise and start a wheel with the default tick and size.
+	 */
+	public TimingWheel() {
+		this(defaultTickMillis,defaultWheelSize);
+	}
+
+	/**
+	 * Initialise and start a wheel.
+	 * @param tickMillis length of a tick in ms
+	 * @param wheelSize number of ticks in a revolution, rounded up to a
+	 * power of two
+	 */
+	public TimingWheel(long tickMillis, int wheelSize) {
+		if(tickMillis<=0 || wheelSize<=0 || wheelSize>(1<<30))
+			throw new IllegalArgumentException("tick and wheel size must be positive");
+		tickNanos=TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		int size=Integer.highestOneBit(wheelSize);
+		if(size<wheelSize) size<<=1;
+		wheel=new Bucket[size];
+		for(int i=0;i<size;i++) wheel[i]=new Bucket();
+		mask=size-1;
+		if(Threads.virtualThreadsByDefault()) {
+			defaultExecutor=null;
+			executor=(task)->Threads.startVirtualThread("TimeoutCallback",task);
+		} else {
+			defaultExecutor=Executors.newCachedThreadPool((task)->{
+				Thread thread=new Thread(task,"TimeoutCallback");
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor=defaultExecutor;
+		}
+		startTime=System.nanoTime();
+		// like java.util.Timer, the thread keeps the JVM running until stopped
+		worker=new Thread(this::run,"TimingWheel");
+		worker.start();
+	}
+
+	/**
+	 * Set the executor that runs the callbacks.
+	 * @param executor
+	 */
+	public void setExecutor(Executor executor) {
+		if(executor==null) throw new IllegalArgumentException("executor must not be null");
+		this.executor=executor;
+	}
+
+	/**
+	 * Call a callback after a delay.
+	 * @param callback the method to call
+	 * @param delay the delay in ms before calling the method
+	 * @return the timeout, which can be cancelled
+	 * @throws IllegalStateException if the wheel has been stopped
+	 */
+	public Timeout schedule(ICallback callback, long delay) {
+		if(stopped) throw new IllegalStateException("timing wheel has been stopped");
+		long delayNanos=TimeUnit.MILLISECONDS.toNanos(Math.max(0,delay));
+		long deadline=System.nanoTime()-startTime+delayNanos;
+		if(deadline<0) deadline=Long.MAX_VALUE; // overflowed
+		Timeout timeout=new Timeout(this,callback,deadline);
+		pending.incrementAndGet();
+		newTimeouts.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 *
+	 * @return number of timeouts that have neither fired nor been cancelled
+	 */
+	public long getPendingTimeouts() {
+		return pending.get();
+	}
+
+	/**
+	 * Stop the wheel. Timeouts that have not fired are dropped.
+	 */
+	public void stop() {
+		stopped=true;
+		worker.interrupt();
+		if(defaultExecutor!=null) defaultExecutor.shutdown();
+	}
+
+	/**
+	 * Turn the wheel, a tick at a time, until stopped.
+	 */
+	private void run() {
+		long tick=0;
+		while(!stopped) {
+			long tickDeadline=tickNanos*(tick+1);
+			long sleepNanos=tickDeadline-(System.nanoTime()-startTime);
+			if(sleepNanos>0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (InterruptedException e) {
+					continue; // stopped, or a spurious interrupt
+				}
+			}
+			removeCancelled();
+			transferNew(tick);
+			expire(wheel[(int)(tick & mask)],tickDeadline);
+			tick++;
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while((timeout=cancelledTimeouts.poll())!=null) {
+			Bucket bucket=timeout.bucket;
+			if(bucket!=null) bucket.remove(timeout);
+		}
+	}
+
+	/**
+	 * Move new timeouts into the buckets they are due in, those that are
+	 * already due go in the current bucket.
+	 * @param tick the current tick
+	 */
+	private void transferNew(long tick) {
+		for(int i=0;i<maxTransfersPerTick;i++) {
+			Timeout timeout=newTimeouts.poll();
+			if(timeout==null) break;
+			if(timeout.state.get()!=Timeout.pending) continue;
+			long due=timeout.deadline/tickNanos;
+			timeout.remainingRounds=(due-tick)/wheel.length;
+			wheel[(int)(Math.max(due,tick) & mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * Fire the timeouts in a bucket that are due in this revolution.
+	 * @param bucket
+	 * @param tickDeadline end of the current tick, in ns since the wheel started
+	 */
+	private void expire(Bucket bucket, long tickDeadline) {
+		Timeout timeout=bucket.head;
+		while(timeout!=null) {
+			Timeout next=timeout.next;
+			if(timeout.remainingRounds<=0 && timeout.deadline<=tickDeadline) {
+				bucket.remove(timeout);
+				if(timeout.state.compareAndSet(Timeout.pending,Timeout.expired)) {
+					pending.decrementAndGet();
+					fire(timeout);
+				}
+			} else if(timeout.state.get()==Timeout.cancelled) {
+				bucket.remove(timeout);
+			} else {
+				timeout.remainingRounds--;
+			}
+			timeout=next;
+		}
+	}
+
+	private void fire(Timeout timeout) {
+		try {
+			executor.execute(()->{
+				try {
+					timeout.callback.callback();
+				} catch (RuntimeException e) {
+					log.severe("timeout callback failed: "+e);
+				}
+			});
+		} catch (RuntimeException e) {
+			// e.g. the executor has been shut down
+			log.severe("could not run timeout callback: "+e);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package pb.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the rate of some action. The bucket holds up to a burst of tokens
+ * and is refilled at a steady rate; each action takes a token, waiting for
+ * one if the bucket is empty. So up to a burst of actions can happen at
+ * once, and after that they happen at the rate.
+ */
+public class TokenBucket {
+
+	/**
+	 * Tokens added per ns.
+	 */
+	private final double rate;
+
+	/**
+	 * Most tokens the bucket holds.
+	 */
+	private final double burst;
+
+	/**
+	 * Tokens in the bucket when last refilled, and when that was, guarded
+	 * by the lock.
+	 */
+	private final ReentrantLock lock=new ReentrantLock();
+	private double tokens;
+	private long refilled;
+
+	/**
+	 * Initialise a full bucket.
+	 * @param perSecond tokens added per second
+	 * @param burst most tokens the bucket holds
+	 */
+	public TokenBucket(double perSecond, int burst) {
+		if(perSecond<=0 || burst<=0)
+			throw new IllegalArgumentException("rate and burst must be positive");
+		rate=perSecond/TimeUnit.SECONDS.toNanos(1);
+		this.burst=burst;
+		tokens=burst;
+		refilled=System.nanoTime();
+	}
+
+	/**
+	 * Take a token if there is one, otherwise say how long until there is.
+	 * Called with the lock held.
+	 * @return 0 if a token was taken, otherwise ns until there is one
+	 */
+	private long take() {
+		long now=System.nanoTime();
+		tokens=Math.min(burst,tokens+(now-refilled)*rate);
+		refilled=now;
+		if(tokens>=1) {
+			tokens-=1;
+			return 0;
+		}
+		return Math.max(1,(long)Math.ceil((1-tokens)/rate));
+	}
+
+	/**
+	 * Take a token if there is one.
+	 * @return true if a token was taken
+	 */
+	public boolean tryAcquire() {
+		lock.lock();
+		try {
+			return take()==0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take a token, waiting for one if the bucket is empty.
+	 * @return ns spent waiting
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public long acquire() throws InterruptedException {
+		long start=System.nanoTime();
+		while(true) {
+			long wait;
+			lock.lock();
+			try {
+				wait=take();
+			} finally {
+				lock.unlock();
+			}
+			if(wait==0) return System.nanoTime()-start;
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+}
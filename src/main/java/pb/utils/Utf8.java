@@ -0,0 +1,142 @@
+package pb.utils;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for encoding strings straight into a buffer, so that no byte
+ * array has to be made for them first. Both UTF-8 and the modified UTF-8 of
+ * {@link java.io.DataOutput#writeUTF(String)} are supported; they differ only
+ * in that modified UTF-8 encodes the character 0 in two bytes and each half
+ * of a surrogate pair in three. An unpaired surrogate is encoded in three
+ * bytes in both, which a UTF-8 decoder turns into replacement characters.
+ * <br/>
+ * Plain ASCII, which is what almost all messages are, is copied into
+ * the buffer's array in bulk.
+ */
+public class Utf8 {
+
+	/**
+	 *
+	 * @param s
+	 * @return number of bytes in the UTF-8 encoding of the string, which
+	 * is the length of the string if and only if it is plain ASCII
+	 */
+	public static int length(String s) {
+		int n = s.length();
+		int i = 0;
+		while(i<n && s.charAt(i)<0x80) i++;
+		int length = n;
+		for(;i<n;i++) {
+			char c = s.charAt(i);
+			if(c<0x80) continue;
+			if(c<0x800) {
+				length+=1;
+			} else if(Character.isHighSurrogate(c) && i+1<n
+					&& Character.isLowSurrogate(s.charAt(i+1))) {
+				length+=2; // four bytes for the pair
+				i++;
+			} else {
+				length+=2;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Put the UTF-8 encoding of a string in a buffer.
+	 * @param buffer
+	 * @param s
+	 * @param length the {@link #length(String)} of the string
+	 * @throws BufferOverflowException if there is not room for length bytes
+	 */
+	public static void put(ByteBuffer buffer, String s, int length) {
+		if(buffer.remaining()<length) throw new BufferOverflowException();
+		int n = s.length();
+		if(length==n && putAscii(buffer,s)) return;
+		for(int i=0;i<n;i++) {
+			char c = s.charAt(i);
+			if(c<0x80) {
+				buffer.put((byte)c);
+			} else if(c<0x800) {
+				buffer.put((byte)(0xc0 | (c>>6)));
+				buffer.put((byte)(0x80 | (c & 0x3f)));
+			} else if(Character.isHighSurrogate(c) && i+1<n
+					&& Character.isLowSurrogate(s.charAt(i+1))) {
+				int cp = Character.toCodePoint(c,s.charAt(++i));
+				buffer.put((byte)(0xf0 | (cp>>18)));
+				buffer.put((byte)(0x80 | ((cp>>12) & 0x3f)));
+				buffer.put((byte)(0x80 | ((cp>>6) & 0x3f)));
+				buffer.put((byte)(0x80 | (cp & 0x3f)));
+			} else {
+				buffer.put((byte)(0xe0 | (c>>12)));
+				buffer.put((byte)(0x80 | ((c>>6) & 0x3f)));
+				buffer.put((byte)(0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param s
+	 * @return number of bytes in the modified UTF-8 encoding of the string,
+	 * not counting the two byte length that writeUTF puts in front of it,
+	 * which is the length of the string if and only if it is plain ASCII
+	 * without the character 0
+	 */
+	public static int modifiedLength(String s) {
+		int n = s.length();
+		int length = n;
+		for(int i=0;i<n;i++) {
+			char c = s.charAt(i);
+			if(c>=0x80 || c==0) {
+				length += c<0x800 ? 1 : 2;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Put the modified UTF-8 encoding of a string in a buffer. The two
+	 * byte length is not put.
+	 * @param buffer
+	 * @param s
+	 * @param length the {@link #modifiedLength(String)} of the string
+	 * @throws BufferOverflowException if there is not room for length bytes
+	 */
+	public static void putModified(ByteBuffer buffer, String s, int length) {
+		if(buffer.remaining()<length) throw new BufferOverflowException();
+		int n = s.length();
+		if(length==n && putAscii(buffer,s)) return;
+		for(int i=0;i<n;i++) {
+			char c = s.charAt(i);
+			if(c<0x80 && c!=0) {
+				buffer.put((byte)c);
+			} else if(c<0x800) {
+				buffer.put((byte)(0xc0 | (c>>6)));
+				buffer.put((byte)(0x80 | (c & 0x3f)));
+			} else {
+				buffer.put((byte)(0xe0 | (c>>12)));
+				buffer.put((byte)(0x80 | ((c>>6) & 0x3f)));
+				buffer.put((byte)(0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
+	/**
+	 * Copy a plain ASCII string into the buffer's array, which is much faster
+	 * than putting it a character at a time. The buffer must have room for it.
+	 * @param buffer
+	 * @param s
+	 * @return false if the buffer has no array, in which case nothing is put
+	 */
+	@SuppressWarnings("deprecation")
+	private static boolean putAscii(ByteBuffer buffer, String s) {
+		if(!buffer.hasArray()) return false;
+		int position = buffer.position();
+		// takes the low byte of each character, which for ASCII is all of it
+		s.getBytes(0,s.length(),buffer.array(),buffer.arrayOffset()+position);
+		buffer.position(position+s.length());
+		return true;
+	}
+}
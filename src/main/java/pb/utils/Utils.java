@@ -1,9 +1,9 @@
 package pb.utils;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executor;
 
 import pb.protocols.ICallback;
+import pb.utils.TimingWheel.Timeout;
 
 /**
  * A singleton class to provide various utility functions. It must always be
@@ -36,13 +36,13 @@ public class Utils {
 	public static final int chunkSize = 16*1024;
 	
 	/**
-	 * Use of a single timer object over the entire system helps
+	 * Use of a single timing wheel over the entire system helps
 	 * to reduce thread usage.
 	 */
-	private Timer timer = new Timer();
+	private TimingWheel timer;
 	
 	public Utils() {
-		timer=new Timer();
+		timer=new TimingWheel();
 	}
 	
 	public static synchronized Utils getInstance() {
@@ -60,23 +60,26 @@ public class Utils {
 	 * </code>
 	 * @param callback the method to call
 	 * @param delay the delay in ms before calling the method
+	 * @return the timeout, which can be cancelled
 	 */
-	public void setTimeout(ICallback callback,long delay) {
+	public Timeout setTimeout(ICallback callback,long delay) {
 		// nicely, this is thread safe
-		timer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				callback.callback();
-			}
-			
-		}, delay);
+		return timer.schedule(callback, delay);
+	}
+	
+	/**
+	 * Set the executor that runs timeout callbacks, in place of the
+	 * timing wheel's own threads.
+	 * @param executor
+	 */
+	public void setTimeoutExecutor(Executor executor) {
+		timer.setExecutor(executor);
 	}
 	
 	/**
 	 * Call before the system exits.
 	 */
 	public void cleanUp() {
-		timer.cancel();
-		System.gc(); // need to do this to cleanup timer tasks and allow jvm to quit
+		timer.stop();
 	}
 }